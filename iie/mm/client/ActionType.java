@@ -6,4 +6,13 @@ public class ActionType {
 	public static final byte DELSET = 3;
 	public static final byte ASYNCSTORE = 4;
 	public static final byte SERVERINFO = 5;
+	public static final byte ASYNCSTOREACK = 6;
+	public static final byte MSEARCH = 7;
+	public static final byte MSTORE = 8;
+	public static final byte STREAMSTORE = 9;
+	public static final byte DEL = 10;
+	
+	public static final byte MUX = 0x01;
+	
+	public static final int BUSY = -2;
 }
@@ -6,23 +6,30 @@ import iie.mm.client.PhotoClient.SocketHashEntry;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Tuple;
 
 public class ClientAPI {
 	private PhotoClient pc;
-	private int index;					
+	//所有active的服务端,按rendezvous hashing选择对象存放的服务端
 	private List<String> keyList = new ArrayList<String>();
+	//服务端的权重,来自redis的mm.weights(服务端 -> 权重),没有设置的为1
+	private Map<String, Double> weights = new ConcurrentHashMap<String, Double>();
 	
 	//缓存与服务端的tcp连接,服务端名称到连接的映射
 	private Map<String, SocketHashEntry> socketHash;
@@ -130,34 +137,103 @@ public class ClientAPI {
 			for (Tuple t : active) {
 				String[] c = t.getElement().split(":");
 				if (c.length == 2) {
+					SocketHashEntry she;
+					try {
+						she = new SocketHashEntry(c[0], Integer.parseInt(c[1]), pc.getConf().getSockPerServer());
+					} catch (NumberFormatException e) {
+						e.printStackTrace();
+						continue;
+					}
+					//连接不上的服务端也参与选择,这样各客户端对同一个对象选择的服务端相同,写时跳过它
+					socketHash.put(t.getElement(), she);
 					Socket sock = new Socket();
-					SocketHashEntry she = new SocketHashEntry(c[0], Integer.parseInt(c[1]), pc.getConf().getSockPerServer());
 					try {
 						sock.setTcpNoDelay(true);//不要延迟
 						sock.connect(new InetSocketAddress(c[0], Integer.parseInt(c[1])));//本地与所有的服务器相连
 						she.addToSockets(sock, new DataInputStream(sock.getInputStream()),
 								new DataOutputStream(sock.getOutputStream()));
-						socketHash.put(t.getElement(), she);
-					} catch (SocketException e) {
-						e.printStackTrace();
-						continue;
-					} catch (NumberFormatException e) {
-						e.printStackTrace();
-						continue;
 					} catch (IOException e) {
 						e.printStackTrace();
-						continue;
+						she.markDown();
 					}
 				}
 			}
 		}
 		keyList.addAll(socketHash.keySet());
+		Map<String, String> ws = jedis.hgetAll("mm.weights");
+		if (ws != null) {
+			for (Map.Entry<String, String> e : ws.entrySet()) {
+				try {
+					weights.put(e.getKey(), Double.parseDouble(e.getValue()));
+				} catch (NumberFormatException ex) {
+					System.out.println("Invalid weight of " + e.getKey() + ": " + e.getValue());
+				}
+			}
+		}
 		pc.setSocketHash(socketHash);
 		return 0;
 	}
 	
 	/**
-	 * 同步写,对外提供的接口
+	 * 按rendezvous hashing给出key应该存放的服务端,排在前面的优先,前dupNum个可用的服务端存放各副本.
+	 * 服务端的得分为 weight / -ln(h),h是服务端和key的hash映射到(0,1)的值,
+	 * 所有客户端对同一个key得到相同的顺序,增减一个服务端时只有它得分最高的key的位置变化
+	 * It is thread-safe!
+	 * @param key	set@md5
+	 * @return		服务端(host:port),按得分从高到低
+	 */
+	public List<String> locate(String key) {
+		final Map<String, Double> scores = new HashMap<String, Double>();
+		List<String> r = new ArrayList<String>(keyList);
+		
+		for (String server : keyList) {
+			Double w = weights.get(server);
+			scores.put(server, score(server, key, w == null ? 1.0 : w));
+		}
+		Collections.sort(r, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return scores.get(b).compareTo(scores.get(a));
+			}
+		});
+		return r;
+	}
+	
+	private static double score(String server, String key, double weight) {
+		// FNV-1a of server#key, then the murmur3 finalizer
+		long h = 0xcbf29ce484222325L;
+		String s = server + "#" + key;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		double u = ((h >>> 11) + 0.5) / (double)(1L << 53);
+		return -weight / Math.log(u);
+	}
+	
+	/**
+	 * @return	key应该存放的前n个可用的服务端
+	 */
+	private List<SocketHashEntry> choose(String key, int n) {
+		List<SocketHashEntry> r = new ArrayList<SocketHashEntry>();
+		
+		for (String server : locate(key)) {
+			if (r.size() >= n)
+				break;
+			SocketHashEntry she = socketHash.get(server);
+			if (she != null && she.isAvailable())
+				r.add(she);
+		}
+		return r;
+	}
+	
+	/**
+	 * 同步写,对外提供的接口,各副本按locate的顺序写到前dupNum个可用的服务端,连接失败的服务端跳过
 	 * It is thread-safe!
 	 * @param set
 	 * @param md5
@@ -172,31 +248,103 @@ public class ClientAPI {
 			throw new Exception("wrong format of key:" + key);
 		String r = null;
 		boolean nodedup = false;
-		for (int i = 0; i < pc.getConf().getDupNum(); i++) {
-			SocketHashEntry she = socketHash.get(keyList.get((index + i) % keyList.size()));
-			if (she.probSelected())
-				try {
-					r = pc.syncStorePhoto(keys[0], keys[1], content, she, nodedup);
-					if (r.split("#").length < pc.getConf().getDupNum()) {
-						nodedup = true;
-					} else 
-						nodedup = false;
-				} catch (SocketException e) {
-					i--;
-					index++;
-				}
-			else {
-				i--;
-				index++;
+		int copies = 0;
+		for (String server : locate(key)) {
+			if (copies >= pc.getConf().getDupNum())
+				break;
+			SocketHashEntry she = socketHash.get(server);
+			if (she == null || !she.isAvailable())
+				continue;
+			try {
+				r = pc.syncStorePhoto(keys[0], keys[1], content, she, nodedup);
+				if (r.split("#").length < pc.getConf().getDupNum()) {
+					nodedup = true;
+				} else 
+					nodedup = false;
+				copies++;
+			} catch (SocketException e) {
+				she.markDown();
 			}
 		}
-		index++;
-		if (index >= keyList.size()) {
-			index = 0;
-		}
+		if (r == null)
+			throw new IOException("No available server for " + key);
 		return r;
 	}
 	
+	/**
+	 * 异步写,对外提供的接口,只写一份,写到locate选择的第一个可用的服务端
+	 * It is thread-safe!
+	 * @return	写入完成时得到元信息
+	 */
+	public Future<String> asyncPut(String key, byte[] content) throws IOException, Exception {
+		if (key == null || keyList.size() ==0)
+			throw new Exception("key can not be null or MetaError.");
+		String[] keys = key.split("@");
+		if (keys.length != 2)
+			throw new Exception("wrong format of key:" + key);
+		List<SocketHashEntry> shes = choose(key, 1);
+		if (shes.size() == 0)
+			throw new IOException("No available server for " + key);
+		
+		return pc.asyncPut(keys[0], keys[1], content, shes.get(0));
+	}
+	
+	/**
+	 * 批量写,对外提供的接口,每个对象存dupNum份,写到locate选择的服务端,各服务端的批量写同时进行
+	 * It is thread-safe!
+	 * @param keys		每个都是set@md5
+	 * @param contents	与keys一一对应
+	 * @return			按keys的顺序返回各对象的元信息
+	 */
+	public List<String> mput(List<String> keys, List<byte[]> contents) throws IOException, Exception {
+		if (keys == null || contents == null || keys.size() != contents.size() || keyList.size() == 0)
+			throw new Exception("keys and contents can not be null or mismatch, or MetaError.");
+		for (String key : keys) {
+			if (key == null || key.split("@").length != 2)
+				throw new Exception("wrong format of key:" + key);
+		}
+		List<List<SocketHashEntry>> placement = new ArrayList<List<SocketHashEntry>>(keys.size());
+		int n = Math.min(pc.getConf().getDupNum(), keyList.size());
+		for (String key : keys) {
+			List<SocketHashEntry> shes = choose(key, n);
+			if (shes.size() == 0)
+				throw new IOException("No available server for " + key);
+			placement.add(shes);
+		}
+		return pc.mputTo(keys, contents, placement);
+	}
+	
+	/**
+	 * 流式写,对外提供的接口,用于视频等大对象,内容不需要整个放入内存.
+	 * 流只能读一次,所以只写一份,写到locate选择的第一个可用的服务端
+	 * It is thread-safe!
+	 * @param length	in中内容的字节数
+	 */
+	public String putStream(String key, InputStream in, int length) throws IOException, Exception {
+		if (key == null || keyList.size() ==0)
+			throw new Exception("key can not be null or MetaError.");
+		String[] keys = key.split("@");
+		if (keys.length != 2)
+			throw new Exception("wrong format of key:" + key);
+		List<SocketHashEntry> shes = choose(key, 1);
+		if (shes.size() == 0)
+			throw new IOException("No available server for " + key);
+		
+		return pc.storeStream(keys[0], keys[1], in, length, shes.get(0));
+	}
+	
+	/**
+	 * 流式读,对外提供的接口,内容直接从socket读出,读完后要关闭返回的流
+	 * It is thread-safe
+	 * @param key	或者是set@md5,或者是文件元信息,可以是拼接后的
+	 * @return		对象内容的输入流,对象不存在时返回null
+	 */
+	public MMInputStream getStream(String key) throws IOException, Exception {
+		if (key == null)
+			throw new Exception("key can not be null.");
+		return pc.getStream(key);
+	}
+	
 	/**
 	 * It is thread-safe
 	 * @param key	或者是set@md5,或者是文件元信息，可以是拼接后的
@@ -216,6 +364,40 @@ public class ClientAPI {
 			throw new Exception("wrong format of key:" + key);
 	}
 
+	/**
+	 * 批量读,按服务端分组后并行读取,比逐个get的往返次数少得多
+	 * It is thread-safe
+	 * @param keys	每个都是set@md5,或者是文件元信息,可以是拼接的
+	 * @return		按keys的顺序返回内容,不存在的对象为长度为0的byte数组
+	 */
+	public List<byte[]> mget(List<String> keys) throws IOException, Exception {
+		if (keys == null)
+			throw new Exception("keys can not be null.");
+		return pc.mget(keys);
+	}
+
+	/**
+	 * 删除一个对象,之后按set@md5读不到它
+	 * It is thread-safe
+	 * @param key	set@md5
+	 * @return		删除前对象是否存在
+	 */
+	public boolean delete(String key) throws IOException, Exception {
+		if (key == null)
+			throw new Exception("key can not be null.");
+		String[] keys = key.split("@");
+		if (keys.length != 2)
+			throw new Exception("wrong format of key:" + key);
+		return pc.delPhoto(keys[0], keys[1]);
+	}
+	
+	/**
+	 * 设置集合中对象的保存时间(秒),过期的对象由服务端按块删除,不大于0时取消
+	 */
+	public void setTTL(String set, long seconds) throws IOException {
+		pc.setTTL(set, seconds);
+	}
+
 	public void quit() {
 		if (pc.getRf() != null) {
 			pc.getRf().putInstance(jedis);
@@ -23,6 +23,13 @@ public class ClientConf {
 	private int serverPort;
 	private int dupNum;			//一个文件存储份数
 	private int sockPerServer;
+	private boolean mux = false;	//同步读写也通过多路复用连接发送
+	private int muxConns = 2;		//每个服务端的多路复用连接数
+	private int muxWindow = 1024;	//每个多路复用连接上最多未完成的请求数
+	private int mgetBatch = 128;	//批量读时一个请求最多包含的对象数
+	private int mputBatch = 64;		//批量写时一个请求最多包含的对象数
+	private int mputBytes = 8 * 1024 * 1024;	//批量写时一个请求最多包含的字节数,不能超过服务端允许的最大帧(64MB)
+	private boolean serverDedup = false;	//DEDUP模式下由服务端的去重索引判断重复,写之前不再查询redis,见setServerDedup
 	
 	public static enum MODE {
 		DEDUP, NODEDUP,
@@ -127,6 +134,68 @@ public class ClientConf {
 		this.sockPerServer = sockPerServer;
 	}
 
+	public boolean isMux() {
+		return mux;
+	}
+
+	public void setMux(boolean mux) {
+		this.mux = mux;
+	}
+
+	public int getMuxConns() {
+		return muxConns;
+	}
+
+	public void setMuxConns(int muxConns) {
+		this.muxConns = muxConns;
+	}
+
+	public int getMuxWindow() {
+		return muxWindow;
+	}
+
+	public void setMuxWindow(int muxWindow) {
+		this.muxWindow = muxWindow;
+	}
+
+	public int getMgetBatch() {
+		return mgetBatch;
+	}
+
+	public void setMgetBatch(int mgetBatch) {
+		this.mgetBatch = mgetBatch;
+	}
+
+	public int getMputBatch() {
+		return mputBatch;
+	}
+
+	public void setMputBatch(int mputBatch) {
+		this.mputBatch = mputBatch;
+	}
+
+	public int getMputBytes() {
+		return mputBytes;
+	}
+
+	public void setMputBytes(int mputBytes) {
+		this.mputBytes = mputBytes;
+	}
+
+	public boolean isServerDedup() {
+		return serverDedup;
+	}
+
+	/**
+	 * 服务端的去重索引只知道本节点上的对象,所以打开后去重是按节点的: 写到没有这个md5的服务端时会再存一份,
+	 * 并作为一个副本拼接到元信息中.ClientAPI按set@md5确定性地选择服务端(见ClientAPI.locate),
+	 * 服务端不变时同一个md5总是写到相同的服务端,效果与查询redis相同;服务端增减或不可用时会多存副本.
+	 * 关闭时(默认)写之前先查询redis,整个集群内去重
+	 */
+	public void setServerDedup(boolean serverDedup) {
+		this.serverDedup = serverDedup;
+	}
+
 	public RedisMode getRedisMode() {
 		return redisMode;
 	}
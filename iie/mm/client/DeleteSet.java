@@ -12,16 +12,31 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.Iterator;
-import java.util.Scanner;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Pipeline;
 
 public class DeleteSet {
+	private static final int MAX_THREADS = 64;
+	private static final int RETRIES = 3;
+	private static final int BATCH = 1000;
+	// jedis 2.2.1 has no SCAN, run it in a read only script; the reply is flattened to
+	// the next cursor followed by the keys (fields for HSCAN), jedis can not decode nested replies
+	private static final String SCAN = 
+			"local r = redis.call('scan', ARGV[1], 'MATCH', ARGV[2], 'COUNT', ARGV[3]) " +
+			"table.insert(r[2], 1, r[1]) return r[2]";
+	private static final String HSCAN = 
+			"local r = redis.call('hscan', KEYS[1], ARGV[1], 'COUNT', ARGV[2]) " +
+			"local t = {r[1]} for i = 1, #r[2], 2 do table.insert(t, r[2][i]) end return t";
+	private static final String RENAME_IF_EXISTS = 
+			"if redis.call('exists', KEYS[1]) == 1 then redis.call('rename', KEYS[1], KEYS[2]) end";
 
 	private String redisHost;
 	private int redisPort;
@@ -33,21 +48,87 @@ public class DeleteSet {
 		jedis = RedisFactory.getRawInstance(redisHost, redisPort);
 	}
 
-	public void delSet(String set) {
-		// 向所有拥有该集合的server发送删除请求,删除节点上的文件
-		Iterator<String> ir = jedis.smembers(set + ".srvs").iterator();
-		String info;
-		while (ir.hasNext()) {
-			info = ir.next();
-			String[] infos = info.split(":");
-			if(infos.length != 2) {
-				System.out.println("invalid format addr:" + info);
-				continue;
+	/**
+	 * 删除一个集合.先并行地请求所有拥有该集合的server删除节点上的文件,失败的server重试几次;
+	 * 还没有完成的server记录在redis的mm.delset.<set>中,有server失败时保留这个记录和集合的元数据,
+	 * 再次调用时只请求剩下的server.所有server完成后,先把集合的hash改名,使集合立即不可见,
+	 * 然后用HSCAN和SCAN分批删除元数据,不会长时间阻塞redis
+	 * @return		是否删除完成
+	 */
+	public boolean delSet(final String set) {
+		long begin = System.currentTimeMillis();
+		String pending = "mm.delset." + set;
+		
+		// 第一次删除时记录所有要请求的server,中断后再次删除时从记录继续
+		if (!jedis.exists(pending))
+			jedis.sunionstore(pending, set + ".srvs");
+		List<String> srvs = new ArrayList<String>(jedis.smembers(pending));
+		
+		// 向所有拥有该集合的server并行发送删除请求,删除节点上的文件
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(srvs.size(), MAX_THREADS)));
+		// 按完成的顺序取结果,慢的server不会挡住其它server的进度
+		CompletionService<String> cs = new ExecutorCompletionService<String>(pool);
+		for (final String srv : srvs) {
+			cs.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return delSetOnServer(set, srv) ? srv : null;
+				}
+			});
+		}
+		pool.shutdown();
+		int done = 0, failed = 0;
+		for (int i = 0; i < srvs.size(); i++) {
+			String srv = null;
+			try {
+				srv = cs.take().get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				failed += srvs.size() - i;
+				break;
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+			if (srv != null) {
+				jedis.srem(pending, srv);
+				done++;
+			} else
+				failed++;
+			System.out.println("删除进度: " + (done + failed) + "/" + srvs.size() + " 个server, " + failed + " 个失败");
+		}
+		if (failed > 0) {
+			System.out.println("删除集合'" + set + "'未完成, " + failed + " 个server失败,再次删除时继续");
+			return false;
+		}
+		
+		// 删除集合的元数据: 集合的hash,集合所在节点,集合对应块号,保存时间
+		long fields = delMeta(set);
+		jedis.del(pending);
+		System.out.println("删除集合'" + set + "'完成: " + srvs.size() + " 个server, " + fields + " 个对象, 用时 " + 
+				(System.currentTimeMillis() - begin) + " ms");
+		return true;
+	}
+	
+	/**
+	 * 请求一个server删除集合,失败时等待一段时间后重试
+	 */
+	private boolean delSetOnServer(String set, String srv) {
+		String[] infos = srv.split(":");
+		if (infos.length != 2) {
+			System.out.println("invalid format addr:" + srv);
+			return true;
+		}
+		for (int i = 0; i < RETRIES; i++) {
+			if (i > 0) {
+				try {
+					Thread.sleep(1000L << (i - 1));
+				} catch (InterruptedException e) {
+				}
 			}
 			Socket s = new Socket();
 			try {
 				s.setSoTimeout(60000);				//删除图片时接受该server的响应
-				s.connect(new InetSocketAddress(infos[0], Integer.parseInt(infos[1])));
+				s.connect(new InetSocketAddress(infos[0], Integer.parseInt(infos[1])), 5000);
 				byte[] header = new byte[4];
 				header[0] = ActionType.DELSET;
 				header[1] = (byte) set.length();
@@ -55,42 +136,60 @@ public class DeleteSet {
 				InputStream is = s.getInputStream();
 				os.write(header);
 				os.write(set.getBytes());
-				if (is.read() != 1)
-					System.out.println(s.getRemoteSocketAddress() + "，删除时出现异常");
-				else
-					System.out.println(s.getRemoteSocketAddress() + "，删除成功");
-				s.close();
+				os.flush();
+				if (is.read() == 1) {
+					System.out.println(srv + "，删除成功");
+					return true;
+				}
+				System.out.println(srv + "，删除时出现异常");
 			} catch (SocketTimeoutException e) {
-				e.printStackTrace();
-				System.out.println(s.getRemoteSocketAddress() + "无响应");
-				return;
+				System.out.println(srv + "无响应");
 			} catch (ConnectException e) {
-				e.printStackTrace();
-				System.out.println("删除出现错误: " + infos[0] + " 拒绝连接");
-				return;
+				System.out.println("删除出现错误: " + srv + " 拒绝连接");
 			} catch (IOException e) {
-				e.printStackTrace();
-				return;
+				System.out.println("删除出现错误: " + srv + " " + e.getMessage());
+			} finally {
+				try {
+					s.close();
+				} catch (IOException e) {
+				}
 			}
 		}
-
-		// 删除集合所在节点,集合对应块号,都在数据库0
-		Iterator<String> ikeys1 = jedis.keys(set + ".*").iterator();
-		if (!ikeys1.hasNext()) {
-			System.out.println("没有这个集合: " + set);
-			return;
-		}
-		Pipeline pipeline1 = jedis.pipelined();
-		while (ikeys1.hasNext()) {
-			String key1 = ikeys1.next();
-			pipeline1.del(key1);
-		}
-		pipeline1.sync();
+		return false;
+	}
+	
+	/**
+	 * 分批删除集合的元数据.集合的hash先改名,之后读不到集合中的对象,再用HSCAN每次删除一批字段;
+	 * 其它的键用SCAN找出,不用KEYS遍历整个键空间
+	 * @return		删除的对象个数
+	 */
+	private long delMeta(String set) {
+		String trash = "mm.delset." + set + ".h";
+		long n = 0;
 		
-		//删除集合
-		jedis.del(set);
+		jedis.eval(RENAME_IF_EXISTS, 2, set, trash);
+		String cursor = "0";
+		do {
+			List<?> r = (List<?>) jedis.eval(HSCAN, 1, trash, cursor, "" + BATCH);
+			cursor = (String) r.get(0);
+			if (r.size() == 1)
+				continue;
+			jedis.hdel(trash, r.subList(1, r.size()).toArray(new String[0]));
+			n += r.size() - 1;
+		} while (!cursor.equals("0"));
+		jedis.del(trash);
 		
-		System.out.println("删除集合'" + set + "'完成");
+		// 集合所在节点和保存时间,每个节点每个磁盘上集合对应的块号
+		jedis.del(set + ".srvs", set + ".ttl");
+		String pattern = set.replaceAll("([\\\\*?\\[\\]])", "\\\\$1") + ".blk.*";
+		cursor = "0";
+		do {
+			List<?> r = (List<?>) jedis.eval(SCAN, 0, cursor, pattern, "" + BATCH);
+			cursor = (String) r.get(0);
+			if (r.size() > 1)
+				jedis.del(r.subList(1, r.size()).toArray(new String[0]));
+		} while (!cursor.equals("0"));
+		return n;
 	}
 	
 	/**
@@ -0,0 +1,83 @@
+package iie.mm.client;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a request sent on a MuxConnection. The reader thread completes it
+ * with the raw reply, and convert() turns the reply into the result type.
+ */
+public class MMFuture<T> implements Future<T> {
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private volatile T value = null;
+	private volatile Throwable error = null;
+
+	/**
+	 * Convert the raw reply (null for a -1 reply) to the result. Throw an
+	 * IOException to fail this future.
+	 */
+	@SuppressWarnings("unchecked")
+	protected T convert(byte[] reply) throws IOException {
+		return (T)reply;
+	}
+
+	void complete(byte[] reply) {
+		try {
+			value = convert(reply);
+		} catch (Throwable e) {
+			error = e;
+		}
+		latch.countDown();
+	}
+
+	void fail(Throwable e) {
+		error = e;
+		latch.countDown();
+	}
+
+	/**
+	 * Complete it with a value known without asking the server.
+	 */
+	public void set(T v) {
+		value = v;
+		latch.countDown();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		// the request is already on the wire
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return latch.getCount() == 0;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		latch.await();
+		if (error != null)
+			throw new ExecutionException(error);
+		return value;
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		if (!latch.await(timeout, unit))
+			throw new TimeoutException();
+		if (error != null)
+			throw new ExecutionException(error);
+		return value;
+	}
+}
@@ -0,0 +1,76 @@
+package iie.mm.client;
+
+import iie.mm.client.PhotoClient.SocketHashEntry;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content of one MM object read directly from the server socket, so a large
+ * object never has to fit in the heap. The socket is returned to its
+ * SocketHashEntry when the whole content has been read and the stream is
+ * closed; a stream closed early drops the socket, since the rest of the reply
+ * is still on the wire.
+ */
+public class MMInputStream extends InputStream {
+	private SocketHashEntry she;
+	private long id;
+	private DataInputStream dis;
+	private int length;
+	private int left;
+	private boolean closed = false;
+
+	MMInputStream(SocketHashEntry she, long id, DataInputStream dis, int length) {
+		this.she = she;
+		this.id = id;
+		this.dis = dis;
+		this.length = length;
+		this.left = length;
+	}
+
+	/**
+	 * Length of the whole content.
+	 */
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (left <= 0)
+			return -1;
+		int b = dis.read();
+		if (b < 0)
+			throw new IOException("Connection to " + she.hostname + ":" + she.port + " closed.");
+		left--;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (left <= 0)
+			return -1;
+		int n = dis.read(b, off, Math.min(len, left));
+		if (n < 0)
+			throw new IOException("Connection to " + she.hostname + ":" + she.port + " closed.");
+		left -= n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return Math.min(left, dis.available());
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (left == 0)
+			she.setFreeSocket(id);
+		else
+			she.delFromSockets(id);
+	}
+}
@@ -197,6 +197,8 @@ public class MMSClient {
 				System.out.println("-get  : get an object from server by md5.");
 				System.out.println("-getbi: get an object from server by INFO.");
 				System.out.println("-del  : delete set from server.");
+				System.out.println("-delobj: delete an object of the set by md5.");
+				System.out.println("-ttl  : set the retention of the set (seconds, 0 to clear).");
 				
 				System.out.println("-lpt  : large scacle put test.");
 				System.out.println("-lgt  : large scacle get test.");
@@ -574,6 +576,30 @@ public class MMSClient {
 				ds.delSet(sname);
 				ds.closeJedis();
 			}
+			if (o.flag.equals("-delobj")) {
+				if (o.opt == null) {
+					System.out.println("Please provide the md5 to delete.");
+					System.exit(0);
+				}
+				System.out.println("del args: set " + set + ", md5 " + o.opt);
+				try {
+					System.out.println(pcInfo.delete(set + "@" + o.opt) ? "Deleted." : "Not found.");
+				} catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+			if (o.flag.equals("-ttl")) {
+				if (o.opt == null) {
+					System.out.println("Please provide the ttl in seconds.");
+					System.exit(0);
+				}
+				try {
+					pcInfo.setTTL(set, Long.parseLong(o.opt));
+					System.out.println("Set ttl of " + set + " to " + o.opt + "s.");
+				} catch(IOException e){
+					e.printStackTrace();
+				}
+			}
 			if (o.flag.equals("-getserverinfo")) {
 				System.out.println("get server info.");
 				DeleteSet ds = new DeleteSet(redisHost, redisPort);
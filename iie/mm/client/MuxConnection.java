@@ -0,0 +1,149 @@
+package iie.mm.client;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection to one MM server carrying many outstanding requests. Each
+ * request carries a request id, and each reply starts with the id of its
+ * request: id(long) + length(int) + bytes. A reader thread reads the replies
+ * in whatever order the server sends them, and completes the futures.
+ *
+ * The number of outstanding requests is bounded by window, send() blocks
+ * when the window is full.
+ */
+public class MuxConnection {
+	private String hostname;
+	private int port;
+	private Socket sock;
+	private DataInputStream dis;
+	private DataOutputStream dos;
+	private Map<Long, MMFuture<?>> pending = new ConcurrentHashMap<Long, MMFuture<?>>();
+	private AtomicLong nextId = new AtomicLong(0);
+	private Semaphore window;
+	private volatile boolean closed = false;
+
+	public MuxConnection(String hostname, int port, int window) throws IOException {
+		this.hostname = hostname;
+		this.port = port;
+		this.window = new Semaphore(window);
+		sock = new Socket();
+		sock.connect(new InetSocketAddress(hostname, port));
+		sock.setTcpNoDelay(true);
+		dis = new DataInputStream(sock.getInputStream());
+		dos = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 64 * 1024));
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "MM-Mux-" + hostname + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+		System.out.println("New mux connection for " + hostname + ":" + port);
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Send one request frame: header, request id, then an optional int (if
+	 * intField >= 0), then the payload parts.
+	 */
+	public <T> MMFuture<T> send(MMFuture<T> f, byte[] header, int intField, byte[]... parts)
+			throws IOException {
+		if (closed)
+			throw new IOException("Mux connection to " + hostname + ":" + port + " is closed.");
+		try {
+			window.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the mux window.");
+		}
+		long id = nextId.getAndIncrement();
+		pending.put(id, f);
+		if (closed) {
+			// raced with close(), which may have missed this request
+			if (pending.remove(id) != null)
+				window.release();
+			throw new IOException("Mux connection to " + hostname + ":" + port + " is closed.");
+		}
+		try {
+			synchronized (dos) {
+				dos.write(header);
+				dos.writeLong(id);
+				if (intField >= 0)
+					dos.writeInt(intField);
+				for (byte[] p : parts)
+					dos.write(p);
+				dos.flush();
+			}
+		} catch (IOException e) {
+			if (pending.remove(id) != null)
+				window.release();
+			close(e);
+			throw e;
+		}
+		return f;
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				long id = dis.readLong();
+				int len = dis.readInt();
+				byte[] r = null;
+
+				if (len >= 0) {
+					r = new byte[len];
+					dis.readFully(r);
+				}
+				MMFuture<?> f = pending.remove(id);
+				if (f == null) {
+					System.out.println("Unknown reply id " + id + " from " + hostname + ":" + port);
+					continue;
+				}
+				window.release();
+				if (len == ActionType.BUSY)
+					f.fail(new IOException("MM server " + hostname + ":" + port + " is busy."));
+				else
+					f.complete(r);
+			}
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * Close the connection, and fail all the outstanding requests.
+	 */
+	public void close(Throwable cause) {
+		closed = true;
+		try {
+			sock.close();
+		} catch (IOException e) {
+		}
+		Iterator<Long> iter = pending.keySet().iterator();
+		while (iter.hasNext()) {
+			MMFuture<?> f = pending.remove(iter.next());
+			if (f != null) {
+				window.release();
+				f.fail(cause == null ? new IOException("Mux connection closed.") : cause);
+			}
+		}
+	}
+}
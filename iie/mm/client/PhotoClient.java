@@ -3,21 +3,32 @@ package iie.mm.client;
 import iie.mm.client.ClientConf.RedisInstance;
 import iie.mm.client.PhotoClient.SocketHashEntry.SEntry;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Random;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisException;
 
@@ -36,6 +47,12 @@ public class PhotoClient {
 		AtomicInteger xnr = new AtomicInteger(0);
 		Map<Long, SEntry> map;
 		AtomicLong nextId = new AtomicLong(0);
+		//带请求号的多路复用连接,请求轮流使用
+		MuxConnection[] muxes = null;
+		AtomicInteger nextMux = new AtomicInteger(0);
+		//连接失败后,到这个时间之前不再选择这个服务端
+		volatile long downUntil = 0;
+		static final long DOWN_RETRY = 10000;
 		
 		public static class SEntry {
 			public Socket sock;
@@ -60,6 +77,18 @@ public class PhotoClient {
 			this.map = new ConcurrentHashMap<Long, SEntry>();
 		}
 		
+		public MuxConnection getMux(int conns, int window) throws IOException {
+			int i = (nextMux.getAndIncrement() & 0x7fffffff) % conns;
+			
+			synchronized (this) {
+				if (muxes == null)
+					muxes = new MuxConnection[conns];
+				if (muxes[i] == null || muxes[i].isClosed())
+					muxes[i] = new MuxConnection(hostname, port, window);
+				return muxes[i];
+			}
+		}
+		
 		public void setFreeSocket(long id) {
 			SEntry e = map.get(id);
 			if (e != null) {
@@ -70,16 +99,18 @@ public class PhotoClient {
 			}
 		}
 		
-		public boolean probSelected() {
-			if (map.size() > 0)
-				return true;
-			else {
-				// 1/100 prob selected
-				if (new Random().nextInt(100) == 0)
-					return true;
-				else 
-					return false;
-			}
+		/**
+		 * 服务端是否可以使用: 有连接,或者上次连接失败已经过了DOWN_RETRY毫秒
+		 */
+		public boolean isAvailable() {
+			return map.size() > 0 || System.currentTimeMillis() >= downUntil;
+		}
+		
+		/**
+		 * 连接失败,DOWN_RETRY毫秒内不再选择这个服务端
+		 */
+		public void markDown() {
+			downUntil = System.currentTimeMillis() + DOWN_RETRY;
 		}
 		
 		public long getFreeSocket() throws IOException {
@@ -259,6 +290,9 @@ public class PhotoClient {
 	}
 	
 	private String __syncStorePhoto(String set, String md5, byte[] content, SocketHashEntry she) throws IOException {
+		if (conf.isMux())
+			return __storeResult(set, md5, __muxStorePhoto(set, md5, content, she));
+		
 		long id = she.getFreeSocket();
 		if (id == -1)
 			throw new IOException("Could not find free socket for server: " + she.hostname + ":" + she.port);
@@ -292,6 +326,33 @@ public class PhotoClient {
 			she.delFromSockets(id);
 		}
 		
+		return __storeResult(set, md5, r);
+	}
+	
+	/**
+	 * 通过多路复用连接同步写,连接上可以同时有其他请求
+	 * @return	服务端的回复,出错时为null
+	 */
+	private byte[] __muxStorePhoto(String set, String md5, byte[] content, SocketHashEntry she) {
+		byte[] header = new byte[4];
+		header[0] = ActionType.SYNCSTORE;
+		header[1] = (byte) set.length();
+		header[2] = (byte) md5.length();
+		header[3] = ActionType.MUX;
+		
+		try {
+			return she.getMux(conf.getMuxConns(), conf.getMuxWindow()).send(new MMFuture<byte[]>(), 
+					header, content.length, set.getBytes(), md5.getBytes(), content).get();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * 处理写请求的回复,没有回复时从redis查询元信息
+	 */
+	private String __storeResult(String set, String md5, byte[] r) throws IOException {
 		if (r == null) {
 			String rr = null;
 			try {
@@ -362,7 +423,8 @@ public class PhotoClient {
 	 */
 	public String syncStorePhoto(String set, String md5, byte[] content, SocketHashEntry she, boolean nodedup) throws IOException {
 		refreshJedis();
-		if (conf.getMode() == ClientConf.MODE.NODEDUP || nodedup) {
+		// 服务端去重时,不再先查询redis
+		if (conf.getMode() == ClientConf.MODE.NODEDUP || nodedup || conf.isServerDedup()) {
 			return __syncStorePhoto(set, md5, content, she);
 		} else if (conf.getMode() == ClientConf.MODE.DEDUP) {
 			String info = null;
@@ -394,9 +456,54 @@ public class PhotoClient {
 		throw new IOException("Invalid Operation Mode.");
 	}
 	
+	/**
+	 * 异步写,请求通过多路复用连接流水线发送,服务端写入后返回带请求号的确认
+	 * @return	完成时得到type@set@serverid@block@offset@length@disk,服务端队列满时以IOException失败
+	 */
+	public Future<String> asyncPut(final String set, final String md5, byte[] content, SocketHashEntry she) 
+			throws IOException {
+		MMFuture<String> f = new MMFuture<String>() {
+			@Override
+			protected String convert(byte[] r) throws IOException {
+				if (r == null)
+					throw new IOException("MM server failed to store " + set + "@" + md5);
+				String s = new String(r, "US-ASCII");
+				if (s.startsWith("#FAIL:"))
+					throw new IOException("MM server failure: " + s);
+				return s;
+			}
+		};
+		
+		if (conf.getMode() == ClientConf.MODE.DEDUP && !conf.isServerDedup()) {
+			String info = null;
+			refreshJedis();
+			try {
+				synchronized (jedis) {
+					info = jedis.hget(set, md5);
+				}
+			} catch (JedisConnectionException e) {
+				jedis = rf.putBrokenInstance(jedis);
+			} catch (JedisException e) {
+				jedis = rf.putBrokenInstance(jedis);
+			}
+			if (info != null) {
+				f.set(info);
+				return f;
+			}
+		}
+		
+		byte[] header = new byte[4];
+		header[0] = ActionType.ASYNCSTOREACK;
+		header[1] = (byte) set.length();
+		header[2] = (byte) md5.length();
+		
+		return she.getMux(conf.getMuxConns(), conf.getMuxWindow()).send(f, header, content.length, 
+				set.getBytes(), md5.getBytes(), content);
+	}
+	
 	public void asyncStorePhoto(String set, String md5, byte[] content, SocketHashEntry she) throws IOException {
 		refreshJedis();
-		if (conf.getMode() == ClientConf.MODE.NODEDUP) {
+		if (conf.getMode() == ClientConf.MODE.NODEDUP || conf.isServerDedup()) {
 			__asyncStorePhoto(set, md5, content, she);
 		} else if (conf.getMode() == ClientConf.MODE.DEDUP) {
 			String info = null;
@@ -429,6 +536,148 @@ public class PhotoClient {
 		}
 	}
 	
+	/**
+	 * 流式写,内容从in中按段读出后直接发给服务端,服务端也按段写入块文件,两端都不缓冲整个对象.
+	 * 流只能读一次,所以只写一份
+	 * @param length	内容的字节数
+	 * @return		type@set@serverid@block@offset@length@disk
+	 */
+	public String storeStream(String set, String md5, InputStream in, int length, SocketHashEntry she) 
+			throws IOException {
+		refreshJedis();
+		if (conf.getMode() == ClientConf.MODE.DEDUP && !conf.isServerDedup()) {
+			String info = null;
+			try {
+				synchronized (jedis) {
+					info = jedis.hget(set, md5);
+				}
+			} catch (JedisConnectionException e) {
+				jedis = rf.putBrokenInstance(jedis);
+			} catch (JedisException e) {
+				jedis = rf.putBrokenInstance(jedis);
+			}
+			if (info != null)
+				return info;
+		}
+		
+		long id = she.getFreeSocket();
+		if (id == -1)
+			throw new IOException("Could not find free socket for server: " + she.hostname + ":" + she.port);
+		DataOutputStream storeos = she.map.get(id).dos;
+		DataInputStream storeis = she.map.get(id).dis;
+		
+		byte[] header = new byte[4];
+		header[0] = ActionType.STREAMSTORE;
+		header[1] = (byte) set.length();
+		header[2] = (byte) md5.length();
+		
+		byte[] r = null;
+		byte[] buf = new byte[64 * 1024];
+		
+		try {
+			synchronized (storeos) {
+				storeos.write(header);
+				storeos.writeInt(length);
+				storeos.write(set.getBytes());
+				storeos.write(md5.getBytes());
+				int left = length;
+				while (left > 0) {
+					int n = in.read(buf, 0, Math.min(buf.length, left));
+					if (n < 0)
+						throw new EOFException("Content of " + set + "@" + md5 + " ends at " + (length - left));
+					storeos.write(buf, 0, n);
+					left -= n;
+				}
+				storeos.flush();
+			}
+			r = __handleInput(storeis);
+			she.setFreeSocket(id);
+		} catch (IOException e) {
+			// the frame is incomplete, the socket can not be reused
+			she.delFromSockets(id);
+			throw e;
+		}
+		
+		return __storeResult(set, md5, r);
+	}
+	
+	/**
+	 * 流式读,内容直接从socket读出,不缓冲整个对象.读完后要关闭返回的流
+	 * @param key	set@md5,或者是文件元信息,可以是拼接的
+	 * @return		对象内容的输入流,对象不存在时返回null
+	 */
+	public MMInputStream getStream(String key) throws IOException {
+		String infos = key;
+		
+		if (key.split("@|#").length == 2) {
+			String[] k = key.split("@");
+			refreshJedis();
+			infos = null;
+			try {
+				synchronized (jedis) {
+					infos = jedis.hget(k[0], k[1]);
+				}
+			} catch (JedisConnectionException e) {
+				System.out.println("Jedis connection broken, wait in getStream ...");
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {
+				}
+				jedis = rf.putBrokenInstance(jedis);
+			} catch (JedisException e) {
+				jedis = rf.putBrokenInstance(jedis);
+			}
+			if (infos == null)
+				return null;
+		}
+		for (String info : infos.split("#")) {
+			try {
+				MMInputStream in = __openStream(info);
+				if (in != null)
+					return in;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		throw new IOException("Failed to search MM object.");
+	}
+	
+	/**
+	 * 发出SEARCH请求,读出回复的长度后把socket交给MMInputStream
+	 */
+	private MMInputStream __openStream(String info) throws IOException {
+		String[] si = info.split("@");
+		if (si.length != 7)
+			throw new IOException("Invalid INFO string, info length is " + si.length);
+		String server = servers.get(Long.parseLong(si[2]));
+		if (server == null)
+			throw new IOException("Server idx " + si[2] + " can't be resolved.");
+		SocketHashEntry she = __getServerEntry(server);
+		
+		byte[] header = new byte[4];
+		header[0] = ActionType.SEARCH;
+		header[1] = (byte) info.getBytes().length;
+		
+		long id = she.getFreeSocket();
+		if (id == -1)
+			throw new IOException("Could not get free socket for server " + server);
+		DataInputStream dis = she.map.get(id).dis;
+		try {
+			she.map.get(id).dos.write(header);
+			she.map.get(id).dos.write(info.getBytes());
+			she.map.get(id).dos.flush();
+			int len = dis.readInt();
+			if (len < 0) {
+				she.setFreeSocket(id);
+				return null;
+			}
+			return new MMInputStream(she, id, dis, len);
+		} catch (IOException e) {
+			she.delFromSockets(id);
+			throw e;
+		}
+	}
+	
 	/**
 	 * 
 	 * @param set	redis中的键以set开头,因此读取图片要加上它的集合名
@@ -463,6 +712,108 @@ public class PhotoClient {
 		}
 	}
 	
+	/**
+	 * 删除一个对象: 元信息中有副本的每个节点去掉自己的副本并清除自己的缓存,
+	 * 有节点不能完成时,直接删除redis中的元信息,该节点缓存的元信息过期后失效.
+	 * 块中的内容在服务端压缩时回收
+	 * @return		删除前对象是否存在
+	 */
+	public boolean delPhoto(String set, String md5) throws IOException {
+		String info = null;
+		refreshJedis();
+		
+		try {
+			synchronized (jedis) {
+				info = jedis.hget(set, md5);
+			}
+		} catch (JedisConnectionException e) {
+			jedis = rf.putBrokenInstance(jedis);
+			throw new IOException("Jedis connection broken in delObject.");
+		} catch (JedisException e) {
+			jedis = rf.putBrokenInstance(jedis);
+			throw new IOException(e.getMessage());
+		}
+		if (info == null)
+			return false;
+		
+		Set<Long> ids = new LinkedHashSet<Long>();
+		for (String i : info.split("#")) {
+			String[] si = i.split("@");
+			if (si.length == 7)
+				ids.add(Long.parseLong(si[2]));
+		}
+		boolean failed = false;
+		for (Long sid : ids) {
+			String server = servers.get(sid);
+			try {
+				if (server == null || __delPhoto(set, md5, __getServerEntry(server)) == null)
+					failed = true;
+			} catch (IOException e) {
+				System.out.println("Delete " + set + "@" + md5 + " on " + server + " failed: " + e.getMessage());
+				failed = true;
+			}
+		}
+		if (failed) {
+			try {
+				synchronized (jedis) {
+					jedis.hdel(set, md5);
+				}
+			} catch (JedisException e) {
+				jedis = rf.putBrokenInstance(jedis);
+				throw new IOException(e.getMessage());
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * 请求一个节点删除对象在它上面的副本
+	 * @return		去掉的元信息,出错时为null
+	 */
+	private String __delPhoto(String set, String md5, SocketHashEntry she) throws IOException {
+		byte[] header = new byte[4];
+		header[0] = ActionType.DEL;
+		header[1] = (byte) set.length();
+		header[2] = (byte) md5.length();
+		
+		long id = she.getFreeSocket();
+		if (id == -1)
+			throw new IOException("Could not find free socket for server: " + she.hostname + ":" + she.port);
+		byte[] r = null;
+		try {
+			synchronized (she.map.get(id).dos) {
+				she.map.get(id).dos.write(header);
+				she.map.get(id).dos.write(set.getBytes());
+				she.map.get(id).dos.write(md5.getBytes());
+				she.map.get(id).dos.flush();
+			}
+			r = __handleInput(she.map.get(id).dis);
+			she.setFreeSocket(id);
+		} catch (IOException e) {
+			she.delFromSockets(id);
+			throw e;
+		}
+		return r == null ? null : new String(r);
+	}
+	
+	/**
+	 * 设置集合中对象的保存时间,服务端会删除全部内容都超过这个时间的块,seconds不大于0时取消
+	 */
+	public void setTTL(String set, long seconds) throws IOException {
+		refreshJedis();
+		try {
+			synchronized (jedis) {
+				if (seconds > 0)
+					jedis.set(set + ".ttl", "" + seconds);
+				else
+					jedis.del(set + ".ttl");
+			}
+		} catch (JedisException e) {
+			jedis = rf.putBrokenInstance(jedis);
+			throw new IOException(e.getMessage());
+		}
+	}
+	
 	/**
 	 * infos是拼接的元信息，各个元信息用#隔开
 	 */
@@ -497,31 +848,28 @@ public class PhotoClient {
 			throw new IOException("Invalid INFO string, info length is " + infos.length);
 		}
 		
-		SocketHashEntry searchSocket = null;
 		String server = servers.get(Long.parseLong(infos[2]));
 		if (server == null)
 			throw new IOException("Server idx " + infos[2] + " can't be resolved.");
-		if (socketHash.containsKey(server)) {
-			searchSocket = socketHash.get(server);
-		} else {
-			String[] s = server.split(":");
-			if (s.length == 2) {
-				Socket socket = new Socket(); 
-				socket.connect(new InetSocketAddress(s[0], Integer.parseInt(s[1])));
-				socket.setTcpNoDelay(true);
-				searchSocket = new SocketHashEntry(s[0], Integer.parseInt(s[1]), conf.getSockPerServer());
-				searchSocket.addToSocketsAsUsed(socket, 
-						new DataInputStream(socket.getInputStream()), 
-						new DataOutputStream(socket.getOutputStream()));
-				socketHash.put(server, searchSocket);
-			} else 
-				throw new IOException("Invalid server name or port.");
-		}
+		SocketHashEntry searchSocket = __getServerEntry(server);
 
 		//action,info的length写过去
 		byte[] header = new byte[4];
 		header[0] = ActionType.SEARCH;
 		header[1] = (byte) info.getBytes().length;
+		
+		if (conf.isMux()) {
+			byte[] r = null;
+			try {
+				r = asyncSearchByInfo(info, searchSocket).get();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if (r == null)
+				throw new IOException("Internal error in mm server:" + server);
+			return r;
+		}
+		
 		long id = searchSocket.getFreeSocket();
 		if (id == -1)
 			throw new IOException("Could not get free socket for server " + server);
@@ -547,6 +895,380 @@ public class PhotoClient {
 			return r;
 	}
 	
+	/**
+	 * 获取到服务端的连接,还没有连接时新建一个
+	 */
+	private SocketHashEntry __getServerEntry(String server) throws IOException {
+		SocketHashEntry searchSocket = null;
+		
+		if (socketHash.containsKey(server)) {
+			searchSocket = socketHash.get(server);
+		} else {
+			String[] s = server.split(":");
+			if (s.length == 2) {
+				Socket socket = new Socket(); 
+				socket.connect(new InetSocketAddress(s[0], Integer.parseInt(s[1])));
+				socket.setTcpNoDelay(true);
+				searchSocket = new SocketHashEntry(s[0], Integer.parseInt(s[1]), conf.getSockPerServer());
+				searchSocket.addToSocketsAsUsed(socket, 
+						new DataInputStream(socket.getInputStream()), 
+						new DataOutputStream(socket.getOutputStream()));
+				socketHash.put(server, searchSocket);
+			} else 
+				throw new IOException("Invalid server name or port.");
+		}
+		return searchSocket;
+	}
+	
+	/**
+	 * 批量读,按顺序返回各个key的内容,不存在的对象返回长度为0的byte数组.
+	 * set@md5形式的key按集合分组,每个集合一个HMGET,在一个流水线中发给redis;
+	 * 然后按服务端分组,每个服务端的对象分成若干个MSEARCH请求,
+	 * 所有请求先通过多路复用连接发出,再等待回复,因此各服务端的批量读是并行的
+	 * @param keys	set@md5,或者是文件元信息,可以是拼接后的
+	 */
+	public List<byte[]> mget(List<String> keys) throws IOException {
+		byte[][] r = new byte[keys.size()][];
+		String[] infos = new String[keys.size()];
+		Map<String, List<Integer>> bySet = new HashMap<String, List<Integer>>();
+		
+		for (int i = 0; i < keys.size(); i++) {
+			String[] k = keys.get(i).split("@|#");
+			if (k.length == 2) {
+				List<Integer> l = bySet.get(k[0]);
+				if (l == null) {
+					l = new ArrayList<Integer>();
+					bySet.put(k[0], l);
+				}
+				l.add(i);
+			} else
+				infos[i] = keys.get(i);
+		}
+		__lookupInfos(bySet, keys, infos);
+		
+		//按服务端分组,选择第一个服务端已知的副本
+		Map<String, List<Integer>> byServer = new HashMap<String, List<Integer>>();
+		String[] chosen = new String[keys.size()];
+		for (int i = 0; i < infos.length; i++) {
+			if (infos[i] == null)
+				continue;
+			for (String info : infos[i].split("#")) {
+				String[] si = info.split("@");
+				if (si.length != 7)
+					continue;
+				String server = servers.get(Long.parseLong(si[2]));
+				if (server != null) {
+					List<Integer> l = byServer.get(server);
+					if (l == null) {
+						l = new ArrayList<Integer>();
+						byServer.put(server, l);
+					}
+					l.add(i);
+					chosen[i] = info;
+					break;
+				}
+			}
+		}
+		
+		List<Future<byte[][]>> futures = new ArrayList<Future<byte[][]>>();
+		List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		for (Map.Entry<String, List<Integer>> e : byServer.entrySet()) {
+			List<Integer> l = e.getValue();
+			try {
+				SocketHashEntry she = __getServerEntry(e.getKey());
+				for (int from = 0; from < l.size(); from += conf.getMgetBatch()) {
+					List<Integer> batch = l.subList(from, Math.min(l.size(), from + conf.getMgetBatch()));
+					List<String> bi = new ArrayList<String>();
+					for (Integer i : batch)
+						bi.add(chosen[i]);
+					futures.add(asyncMSearch(bi, she));
+					batches.add(batch);
+				}
+			} catch (IOException ex) {
+				System.out.println("Batch search on " + e.getKey() + " failed: " + ex.getMessage());
+			}
+		}
+		for (int j = 0; j < futures.size(); j++) {
+			try {
+				byte[][] c = futures.get(j).get();
+				for (int k = 0; k < c.length && k < batches.get(j).size(); k++)
+					r[batches.get(j).get(k)] = c[k];
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		
+		//批量读失败的,逐个读其他副本
+		for (int i = 0; i < r.length; i++) {
+			if (r[i] == null) {
+				if (infos[i] != null) {
+					try {
+						r[i] = searchPhoto(infos[i]);
+					} catch (IOException e) {
+					}
+				}
+				if (r[i] == null)
+					r[i] = new byte[0];
+			}
+		}
+		return Arrays.asList(r);
+	}
+	
+	/**
+	 * 每个集合一个HMGET,在一个流水线中发给redis,查询各个set@md5的元信息
+	 * @param bySet	集合 -> 该集合的key在keys中的下标
+	 * @param infos	查到的元信息按下标填入,不存在或者redis出错时不填
+	 */
+	private void __lookupInfos(Map<String, List<Integer>> bySet, List<String> keys, String[] infos) {
+		if (bySet.size() == 0)
+			return;
+		refreshJedis();
+		try {
+			Map<String, Response<List<String>>> resps = new HashMap<String, Response<List<String>>>();
+			synchronized (jedis) {
+				Pipeline p = jedis.pipelined();
+				for (Map.Entry<String, List<Integer>> e : bySet.entrySet()) {
+					String[] md5s = new String[e.getValue().size()];
+					for (int j = 0; j < md5s.length; j++)
+						md5s[j] = keys.get(e.getValue().get(j)).split("@")[1];
+					resps.put(e.getKey(), p.hmget(e.getKey(), md5s));
+				}
+				p.sync();
+			}
+			for (Map.Entry<String, List<Integer>> e : bySet.entrySet()) {
+				List<String> v = resps.get(e.getKey()).get();
+				for (int j = 0; j < v.size(); j++)
+					infos[e.getValue().get(j)] = v.get(j);
+			}
+		} catch (JedisConnectionException e) {
+			System.out.println("Jedis connection broken in batch lookup.");
+			jedis = rf.putBrokenInstance(jedis);
+		} catch (JedisException e) {
+			jedis = rf.putBrokenInstance(jedis);
+		}
+	}
+	
+	/**
+	 * 批量写,每个对象写到shes中的每个服务端(即存dupNum份),见mputTo
+	 * @param keys	set@md5
+	 * @return		按keys的顺序返回各对象的元信息
+	 */
+	public List<String> mput(List<String> keys, List<byte[]> contents, List<SocketHashEntry> shes) 
+			throws IOException {
+		List<List<SocketHashEntry>> placement = new ArrayList<List<SocketHashEntry>>(keys.size());
+		
+		for (int i = 0; i < keys.size(); i++)
+			placement.add(shes);
+		return mputTo(keys, contents, placement);
+	}
+	
+	/**
+	 * 批量写,第i个对象写到placement.get(i)中的每个服务端.
+	 * 对象按服务端分组,每组按个数和字节数分成若干个MSTORE请求,所有服务端的请求先通过多路复用连接发出,再一起等待回复;
+	 * 服务端把一个请求中同一集合的对象连续写入一个块,用一个pipeline提交元数据.
+	 * 批量写失败的副本再逐个同步写到该副本的服务端
+	 * @param keys	set@md5
+	 * @return		按keys的顺序返回各对象的元信息
+	 */
+	public List<String> mputTo(List<String> keys, List<byte[]> contents, List<List<SocketHashEntry>> placement) 
+			throws IOException {
+		String[] r = new String[keys.size()];
+		Map<String, List<Integer>> bySet = new HashMap<String, List<Integer>>();
+		
+		for (int i = 0; i < keys.size(); i++) {
+			String set = keys.get(i).split("@")[0];
+			List<Integer> l = bySet.get(set);
+			if (l == null) {
+				l = new ArrayList<Integer>();
+				bySet.put(set, l);
+			}
+			l.add(i);
+		}
+		if (conf.getMode() == ClientConf.MODE.DEDUP && !conf.isServerDedup())
+			__lookupInfos(bySet, keys, r);
+		
+		// 每个服务端要写的对象
+		Map<SocketHashEntry, List<Integer>> byServer = new LinkedHashMap<SocketHashEntry, List<Integer>>();
+		List<Integer> todo = new ArrayList<Integer>();
+		for (int i = 0; i < r.length; i++) {
+			if (r[i] != null)
+				continue;
+			todo.add(i);
+			for (SocketHashEntry she : placement.get(i)) {
+				List<Integer> l = byServer.get(she);
+				if (l == null) {
+					l = new ArrayList<Integer>();
+					byServer.put(she, l);
+				}
+				l.add(i);
+			}
+		}
+		
+		List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+		List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		List<SocketHashEntry> targets = new ArrayList<SocketHashEntry>();
+		for (Map.Entry<SocketHashEntry, List<Integer>> e : byServer.entrySet()) {
+			SocketHashEntry she = e.getKey();
+			List<Integer> l = e.getValue();
+			int from = 0;
+			while (from < l.size()) {
+				int to = from, bytes = 0;
+				while (to < l.size() && to - from < conf.getMputBatch() && 
+						(to == from || bytes + contents.get(l.get(to)).length <= conf.getMputBytes())) {
+					bytes += contents.get(l.get(to)).length;
+					to++;
+				}
+				List<Integer> batch = l.subList(from, to);
+				try {
+					futures.add(asyncMStore(keys, contents, batch, she));
+					batches.add(batch);
+					targets.add(she);
+				} catch (IOException ex) {
+					System.out.println("Batch store on " + she.hostname + ":" + she.port + " failed: " + 
+							ex.getMessage());
+				}
+				from = to;
+			}
+		}
+		//stored[i][j]: 第i个对象已经写到了placement.get(i)中的第j个服务端
+		boolean[][] stored = new boolean[keys.size()][];
+		for (int i : todo)
+			stored[i] = new boolean[placement.get(i).size()];
+		for (int j = 0; j < futures.size(); j++) {
+			try {
+				String[] infos = futures.get(j).get();
+				for (int k = 0; k < infos.length && k < batches.get(j).size(); k++) {
+					int i = batches.get(j).get(k);
+					if (infos[k] == null || infos[k].startsWith("#FAIL:"))
+						continue;
+					stored[i][placement.get(i).indexOf(targets.get(j))] = true;
+					// 各副本的元信息在redis中用#拼接,最后提交的副本的回复包含了所有副本
+					if (r[i] == null || infos[k].length() > r[i].length())
+						r[i] = infos[k];
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		
+		// 批量写失败的副本逐个同步写到原来的服务端,与put一样每个对象存dupNum份
+		for (int i : todo) {
+			for (int j = 0; j < stored[i].length; j++) {
+				if (stored[i][j])
+					continue;
+				String[] k = keys.get(i).split("@");
+				String info = __syncStorePhoto(k[0], k[1], contents.get(i), placement.get(i).get(j));
+				if (r[i] == null || info.length() > r[i].length())
+					r[i] = info;
+			}
+		}
+		return Arrays.asList(r);
+	}
+	
+	/**
+	 * 通过多路复用连接批量写,一个请求带多个对象
+	 * @param batch	要写的对象在keys和contents中的下标
+	 * @return		完成时得到各对象的元信息,按batch的顺序,失败的为null或者以#FAIL:开头
+	 */
+	public Future<String[]> asyncMStore(List<String> keys, List<byte[]> contents, List<Integer> batch, 
+			SocketHashEntry she) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		
+		for (Integer i : batch) {
+			String[] k = keys.get(i).split("@");
+			byte[] content = contents.get(i);
+			dos.writeByte(k[0].length());
+			dos.writeByte(k[1].length());
+			dos.writeInt(content.length);
+			dos.write(k[0].getBytes());
+			dos.write(k[1].getBytes());
+			dos.write(content);
+		}
+		dos.flush();
+		
+		byte[] header = new byte[4];
+		header[0] = ActionType.MSTORE;
+		header[3] = ActionType.MUX;
+		
+		MMFuture<String[]> f = new MMFuture<String[]>() {
+			@Override
+			protected String[] convert(byte[] reply) throws IOException {
+				if (reply == null)
+					throw new IOException("MM server failed to store in batch.");
+				ByteBuffer bb = ByteBuffer.wrap(reply);
+				String[] r = new String[bb.getInt()];
+				for (int i = 0; i < r.length; i++) {
+					int len = bb.getInt();
+					if (len >= 0) {
+						r[i] = new String(reply, bb.position(), len, "US-ASCII");
+						bb.position(bb.position() + len);
+					}
+				}
+				return r;
+			}
+		};
+		return she.getMux(conf.getMuxConns(), conf.getMuxWindow()).send(f, header, bos.size(), 
+				bos.toByteArray());
+	}
+	
+	/**
+	 * 通过多路复用连接批量读,一个请求带多个元信息
+	 * @param infos	每个都是一个文件的元信息,没有拼接的
+	 * @return		完成时得到各文件的内容,按infos的顺序,不存在的文件为null,
+	 * 				超过服务端一次回复上限的文件也为null,需要再逐个读
+	 */
+	public Future<byte[][]> asyncMSearch(List<String> infos, SocketHashEntry she) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		
+		for (String info : infos) {
+			byte[] b = info.getBytes();
+			dos.writeInt(b.length);
+			dos.write(b);
+		}
+		dos.flush();
+		
+		byte[] header = new byte[4];
+		header[0] = ActionType.MSEARCH;
+		header[3] = ActionType.MUX;
+		
+		MMFuture<byte[][]> f = new MMFuture<byte[][]>() {
+			@Override
+			protected byte[][] convert(byte[] reply) throws IOException {
+				if (reply == null)
+					throw new IOException("MM server failed to search in batch.");
+				ByteBuffer bb = ByteBuffer.wrap(reply);
+				byte[][] r = new byte[bb.getInt()][];
+				for (int i = 0; i < r.length; i++) {
+					int len = bb.getInt();
+					if (len >= 0) {
+						r[i] = new byte[len];
+						bb.get(r[i]);
+					}
+				}
+				return r;
+			}
+		};
+		return she.getMux(conf.getMuxConns(), conf.getMuxWindow()).send(f, header, bos.size(), 
+				bos.toByteArray());
+	}
+	
+	/**
+	 * 通过多路复用连接读取,不等待回复,同一连接上可以有很多未完成的读
+	 * @param info	一个文件的元信息,没有拼接的
+	 * @return		完成时得到文件内容,文件不存在时为null
+	 */
+	public Future<byte[]> asyncSearchByInfo(String info, SocketHashEntry she) throws IOException {
+		byte[] header = new byte[4];
+		header[0] = ActionType.SEARCH;
+		header[1] = (byte) info.getBytes().length;
+		header[3] = ActionType.MUX;
+		
+		return she.getMux(conf.getMuxConns(), conf.getMuxWindow()).send(new MMFuture<byte[]>(), 
+				header, -1, info.getBytes());
+	}
+	
 	/**
 	 * 从输入流中读取count个字节
 	 * @param count
@@ -575,6 +1297,12 @@ public class PhotoClient {
 				for (SEntry e : s.map.values()) {
 					e.sock.close();
 				}
+				if (s.muxes != null) {
+					for (MuxConnection m : s.muxes) {
+						if (m != null)
+							m.close(null);
+					}
+				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -9,4 +9,24 @@ public class ActionType {
 	public static final byte DELSET = 3;
 	public static final byte ASYNCSTORE = 4;
 	public static final byte SERVERINFO = 5;
+	//带请求号的异步写,写入完成后服务端在同一连接上回复: 请求号(long) + 长度(int) + INFO
+	public static final byte ASYNCSTOREACK = 6;
+	//批量读: 头部之后是长度(int)和若干个 元信息长度(int) + 元信息,
+	//回复为长度(int) + 个数(int) + 若干个 内容长度(int) + 内容,不存在的对象长度为-1
+	public static final byte MSEARCH = 7;
+	//批量写: 头部之后是长度(int)和若干个 集合长度(byte) + md5长度(byte) + 内容长度(int) + 集合 + md5 + 内容,
+	//回复为长度(int) + 个数(int) + 若干个 元信息长度(int) + 元信息
+	public static final byte MSTORE = 8;
+	//流式写: 与SYNCSTORE格式相同,但是内容按段读出后直接写入块文件,不缓冲整个对象,不能带MUX标志
+	public static final byte STREAMSTORE = 9;
+	//删除一个对象在本节点上的副本: 头部为 DEL,集合长度,md5长度,之后是集合 + md5,
+	//回复为长度(int) + 去掉的元信息(用#拼接),失败时长度为-1
+	public static final byte DEL = 10;
+	
+	//头部第4个字节的标志: 头部之后是请求号(long),回复为请求号 + 长度(int) + 内容,
+	//同一连接上可以有多个未完成的请求,回复可能乱序
+	public static final byte MUX = 0x01;
+	
+	//回复长度为BUSY表示服务端写队列已满,请求没有被接受
+	public static final int BUSY = -2;
 }
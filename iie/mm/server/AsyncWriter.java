@@ -0,0 +1,214 @@
+package iie.mm.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ingest engine of ASYNCSTORE requests.
+ *
+ * A fixed number of shards, each has one WriteThread and a queue bounded by
+ * the bytes of queued contents. Tasks are sharded by set, so that writes of
+ * one set keep their order and do not contend for the same StoreSetContext.
+ *
+ * When a shard is full, submit() either blocks the caller (thus the caller
+ * stops reading its socket and TCP pushes back on the client), or returns
+ * false immediately (BUSY policy, and always in NIO mode). A plain ASYNCSTORE has no reply to carry
+ * BUSY, so the caller then stores the object itself, which slows down that
+ * client only.
+ */
+public class AsyncWriter {
+	public static class Shard {
+		private final int id;
+		private final long maxBytes;
+		private final LinkedList<WriteTask> queue = new LinkedList<WriteTask>();
+		private long bytes = 0;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notEmpty = lock.newCondition();
+		private final Condition notFull = lock.newCondition();
+
+		// metrics
+		private long maxDepth = 0;
+
+		Shard(int id, long maxBytes) {
+			this.id = id;
+			this.maxBytes = maxBytes;
+		}
+
+		/**
+		 * Enqueue the task. A task larger than the whole budget is accepted when
+		 * the queue is empty, otherwise it could never be written.
+		 *
+		 * @return false if the shard is full and we should not wait (any more)
+		 */
+		boolean offer(WriteTask t, long timeoutNanos) throws InterruptedException {
+			int len = t.getClen();
+
+			lock.lock();
+			try {
+				if (bytes > 0 && bytes + len > maxBytes) {
+					ServerProfile.asyncBlocked.incrementAndGet();
+					while (bytes > 0 && bytes + len > maxBytes) {
+						if (timeoutNanos <= 0)
+							return false;
+						timeoutNanos = notFull.awaitNanos(timeoutNanos);
+					}
+				}
+				t.setEnqueueTime(System.nanoTime());
+				queue.add(t);
+				bytes += len;
+				if (queue.size() > maxDepth)
+					maxDepth = queue.size();
+				notEmpty.signal();
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		WriteTask take() throws InterruptedException {
+			WriteTask t;
+
+			lock.lock();
+			try {
+				while (queue.isEmpty())
+					notEmpty.await();
+				t = queue.removeFirst();
+				bytes -= t.getClen();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			long wait = System.nanoTime() - t.getEnqueueTime();
+			ServerProfile.asyncDequeued.incrementAndGet();
+			ServerProfile.asyncWaitNanos.addAndGet(wait);
+			long max;
+			while (wait > (max = ServerProfile.asyncMaxWaitNanos.get())) {
+				if (ServerProfile.asyncMaxWaitNanos.compareAndSet(max, wait))
+					break;
+			}
+			return t;
+		}
+
+		/**
+		 * Drop all the queued tasks of the set, it is being deleted.
+		 */
+		int drop(String set) {
+			List<WriteTask> dropped = new ArrayList<WriteTask>();
+
+			lock.lock();
+			try {
+				Iterator<WriteTask> iter = queue.iterator();
+				while (iter.hasNext()) {
+					WriteTask t = iter.next();
+					if (t.getSet().equals(set)) {
+						iter.remove();
+						bytes -= t.getClen();
+						dropped.add(t);
+					}
+				}
+				if (dropped.size() > 0)
+					notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			// tell the waiting clients that these writes failed
+			for (WriteTask t : dropped) {
+				if (t.getAck() != null)
+					t.getAck().done(t, null);
+			}
+			return dropped.size();
+		}
+
+		public String getStats() {
+			lock.lock();
+			try {
+				return "shard " + id + ": depth " + queue.size() + " (max " + maxDepth + "), " +
+						bytes + "/" + maxBytes + " B";
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	public static final int BLOCK = 0;
+	public static final int BUSY = 1;
+
+	private Shard[] shards;
+	private int policy;
+	private AtomicLong rejected = new AtomicLong(0);
+
+	public AsyncWriter(ServerConf conf) {
+		int n = conf.getAsync_workers();
+		if (n <= 0)
+			n = Math.max(2, conf.getStoreArray().size() * 2);
+		shards = new Shard[n];
+		// the budgets of all shards add up to -aqb. Do not round a shard up to
+		// the block size: n * blockSize may be far more than -aqb, and a task
+		// larger than its shard budget is still accepted when the shard is empty
+		long perShard = Math.max(1, conf.getAsync_queue_bytes() / n);
+		policy = conf.isAsync_busy() ? BUSY : BLOCK;
+		for (int i = 0; i < n; i++) {
+			shards[i] = new Shard(i, perShard);
+			Thread t = new Thread(new WriteThread(conf, shards[i]), "MM-AsyncWriter-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private Shard shardFor(String set) {
+		return shards[(set.hashCode() & 0x7fffffff) % shards.length];
+	}
+
+	/**
+	 * Submit a write task. With BLOCK policy it waits until the shard has room,
+	 * with BUSY policy it returns false if the shard is full.
+	 */
+	public boolean submit(WriteTask t) {
+		return submit(t, policy == BLOCK);
+	}
+
+	/**
+	 * Submit a write task, return false at once if the shard is full and
+	 * wait is false. NIO workers are shared by all connections and must not
+	 * wait here.
+	 */
+	public boolean submit(WriteTask t, boolean wait) {
+		try {
+			if (shardFor(t.getSet()).offer(t, wait ? Long.MAX_VALUE : 0))
+				return true;
+		} catch (InterruptedException e) {
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Drop the queued tasks of a deleted set.
+	 */
+	public void dropSet(String set) {
+		int n = shardFor(set).drop(set);
+		if (n > 0)
+			System.out.println("Drop " + n + " queued async writes of deleted set " + set);
+	}
+
+	public String getStats() {
+		StringBuffer sb = new StringBuffer();
+		long n = ServerProfile.asyncDequeued.longValue();
+
+		sb.append(" Async Writes Done/Blocked/Rejected: " + n + "/" +
+				ServerProfile.asyncBlocked.longValue() + "/" + rejected.longValue() + "\n");
+		sb.append(" Async Queue Wait Avg/Max (ms): " +
+				(n == 0 ? 0 : (double)ServerProfile.asyncWaitNanos.longValue() / n / 1000000) + "/" +
+				TimeUnit.NANOSECONDS.toMillis(ServerProfile.asyncMaxWaitNanos.longValue()) + "\n");
+		for (Shard s : shards) {
+			sb.append("  " + s.getStats() + "\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,285 @@
+package iie.mm.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of opened block files for reading.
+ *
+ * Sealed blocks (blocks that will not be appended any more) are mapped with
+ * MappedByteBuffer, thus reads of hot blocks are served from page cache
+ * without any syscall. Each reader gets its own slice of the mapping, so there
+ * is no shared position and no lock on the read path.
+ *
+ * The cache is LRU bounded by both total mapped bytes and open descriptors.
+ * Evicted blocks are unmapped and closed as soon as the last reader releases
+ * them.
+ *
+ * The cache lock only covers the lookup and the reference counts. Files are
+ * opened and mapped outside of it, so a slow open or map on a cold disk does
+ * not stall the readers of other blocks.
+ */
+public class BlockCache {
+	public static class Block {
+		public final String path;
+		private RandomAccessFile raf;
+		private FileChannel fc;
+		private MappedByteBuffer mbb = null;
+		private long mapped = 0;
+		// a sealed acquire has decided whether to map it
+		private boolean mapTried = false;
+		private int refs = 0;
+		private boolean evicted = false;
+		private BlockCache cache;
+
+		private Block(BlockCache cache, String path) throws IOException {
+			this.cache = cache;
+			this.path = path;
+			raf = new RandomAccessFile(path, "r");
+			fc = raf.getChannel();
+		}
+
+		public FileChannel getChannel() {
+			return fc;
+		}
+
+		/**
+		 * Get a private slice of the mapping, or null if this block is not mapped
+		 * or the range is beyond the mapped size (the file was appended).
+		 */
+		public ByteBuffer slice(long offset, int length) {
+			if (mbb == null || offset < 0 || offset + length > mapped)
+				return null;
+			ByteBuffer bb = mbb.duplicate();
+			bb.position((int)offset);
+			bb.limit((int)offset + length);
+			return bb.slice();
+		}
+
+		/**
+		 * Positional read of dst.remaining() bytes at position. It does not touch
+		 * the channel position, so any number of threads can read one block in
+		 * parallel without lock. Short reads are retried until dst is full.
+		 */
+		public void readFully(ByteBuffer dst, long position) throws IOException {
+			while (dst.hasRemaining()) {
+				int n = fc.read(dst, position);
+				if (n < 0)
+					throw new EOFException("Block " + path + " is truncated, want " + 
+							dst.remaining() + "B @ " + position);
+				position += n;
+			}
+		}
+
+		public void release() {
+			cache.release(this);
+		}
+
+		private void close() {
+			if (mbb != null) {
+				unmap(mbb);
+				mbb = null;
+			}
+			try {
+				raf.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private long maxMappedBytes;
+	private int maxOpenFiles;
+	private long mappedBytes = 0;
+	// access ordered, the eldest entry is the LRU one
+	private LinkedHashMap<String, Block> blocks = new LinkedHashMap<String, Block>(16, 0.75f, true);
+
+	public BlockCache(long maxMappedBytes, int maxOpenFiles) {
+		this.maxMappedBytes = maxMappedBytes;
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	/**
+	 * Get the block file and pin it until release().
+	 *
+	 * @param sealed	if true, the block is mapped if budget permits
+	 */
+	public Block acquire(String path, boolean sealed) throws IOException {
+		List<Block> toClose = null;
+		Block b;
+
+		synchronized (this) {
+			b = blocks.get(path);
+			if (b != null && (!sealed || b.mapTried)) {
+				b.refs++;
+				return b;
+			}
+		}
+
+		// open and map without the lock; a mapping stays valid after its
+		// channel is closed, so it can be installed into another thread's block
+		Block nb = new Block(this, path);
+		MappedByteBuffer mbb = null;
+		long size = 0;
+		try {
+			if (sealed) {
+				size = nb.fc.size();
+				if (size > 0 && size <= Integer.MAX_VALUE && size <= maxMappedBytes)
+					mbb = nb.fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+		} catch (IOException e) {
+			nb.close();
+			throw e;
+		}
+
+		synchronized (this) {
+			b = blocks.get(path);
+			if (b == null) {
+				b = nb;
+				blocks.put(path, b);
+				nb = null;
+			}
+			if (sealed && !b.mapTried) {
+				b.mapTried = true;
+				if (mbb != null) {
+					b.mbb = mbb;
+					b.mapped = size;
+					mappedBytes += size;
+					mbb = null;
+				}
+			}
+			b.refs++;
+			toClose = evict(b);
+		}
+		closeAll(toClose);
+		// lost the race to another thread
+		if (nb != null)
+			nb.close();
+		if (mbb != null)
+			unmap(mbb);
+
+		return b;
+	}
+
+	private void release(Block b) {
+		boolean doClose = false;
+
+		synchronized (this) {
+			b.refs--;
+			if (b.refs == 0 && b.evicted)
+				doClose = true;
+		}
+		if (doClose)
+			b.close();
+	}
+
+	/**
+	 * Evict LRU blocks until we are within budget. Blocks still in use are
+	 * closed by their last release().
+	 */
+	private List<Block> evict(Block keep) {
+		List<Block> r = new ArrayList<Block>();
+		Iterator<Map.Entry<String, Block>> iter = blocks.entrySet().iterator();
+
+		while ((blocks.size() > maxOpenFiles || mappedBytes > maxMappedBytes) && iter.hasNext()) {
+			Block b = iter.next().getValue();
+			if (b == keep)
+				continue;
+			iter.remove();
+			remove(b, r);
+		}
+		return r;
+	}
+
+	private void remove(Block b, List<Block> toClose) {
+		mappedBytes -= b.mapped;
+		b.evicted = true;
+		if (b.refs == 0)
+			toClose.add(b);
+	}
+
+	/**
+	 * Drop all the cached blocks whose path starts with prefix, e.g. on set
+	 * deletion.
+	 */
+	public void invalidate(String prefix) {
+		List<Block> toClose = new ArrayList<Block>();
+
+		synchronized (this) {
+			Iterator<Map.Entry<String, Block>> iter = blocks.entrySet().iterator();
+			while (iter.hasNext()) {
+				Block b = iter.next().getValue();
+				if (b.path.startsWith(prefix)) {
+					iter.remove();
+					remove(b, toClose);
+				}
+			}
+		}
+		closeAll(toClose);
+	}
+
+	/**
+	 * Drop one cached block, e.g. when a compacted block is deleted.
+	 */
+	public void invalidateBlock(String path) {
+		List<Block> toClose = new ArrayList<Block>();
+
+		synchronized (this) {
+			Block b = blocks.remove(path);
+			if (b != null)
+				remove(b, toClose);
+		}
+		closeAll(toClose);
+	}
+
+	public synchronized long getMappedBytes() {
+		return mappedBytes;
+	}
+
+	public synchronized int getOpenFiles() {
+		return blocks.size();
+	}
+
+	private static void closeAll(List<Block> l) {
+		if (l != null) {
+			for (Block b : l)
+				b.close();
+		}
+	}
+
+	/**
+	 * Unmap now rather than waiting for GC, otherwise the address space and
+	 * the deleted files are held for a long time.
+	 */
+	private static void unmap(MappedByteBuffer mbb) {
+		try {
+			// java 9+
+			Class<?> uc = Class.forName("sun.misc.Unsafe");
+			Field f = uc.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Method m = uc.getMethod("invokeCleaner", ByteBuffer.class);
+			m.invoke(f.get(null), mbb);
+		} catch (Exception e) {
+			try {
+				// java 6-8
+				Method cm = mbb.getClass().getMethod("cleaner");
+				cm.setAccessible(true);
+				Object cleaner = cm.invoke(mbb);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+			} catch (Exception e1) {
+				// leave it to GC
+			}
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package iie.mm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency stress test of the block read path.
+ *
+ * It writes a block of variable length records whose bytes are a function of
+ * their absolute offset, then lets many threads read random records from the
+ * same block at the same time, and verifies every byte.
+ *
+ * Modes:
+ *  pread	BlockCache positional reads (block not mapped)
+ *  mmap	BlockCache slices of the mapped block
+ *  raf		the old shared RandomAccessFile seek+read, to show the race
+ *
+ * Usage: BlockReadStress [-th 64] [-nr 20000] [-blk 64] [-dir /tmp] [-mode pread,mmap,raf]
+ */
+public class BlockReadStress {
+	private static final int MAX_RECORD = 64 * 1024;
+
+	static byte expected(long pos) {
+		return (byte)(pos * 31 + (pos >>> 9));
+	}
+
+	static interface Reader {
+		void read(byte[] buf, long offset) throws IOException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = 64, nr = 20000;
+		long blkSize = 64L * 1024 * 1024;
+		String dir = System.getProperty("java.io.tmpdir");
+		String modes = "pread,mmap,raf";
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-th"))
+				threads = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-nr"))
+				nr = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-blk"))
+				blkSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
+			else if (args[i].equals("-dir"))
+				dir = args[i + 1];
+			else if (args[i].equals("-mode"))
+				modes = args[i + 1];
+		}
+
+		// build the block
+		File f = new File(dir, "mm_stress_b0");
+		List<long[]> records = new ArrayList<long[]>();
+		Random rand = new Random(1);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(0);
+		byte[] buf = new byte[MAX_RECORD];
+		long off = 0;
+		while (off + MAX_RECORD <= blkSize) {
+			int len = 1 + rand.nextInt(MAX_RECORD);
+			for (int i = 0; i < len; i++)
+				buf[i] = expected(off + i);
+			raf.write(buf, 0, len);
+			records.add(new long[]{off, len});
+			off += len;
+		}
+		raf.close();
+		System.out.println("Block " + f + " " + off + "B, " + records.size() + " records, " +
+				threads + " threads x " + nr + " reads");
+
+		boolean failed = false;
+		for (String mode : modes.split(",")) {
+			long errors = run(mode, f, records, threads, nr);
+			if (errors > 0 && !mode.equals("raf"))
+				failed = true;
+		}
+		f.delete();
+		System.exit(failed ? 1 : 0);
+	}
+
+	static long run(String mode, File f, final List<long[]> records, int threads, final int nr)
+			throws Exception {
+		final BlockCache bc = new BlockCache(Long.MAX_VALUE, 16);
+		final BlockCache.Block b = bc.acquire(f.getPath(), mode.equals("mmap"));
+		final RandomAccessFile shared = new RandomAccessFile(f, "r");
+		Reader reader;
+
+		if (mode.equals("raf")) {
+			reader = new Reader() {
+				public void read(byte[] buf, long offset) throws IOException {
+					shared.seek(offset);
+					shared.read(buf);
+				}
+			};
+		} else if (mode.equals("mmap")) {
+			reader = new Reader() {
+				public void read(byte[] buf, long offset) throws IOException {
+					b.slice(offset, buf.length).get(buf);
+				}
+			};
+		} else {
+			reader = new Reader() {
+				public void read(byte[] buf, long offset) throws IOException {
+					b.readFully(ByteBuffer.wrap(buf), offset);
+				}
+			};
+		}
+
+		final AtomicLong errors = new AtomicLong(0);
+		final AtomicLong bytes = new AtomicLong(0);
+		final Reader r = reader;
+		List<Thread> ts = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final long seed = i;
+			ts.add(new Thread() {
+				public void run() {
+					Random rand = new Random(seed);
+					for (int j = 0; j < nr; j++) {
+						long[] rec = records.get(rand.nextInt(records.size()));
+						byte[] buf = new byte[(int)rec[1]];
+						try {
+							r.read(buf, rec[0]);
+							for (int k = 0; k < buf.length; k++) {
+								if (buf[k] != expected(rec[0] + k)) {
+									errors.incrementAndGet();
+									break;
+								}
+							}
+						} catch (IOException e) {
+							errors.incrementAndGet();
+						}
+						bytes.addAndGet(buf.length);
+					}
+				}
+			});
+		}
+		long begin = System.nanoTime();
+		for (Thread t : ts)
+			t.start();
+		for (Thread t : ts)
+			t.join();
+		long dur = System.nanoTime() - begin;
+
+		b.release();
+		bc.invalidate(f.getPath());
+		shared.close();
+		System.out.println(String.format("%-6s reads %d, corrupt %d, %.0f reads/s, %.1f MB/s", mode,
+				(long)threads * nr, errors.get(), (double)threads * nr * 1e9 / dur,
+				bytes.get() * 1e9 / dur / 1024 / 1024));
+		return errors.get();
+	}
+}
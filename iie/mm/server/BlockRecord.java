@@ -0,0 +1,256 @@
+package iie.mm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk format of the records in a block file. Each object is written as
+ * a header followed by its content:
+ *
+ *   int magic, byte version, byte flags, byte setlen, byte md5len,
+ *   int length, int crc32(content), set, md5, content
+ *
+ * INFOs point at the content, not at the header, so reads do not look at
+ * the header at all. With the headers a block can be scanned and verified
+ * without Redis (see Reader).
+ *
+ * Blocks written before this format are raw concatenated contents. They do
+ * not start with the magic, and new records are never appended to them, so
+ * a block is either formatted or legacy as a whole.
+ */
+public class BlockRecord {
+	public static final int MAGIC = 0x4D4D5242;		// "MMRB"
+	public static final byte VERSION = 1;
+	public static final int FIXED_LEN = 16;
+
+	// a whole object
+	public static final byte FLAG_OBJECT = 0;
+	// a segment of a streamed object, see StorePhoto.StreamState
+	public static final byte FLAG_SEGMENT = 0x01;
+	// the segment manifest of a streamed object, INFO type 2 points at it
+	public static final byte FLAG_MANIFEST = 0x02;
+	// written by DEL, the content is the removed INFOs joined by '#'; no INFO
+	// points at it, it keeps MetaRebuild from bringing the deleted records back
+	public static final byte FLAG_TOMBSTONE = 0x04;
+
+	public static class Record {
+		public String set, md5;
+		public byte flags;
+		// position of the header and of the content in the block
+		public long position, offset;
+		public int length;
+		public int crc;
+		// content checksum matched, only set if the reader verifies
+		public boolean valid = true;
+
+		public boolean isSegment() {
+			return (flags & FLAG_SEGMENT) != 0;
+		}
+
+		public boolean isManifest() {
+			return (flags & FLAG_MANIFEST) != 0;
+		}
+
+		public boolean isTombstone() {
+			return (flags & FLAG_TOMBSTONE) != 0;
+		}
+
+		public String toString() {
+			return set + "@" + md5 + " flags=" + flags + " offset=" + offset + " length=" + length +
+					(valid ? "" : " BAD CRC");
+		}
+	}
+
+	public static int headerLength(String set, String md5) {
+		return FIXED_LEN + set.length() + md5.length();
+	}
+
+	public static ByteBuffer header(String set, String md5, byte flags, byte[] content, int off, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(content, off, len);
+		return header(set, md5, flags, len, (int)crc.getValue());
+	}
+
+	public static ByteBuffer header(String set, String md5, byte flags, int len, int crc) {
+		byte[] s = set.getBytes();
+		byte[] m = md5.getBytes();
+		ByteBuffer bb = ByteBuffer.allocate(FIXED_LEN + s.length + m.length);
+
+		bb.putInt(MAGIC);
+		bb.put(VERSION);
+		bb.put(flags);
+		bb.put((byte)s.length);
+		bb.put((byte)m.length);
+		bb.putInt(len);
+		bb.putInt(crc);
+		bb.put(s);
+		bb.put(m);
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * @return true if f has content written before the record format
+	 */
+	public static boolean isLegacy(File f) throws IOException {
+		if (f.length() == 0)
+			return false;
+		if (f.length() < 4)
+			return true;
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			return raf.readInt() != MAGIC;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Sequential reader of the records of a block. Reading stops at the end
+	 * of the block, or at the first broken header (e.g. a torn write at the
+	 * tail), whose position is kept in brokenAt.
+	 */
+	public static class Reader {
+		private RandomAccessFile raf;
+		private FileChannel fc;
+		private boolean verify;
+		private long pos = 0;
+		private long size;
+		private long brokenAt = -1;
+		private ByteBuffer fixed = ByteBuffer.allocate(FIXED_LEN);
+		private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+		/**
+		 * @param verify	read the contents and check their CRC
+		 */
+		public Reader(File f, boolean verify) throws IOException {
+			this.raf = new RandomAccessFile(f, "r");
+			this.fc = raf.getChannel();
+			this.size = fc.size();
+			this.verify = verify;
+		}
+
+		/**
+		 * @return the next record, or null at the end of the block
+		 */
+		public Record next() throws IOException {
+			if (brokenAt >= 0 || pos >= size)
+				return null;
+			fixed.clear();
+			if (!readFully(fixed, pos)) {
+				brokenAt = pos;
+				return null;
+			}
+			fixed.flip();
+			int setlen, md5len;
+			Record r = new Record();
+
+			if (fixed.getInt() != MAGIC || fixed.get() != VERSION) {
+				brokenAt = pos;
+				return null;
+			}
+			r.flags = fixed.get();
+			setlen = fixed.get() & 0xff;
+			md5len = fixed.get() & 0xff;
+			r.length = fixed.getInt();
+			r.crc = fixed.getInt();
+			r.position = pos;
+			r.offset = pos + FIXED_LEN + setlen + md5len;
+			if (r.length < 0 || r.offset + r.length > size) {
+				brokenAt = pos;
+				return null;
+			}
+			ByteBuffer names = ByteBuffer.allocate(setlen + md5len);
+			readFully(names, pos + FIXED_LEN);
+			r.set = new String(names.array(), 0, setlen);
+			r.md5 = new String(names.array(), setlen, md5len);
+			if (verify)
+				r.valid = checksum(r.offset, r.length) == r.crc;
+			pos = r.offset + r.length;
+			return r;
+		}
+
+		/**
+		 * @return the content of a record returned by next()
+		 */
+		public byte[] read(Record r) throws IOException {
+			ByteBuffer bb = ByteBuffer.allocate(r.length);
+			if (!readFully(bb, r.offset))
+				throw new IOException("Record " + r + " is truncated.");
+			return bb.array();
+		}
+
+		/**
+		 * @return position of the first broken header, or -1
+		 */
+		public long getBrokenAt() {
+			return brokenAt;
+		}
+
+		private int checksum(long off, int len) throws IOException {
+			CRC32 crc = new CRC32();
+
+			while (len > 0) {
+				buf.clear();
+				buf.limit(Math.min(len, buf.capacity()));
+				if (!readFully(buf, off))
+					return ~0;
+				crc.update(buf.array(), 0, buf.limit());
+				off += buf.limit();
+				len -= buf.limit();
+			}
+			return (int)crc.getValue();
+		}
+
+		private boolean readFully(ByteBuffer bb, long off) throws IOException {
+			while (bb.hasRemaining()) {
+				int n = fc.read(bb, off);
+				if (n < 0)
+					return false;
+				off += n;
+			}
+			return true;
+		}
+
+		public void close() throws IOException {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Dump and verify the records of block files.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: BlockRecord <block file> ...");
+			return;
+		}
+		for (String a : args) {
+			File f = new File(a);
+			if (isLegacy(f)) {
+				System.out.println(a + ": legacy block without record headers.");
+				continue;
+			}
+			Reader r = new Reader(f, true);
+			int n = 0, bad = 0;
+			Record rec;
+
+			try {
+				while ((rec = r.next()) != null) {
+					System.out.println(rec);
+					n++;
+					if (!rec.valid)
+						bad++;
+				}
+			} finally {
+				r.close();
+			}
+			System.out.println(a + ": " + n + " records, " + bad + " bad" +
+					(r.getBrokenAt() >= 0 ? ", broken header @ " + r.getBrokenAt() : ""));
+		}
+	}
+}
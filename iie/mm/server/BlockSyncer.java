@@ -0,0 +1,204 @@
+package iie.mm.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes appended block data durable according to the configured mode:
+ *
+ *   NONE		never fsync, leave it to the page cache (the old behaviour);
+ *   PERIODIC	a background thread forces the dirty blocks every interval
+ *   			ms, or earlier once bytes are written since the last sync;
+ *   GROUP		writers wait in sync() until a force covers their appends,
+ *   			one writer forces the blocks dirtied by all of them.
+ *
+ * Writers report their appends with written(), and sync() before they
+ * commit the metadata, so an acknowledged INFO never points at data that is
+ * not on disk in GROUP mode.
+ */
+public class BlockSyncer {
+	public static final int NONE = 0;
+	public static final int PERIODIC = 1;
+	public static final int GROUP = 2;
+
+	private int mode;
+	private long interval;
+	private long bytes;
+
+	// writer key (e.g. a StoreSetContext) -> channel of its current block
+	private Map<Object, FileChannel> dirty = new IdentityHashMap<Object, FileChannel>();
+	private long dirtyBytes = 0;
+	// appends are numbered, synced is the last one made durable
+	private long seq = 0;
+	private long synced = 0;
+	private boolean syncing = false;
+	private IOException error = null;
+	private long errorSeq = 0;
+	private long syncs = 0, syncNanos = 0;
+
+	public BlockSyncer(int mode, long interval, long bytes) {
+		this.mode = mode;
+		this.interval = interval;
+		this.bytes = bytes;
+		if (mode == PERIODIC) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					periodic();
+				}
+			}, "MM-BlockSyncer");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public static int parseMode(String mode) {
+		if (mode.equalsIgnoreCase("none"))
+			return NONE;
+		if (mode.equalsIgnoreCase("periodic"))
+			return PERIODIC;
+		if (mode.equalsIgnoreCase("group"))
+			return GROUP;
+		throw new IllegalArgumentException("Unknown durability mode: " + mode);
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public String getModeName() {
+		return mode == NONE ? "none" : (mode == PERIODIC ? "periodic" : "group");
+	}
+
+	/**
+	 * n bytes were appended to fc by the writer key.
+	 */
+	public void written(Object key, FileChannel fc, long n) {
+		if (mode == NONE)
+			return;
+		synchronized (this) {
+			dirty.put(key, fc);
+			dirtyBytes += n;
+			seq++;
+			if (mode == PERIODIC && dirtyBytes >= bytes)
+				notifyAll();
+		}
+	}
+
+	/**
+	 * The writer key is going to close fc (it switches to a new block), force
+	 * it now since it can not be forced after close.
+	 */
+	public void closing(Object key, FileChannel fc) throws IOException {
+		if (mode == NONE)
+			return;
+		fc.force(false);
+		synchronized (this) {
+			if (dirty.get(key) == fc)
+				dirty.remove(key);
+		}
+	}
+
+	/**
+	 * In GROUP mode, wait until all the appends reported before are durable.
+	 * Otherwise return at once.
+	 */
+	public void sync() throws IOException {
+		if (mode != GROUP)
+			return;
+		long target;
+		List<FileChannel> fcs;
+
+		synchronized (this) {
+			long mine = seq;
+			while (true) {
+				if (synced >= mine)
+					return;
+				if (error != null && errorSeq >= mine)
+					throw error;
+				if (!syncing)
+					break;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			// we are the leader, force all that is dirty now
+			syncing = true;
+			target = seq;
+			fcs = new ArrayList<FileChannel>(dirty.values());
+			dirty.clear();
+			dirtyBytes = 0;
+		}
+		force(fcs, target);
+		synchronized (this) {
+			if (error != null && errorSeq == target)
+				throw error;
+		}
+	}
+
+	private void force(List<FileChannel> fcs, long target) {
+		IOException ex = null;
+		long begin = System.nanoTime();
+
+		for (FileChannel fc : fcs) {
+			try {
+				fc.force(false);
+			} catch (ClosedChannelException e) {
+				// the block was forced by closing()
+			} catch (IOException e) {
+				ex = e;
+			}
+		}
+		synchronized (this) {
+			syncs++;
+			syncNanos += System.nanoTime() - begin;
+			if (ex == null)
+				synced = Math.max(synced, target);
+			else {
+				error = ex;
+				errorSeq = target;
+			}
+			syncing = false;
+			notifyAll();
+		}
+	}
+
+	private void periodic() {
+		while (true) {
+			long target;
+			List<FileChannel> fcs;
+
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + interval;
+				long left;
+				while (dirtyBytes < bytes && (left = deadline - System.currentTimeMillis()) > 0) {
+					try {
+						wait(left);
+					} catch (InterruptedException e) {
+					}
+				}
+				if (dirty.isEmpty())
+					continue;
+				target = seq;
+				fcs = new ArrayList<FileChannel>(dirty.values());
+				dirty.clear();
+				dirtyBytes = 0;
+			}
+			force(fcs, target);
+		}
+	}
+
+	public String getStats() {
+		synchronized (this) {
+			return " Durability " + getModeName() + ": " + syncs + " syncs, avg " +
+					(syncs == 0 ? 0 : syncNanos / syncs / 1000) + " us, synced " + synced + "/" + seq +
+					(error == null ? "" : ", last error: " + error.getMessage());
+		}
+	}
+}
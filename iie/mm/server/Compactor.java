@@ -0,0 +1,384 @@
+package iie.mm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Reclaims the space of dead records in sealed blocks of this node. A record
+ * is dead once no INFO in Redis points at it, e.g. it was overwritten, its
+ * metadata was lost or it was left behind by a failed write.
+ *
+ * Every interval the compactor scans the sealed blocks (below the current
+ * block of their set and disk, and not modified within the grace period).
+ * The md5s of a block's records are looked up with one pipeline, and a block
+ * whose dead bytes reach the configured percentage is compacted: its live
+ * records are copied to the current block of the same set and disk, and
+ * each INFO is repointed with a Lua script that replaces the old INFO in the
+ * chain only if it is still there, so concurrent changes of the object win.
+ * The old block is deleted a grace period later, after lookup caches that
+ * may still hold the old INFO have expired, and only if nothing points at it
+ * any more.
+ *
+ * Copies are throttled to the configured bytes per second (reads and writes
+ * counted), so foreground requests keep most of the disk bandwidth.
+ *
+ * Sets with a ttl are left to Expirer. Legacy blocks without record headers
+ * are never compacted. Segments of a streamed object are addressed by its
+ * manifest, not by Redis; a block with segments of a live chunked object is
+ * left alone, and so is a block with segments of a stream still being
+ * uploaded (it has no INFO yet, see StorePhoto.isStreamBlock).
+ *
+ * A tombstone written by DEL has no INFO either. It is copied like a live
+ * record as long as the block of the record it deletes is still there, so
+ * MetaRebuild never brings that record back.
+ */
+public class Compactor implements Runnable {
+	// replace ARGV[2] by ARGV[3] in the INFO chain of KEYS[1]/ARGV[1] if it is there
+	private static final String REPLACE_INFO =
+			"local v = redis.call('hget', KEYS[1], ARGV[1]) " +
+			"if not v then return '0' end " +
+			"local s, e = string.find('#' .. v .. '#', '#' .. ARGV[2] .. '#', 1, true) " +
+			"if not s then return '0' end " +
+			"redis.call('hset', KEYS[1], ARGV[1], string.sub(v, 1, s - 1) .. ARGV[3] .. string.sub(v, e - 1)) " +
+			"return '1'";
+
+	private static class Scan {
+		List<BlockRecord.Record> live = new ArrayList<BlockRecord.Record>();
+		// tombstones that are still needed
+		List<BlockRecord.Record> tombs = new ArrayList<BlockRecord.Record>();
+		long size = 0, liveBytes = 0;
+		// holds segments of a live chunked object
+		boolean pinned = false;
+	}
+
+	// a compacted block waiting to be deleted
+	private static class Retired {
+		String set, disk;
+		long block;
+		File f;
+		long deadline;
+	}
+
+	private ServerConf conf;
+	private StorePhoto sp = null;
+	private String sha = null;
+	private long rate;
+	private long grace;
+	private int deadPercent;
+	private long nextFree = 0;
+
+	private List<Retired> retired = new ArrayList<Retired>();
+	private Set<String> retiredPaths = new HashSet<String>();
+
+	private long runs = 0, scanned = 0, compacted = 0, pinned = 0;
+	private long moved = 0, movedBytes = 0, lost = 0, freed = 0;
+
+	public Compactor(ServerConf conf) {
+		this.conf = conf;
+		this.rate = conf.getCompact_rate();
+		this.grace = conf.getCompact_grace() * 1000;
+		this.deadPercent = conf.getCompact_dead_percent();
+	}
+
+	@Override
+	public void run() {
+		sp = new StorePhoto(conf);
+
+		while (true) {
+			try {
+				Thread.sleep(conf.getCompact_interval() * 1000);
+			} catch (InterruptedException e) {
+			}
+			try {
+				compactAll();
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static String path(String set, String disk, long block) {
+		return disk + "/" + StorePhoto.destRoot + set + "/b" + block;
+	}
+
+	/**
+	 * One pass over all the disks.
+	 */
+	public void compactAll() throws IOException {
+		Jedis jedis = new RedisFactory(conf).getDefaultInstance();
+		if (jedis == null) {
+			System.out.println("Get default jedis instance failed, skip compaction.");
+			return;
+		}
+		try {
+			sha = jedis.scriptLoad(REPLACE_INFO);
+			deleteRetired(jedis);
+
+			String[] disks = sp.getDiskArray();
+			for (int i = 0; i < disks.length; i++) {
+				File[] sets = new File(disks[i] + "/" + StorePhoto.destRoot).listFiles();
+				if (sets == null)
+					continue;
+				for (File sd : sets) {
+					if (!sd.isDirectory())
+						continue;
+					String set = sd.getName();
+					String cur = jedis.get(set + ".blk." + conf.getNodeName() + "." + disks[i]);
+					File[] bfs = sd.listFiles();
+					// copies would live longer than the ttl of the set, its blocks are expired whole by Expirer
+					if (cur == null || bfs == null || jedis.exists(set + ".ttl"))
+						continue;
+					Arrays.sort(bfs);
+					for (File bf : bfs) {
+						long block = MetaRebuild.blockNumber(bf.getName());
+						if (block < 0 || block >= Long.parseLong(cur))
+							continue;
+						synchronized (this) {
+							if (retiredPaths.contains(bf.getPath()))
+								continue;
+						}
+						if (System.currentTimeMillis() - bf.lastModified() < grace || BlockRecord.isLegacy(bf))
+							continue;
+						compactBlock(jedis, set, i, disks[i], block, bf);
+					}
+				}
+			}
+			synchronized (this) {
+				runs++;
+			}
+		} catch (JedisException e) {
+			System.out.println("Compaction failed: " + e.getMessage());
+			jedis = RedisFactory.putBrokenInstance(jedis);
+		} finally {
+			RedisFactory.putInstance(jedis);
+			sp.releaseJedis();
+		}
+	}
+
+	private static String info(BlockRecord.Record rec, String disk, long block) {
+		return (rec.isManifest() ? "2@" : "1@") + rec.set + "@" + ServerConf.serverId + "@" + block + "@" +
+				rec.offset + "@" + rec.length + "@" + disk;
+	}
+
+	/**
+	 * Find the records of a block that are still referenced from Redis.
+	 */
+	private Scan scan(Jedis jedis, String disk, long block, File f) throws IOException {
+		Scan s = new Scan();
+		List<BlockRecord.Record> recs = new ArrayList<BlockRecord.Record>();
+		List<Response<String>> chains = new ArrayList<Response<String>>();
+		BlockRecord.Reader r = new BlockRecord.Reader(f, false);
+		BlockRecord.Record rec;
+
+		try {
+			s.size = f.length();
+			Pipeline p = jedis.pipelined();
+			while ((rec = r.next()) != null) {
+				if (rec.isTombstone()) {
+					if (StorePhoto.isTombstoneLive(new String(r.read(rec)), path(rec.set, disk, block))) {
+						s.tombs.add(rec);
+						s.liveBytes += rec.offset - rec.position + rec.length;
+					}
+					continue;
+				}
+				recs.add(rec);
+				chains.add(p.hget(rec.set, rec.md5));
+			}
+			p.sync();
+		} finally {
+			r.close();
+		}
+
+		for (int i = 0; i < recs.size(); i++) {
+			rec = recs.get(i);
+			String chain = chains.get(i).get();
+			if (chain == null)
+				continue;
+			if (rec.isSegment()) {
+				for (String e : chain.split("#")) {
+					String[] es = e.split("@");
+					if (es.length == 7 && es[0].equals("2") && Long.parseLong(es[2]) == ServerConf.serverId)
+						s.pinned = true;
+				}
+				continue;
+			}
+			if (("#" + chain + "#").contains("#" + info(rec, disk, block) + "#")) {
+				s.live.add(rec);
+				s.liveBytes += rec.offset - rec.position + rec.length;
+			}
+		}
+		return s;
+	}
+
+	private void compactBlock(Jedis jedis, String set, int diskId, String disk, long block, File f)
+			throws IOException {
+		String path = path(set, disk, block);
+		if (StorePhoto.isStreamBlock(path)) {
+			synchronized (this) {
+				pinned++;
+			}
+			return;
+		}
+		Scan s = scan(jedis, disk, block, f);
+
+		// a stream may have reserved a segment here during the scan
+		if (StorePhoto.isStreamBlock(path))
+			s.pinned = true;
+		synchronized (this) {
+			scanned++;
+			if (s.pinned)
+				pinned++;
+		}
+		if (s.pinned || (s.size - s.liveBytes) * 100 < s.size * deadPercent)
+			return;
+
+		// copy the live records, tombstones first (they need no repointing)
+		List<String[]> moves = new ArrayList<String[]>();
+		List<BlockRecord.Record> copies = new ArrayList<BlockRecord.Record>(s.tombs);
+		copies.addAll(s.live);
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			CRC32 crc = new CRC32();
+			for (BlockRecord.Record rec : copies) {
+				byte[] content = new byte[rec.length];
+				throttle(2L * rec.length);
+				raf.seek(rec.offset);
+				raf.readFully(content);
+				crc.reset();
+				crc.update(content, 0, content.length);
+				if ((int)crc.getValue() != rec.crc) {
+					// keep the block, the copies made so far are dead and reclaimed later
+					System.out.println("Bad checksum of " + rec.set + "@" + rec.md5 + " in " + f + ", not compacted.");
+					return;
+				}
+				String to = sp.relocate(set, diskId, rec, content);
+				if (!rec.isTombstone())
+					moves.add(new String[]{rec.set, rec.md5, info(rec, disk, block), to});
+			}
+		} finally {
+			raf.close();
+			sp.releaseJedis();
+		}
+		StorePhoto.getBlockSyncer().sync();
+
+		// repoint the metadata
+		Pipeline p = jedis.pipelined();
+		List<Response<String>> rs = new ArrayList<Response<String>>();
+		for (String[] m : moves)
+			rs.add(p.evalsha(sha, 1, m));
+		p.sync();
+		int n = 0;
+		long bytes = 0;
+		for (int i = 0; i < moves.size(); i++) {
+			String[] m = moves.get(i);
+			if ("1".equals(rs.get(i).get())) {
+				StorePhoto.moved(m[0], m[1], m[2], m[3]);
+				n++;
+				bytes += s.live.get(i).length;
+			}
+		}
+
+		Retired r = new Retired();
+		r.set = set;
+		r.disk = disk;
+		r.block = block;
+		r.f = f;
+		r.deadline = System.currentTimeMillis() + grace;
+		synchronized (this) {
+			compacted++;
+			moved += n;
+			movedBytes += bytes;
+			lost += moves.size() - n;
+			retired.add(r);
+			retiredPaths.add(f.getPath());
+		}
+		System.out.println("Compacted " + f + ": moved " + n + " records (" + bytes + " bytes), " +
+				(s.size - s.liveBytes) + " dead bytes.");
+	}
+
+	/**
+	 * Delete the compacted blocks whose grace period is over. A block that is
+	 * still referenced (e.g. metadata was rebuilt from it meanwhile) is kept,
+	 * and compacted again by a later pass.
+	 */
+	private void deleteRetired(Jedis jedis) {
+		List<Retired> due = new ArrayList<Retired>();
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			Iterator<Retired> iter = retired.iterator();
+			while (iter.hasNext()) {
+				Retired r = iter.next();
+				if (r.deadline <= now) {
+					iter.remove();
+					retiredPaths.remove(r.f.getPath());
+					due.add(r);
+				}
+			}
+		}
+		for (Retired r : due) {
+			if (!r.f.exists())
+				continue;
+			// the INFO of a stream that finished meanwhile is seen by the scan
+			if (StorePhoto.isStreamBlock(path(r.set, r.disk, r.block))) {
+				System.out.println("Compacted block " + r.f + " has segments of an open stream, not deleted.");
+				continue;
+			}
+			try {
+				Scan s = scan(jedis, r.disk, r.block, r.f);
+				if (s.pinned || !s.live.isEmpty()) {
+					System.out.println("Compacted block " + r.f + " is still referenced, not deleted.");
+					continue;
+				}
+			} catch (IOException e) {
+				System.out.println("Scan " + r.f + " failed: " + e.getMessage());
+				continue;
+			}
+			long len = r.f.length();
+			if (r.f.delete()) {
+				StorePhoto.dropBlock(path(r.set, r.disk, r.block));
+				synchronized (this) {
+					freed += len;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait until n more bytes fit in the configured rate.
+	 */
+	private void throttle(long n) {
+		if (rate <= 0)
+			return;
+		long now = System.nanoTime();
+		if (nextFree < now)
+			nextFree = now;
+		nextFree += n * 1000000000L / rate;
+		long ms = (nextFree - now) / 1000000;
+		if (ms > 0) {
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	public synchronized String getStats() {
+		return " Compactor: " + runs + " runs, " + scanned + " blocks scanned, " + compacted + " compacted, " +
+				pinned + " pinned, " + moved + " records moved (" + (movedBytes / 1024) + "KB), " + lost +
+				" lost races, " + retired.size() + " waiting for deletion, " + (freed / 1024 / 1024) + "MB freed";
+	}
+}
@@ -0,0 +1,209 @@
+package iie.mm.server;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server side cache of hot MM object contents, keyed by the 7 fields INFO
+ * string (type@set@serverid@block@offset@length@disk).
+ *
+ * It is a segmented LRU bounded by bytes: new objects enter the probation
+ * segment, and are promoted to the protected segment (80% of capacity) on
+ * their next hit. A doorkeeper (TinyLFU style bit array) only admits objects
+ * that have been missed before, thus one pass scan over a set neither enters
+ * the protected segment nor even the probation segment.
+ *
+ * Contents can be kept off heap (direct buffers) to keep GC pauses flat.
+ */
+public class ContentCache {
+	private static final double PROTECTED_RATIO = 0.8;
+
+	private long capacity;
+	private long protectedCapacity;
+	private long maxObjectSize;
+	private boolean offHeap;
+
+	// access ordered, the eldest entry is the LRU one
+	private LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+	private LinkedHashMap<String, ByteBuffer> protect = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+	private long probationBytes = 0;
+	private long protectedBytes = 0;
+	// set -> cached keys of the set, so that a deleted set is dropped without a scan
+	private HashMap<String, Set<String>> bySet = new HashMap<String, Set<String>>();
+
+	// doorkeeper bits, cleared after enough insertions to age old keys out
+	private long[] door;
+	private int doorAdds = 0;
+
+	public ContentCache(long capacity, boolean offHeap) {
+		this.capacity = capacity;
+		this.protectedCapacity = (long)(capacity * PROTECTED_RATIO);
+		this.maxObjectSize = capacity / 8;
+		this.offHeap = offHeap;
+		// about one bit per 4KB of capacity, at least 64K bits
+		int words = (int)Math.max(1024, Math.min(capacity / 4096 / 64, 1 << 24));
+		door = new long[words];
+	}
+
+	/**
+	 * Get the cached content, or null on miss. The returned buffer is private to
+	 * the caller.
+	 */
+	public ByteBuffer get(String key) {
+		ByteBuffer bb;
+
+		synchronized (this) {
+			bb = protect.get(key);
+			if (bb == null) {
+				bb = probation.remove(key);
+				if (bb != null) {
+					// second hit, promote to protected segment
+					probationBytes -= bb.capacity();
+					protect.put(key, bb);
+					protectedBytes += bb.capacity();
+					demote();
+				}
+			}
+		}
+		if (bb == null) {
+			ServerProfile.cacheMisses.incrementAndGet();
+			return null;
+		}
+		ServerProfile.cacheHits.incrementAndGet();
+		return bb.duplicate();
+	}
+
+	/**
+	 * Should the missed object be cached? Only objects missed before pass the
+	 * doorkeeper.
+	 */
+	public boolean admit(String key, int length) {
+		if (length <= 0 || length > maxObjectSize)
+			return false;
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		int bit = (h & 0x7fffffff) % (door.length * 64);
+
+		synchronized (this) {
+			long mask = 1L << (bit & 63);
+			if ((door[bit >>> 6] & mask) != 0)
+				return true;
+			door[bit >>> 6] |= mask;
+			if (++doorAdds > door.length * 16) {
+				// reset, so that the doorkeeper reflects recent traffic
+				for (int i = 0; i < door.length; i++)
+					door[i] = 0;
+				doorAdds = 0;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Allocate the buffer for an admitted object, on heap or off heap.
+	 */
+	public ByteBuffer allocate(int length) {
+		if (offHeap)
+			return ByteBuffer.allocateDirect(length);
+		else
+			return ByteBuffer.allocate(length);
+	}
+
+	/**
+	 * Insert a filled buffer (position 0, limit length) into probation segment.
+	 */
+	public void put(String key, ByteBuffer bb) {
+		synchronized (this) {
+			if (protect.containsKey(key) || probation.containsKey(key))
+				return;
+			probation.put(key, bb);
+			probationBytes += bb.capacity();
+			String set = setOf(key);
+			Set<String> keys = bySet.get(set);
+			if (keys == null) {
+				keys = new HashSet<String>();
+				bySet.put(set, keys);
+			}
+			keys.add(key);
+			while (probationBytes + protectedBytes > capacity) {
+				if (!evictEldest(probation, false) && !evictEldest(protect, true))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Drop all the cached objects of a deleted set.
+	 */
+	public synchronized void invalidate(String set) {
+		Set<String> keys = bySet.remove(set);
+
+		if (keys == null)
+			return;
+		for (String key : keys) {
+			ByteBuffer bb = probation.remove(key);
+			if (bb != null)
+				probationBytes -= bb.capacity();
+			else if ((bb = protect.remove(key)) != null)
+				protectedBytes -= bb.capacity();
+		}
+	}
+
+	/**
+	 * The set field of an INFO key.
+	 */
+	private static String setOf(String key) {
+		int i = key.indexOf('@');
+		int j = (i < 0 ? -1 : key.indexOf('@', i + 1));
+
+		return (j < 0 ? "" : key.substring(i + 1, j));
+	}
+
+	public synchronized long getSize() {
+		return probationBytes + protectedBytes;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	// move LRU protected objects back to probation when protected is full
+	private void demote() {
+		while (protectedBytes > protectedCapacity && protect.size() > 1) {
+			Iterator<Map.Entry<String, ByteBuffer>> iter = protect.entrySet().iterator();
+			Map.Entry<String, ByteBuffer> e = iter.next();
+			iter.remove();
+			protectedBytes -= e.getValue().capacity();
+			probation.put(e.getKey(), e.getValue());
+			probationBytes += e.getValue().capacity();
+		}
+	}
+
+	private boolean evictEldest(LinkedHashMap<String, ByteBuffer> m, boolean isProtected) {
+		Iterator<Map.Entry<String, ByteBuffer>> iter = m.entrySet().iterator();
+
+		if (!iter.hasNext())
+			return false;
+		Map.Entry<String, ByteBuffer> e = iter.next();
+		iter.remove();
+		String set = setOf(e.getKey());
+		Set<String> keys = bySet.get(set);
+		if (keys != null && keys.remove(e.getKey()) && keys.isEmpty())
+			bySet.remove(set);
+		if (isProtected)
+			protectedBytes -= e.getValue().capacity();
+		else
+			probationBytes -= e.getValue().capacity();
+		ServerProfile.cacheEvictions.incrementAndGet();
+		return true;
+	}
+}
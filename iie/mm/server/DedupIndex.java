@@ -0,0 +1,344 @@
+package iie.mm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process index of the objects stored on this server: set@md5 -> where
+ * the object is (type, block, offset, length, disk). It lets StorePhoto
+ * answer a duplicated write without touching the disk, so clients do not
+ * need to ask Redis before every put.
+ *
+ * Keys are 16 bytes digests of set@md5, kept in compact open addressing
+ * tables (parallel primitive arrays, linear probing), so an entry costs
+ * about 50 bytes and no objects. The index is striped over segments, each
+ * with its own lock.
+ */
+public class DedupIndex {
+	private static final int SEGMENTS = 16;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private static final class Segment {
+		// type 0 marks an empty slot
+		long[] k0, k1, block;
+		int[] offset, length, setHash;
+		byte[] type, disk;
+		int size = 0;
+
+		Segment(int capacity) {
+			alloc(capacity);
+		}
+
+		private void alloc(int capacity) {
+			k0 = new long[capacity];
+			k1 = new long[capacity];
+			block = new long[capacity];
+			offset = new int[capacity];
+			length = new int[capacity];
+			setHash = new int[capacity];
+			type = new byte[capacity];
+			disk = new byte[capacity];
+			size = 0;
+		}
+
+		private int slot(long a, long b) {
+			int mask = k0.length - 1;
+			int i = (int)(a ^ (a >>> 32)) & mask;
+
+			while (type[i] != 0 && (k0[i] != a || k1[i] != b))
+				i = (i + 1) & mask;
+			return i;
+		}
+
+		int find(long a, long b) {
+			int i = slot(a, b);
+			return type[i] == 0 ? -1 : i;
+		}
+
+		void put(long a, long b, int sh, byte t, long blk, int off, int len, byte d) {
+			if (size + 1 > k0.length * LOAD_FACTOR)
+				rehash(k0.length * 2, 0, false);
+			int i = slot(a, b);
+			if (type[i] == 0)
+				size++;
+			k0[i] = a;
+			k1[i] = b;
+			setHash[i] = sh;
+			type[i] = t;
+			block[i] = blk;
+			offset[i] = off;
+			length[i] = len;
+			disk[i] = d;
+		}
+
+		/**
+		 * Remove slot i, and shift the following entries of the probe chain
+		 * back, so that lookups need no tombstones.
+		 */
+		void remove(int i) {
+			int mask = k0.length - 1;
+			int j = i;
+
+			type[i] = 0;
+			size--;
+			while (true) {
+				j = (j + 1) & mask;
+				if (type[j] == 0)
+					break;
+				int home = (int)(k0[j] ^ (k0[j] >>> 32)) & mask;
+				// the entry at j may move to i only if its home is not in (i, j]
+				boolean between = (i <= j) ? (home > i && home <= j) : (home > i || home <= j);
+				if (between)
+					continue;
+				k0[i] = k0[j];
+				k1[i] = k1[j];
+				setHash[i] = setHash[j];
+				type[i] = type[j];
+				block[i] = block[j];
+				offset[i] = offset[j];
+				length[i] = length[j];
+				disk[i] = disk[j];
+				type[j] = 0;
+				i = j;
+			}
+		}
+
+		/**
+		 * Copy the entries into new tables, dropping those of set hash sh if
+		 * drop is true. Removal by rebuilding keeps the probe chains intact
+		 * without tombstones; it is only used on set deletion.
+		 */
+		void rehash(int capacity, int sh, boolean drop) {
+			long[] ok0 = k0, ok1 = k1, oblock = block;
+			int[] ooffset = offset, olength = length, osetHash = setHash;
+			byte[] otype = type, odisk = disk;
+
+			alloc(capacity);
+			for (int j = 0; j < otype.length; j++) {
+				if (otype[j] == 0 || (drop && osetHash[j] == sh))
+					continue;
+				int i = slot(ok0[j], ok1[j]);
+				k0[i] = ok0[j];
+				k1[i] = ok1[j];
+				setHash[i] = osetHash[j];
+				type[i] = otype[j];
+				block[i] = oblock[j];
+				offset[i] = ooffset[j];
+				length[i] = olength[j];
+				disk[i] = odisk[j];
+				size++;
+			}
+		}
+	}
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final String[] diskArray;
+
+	public DedupIndex(int initialCapacity, String[] diskArray) {
+		int cap = 16;
+		while (cap * SEGMENTS < initialCapacity)
+			cap <<= 1;
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(cap);
+		this.diskArray = diskArray;
+	}
+
+	private static long[] digest(String set, String md5) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		md.update(set.getBytes());
+		md.update((byte)'@');
+		md.update(md5.getBytes());
+		byte[] d = md.digest();
+		long a = 0, b = 0;
+		for (int i = 0; i < 8; i++) {
+			a = (a << 8) | (d[i] & 0xff);
+			b = (b << 8) | (d[i + 8] & 0xff);
+		}
+		return new long[]{a, b};
+	}
+
+	private Segment segmentFor(long[] k) {
+		return segments[(int)(k[1] & (SEGMENTS - 1))];
+	}
+
+	private int diskIndex(String disk) {
+		for (int i = 0; i < diskArray.length; i++) {
+			if (diskArray[i].equals(disk))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remember the local INFO (type@set@serverid@block@offset@length@disk) of
+	 * set@md5. INFOs of other servers or unknown disks are ignored.
+	 *
+	 * @return true if it is put into the index
+	 */
+	public boolean put(String set, String md5, String info) {
+		String[] f = info.split("@");
+
+		if (f.length != 7 || Long.parseLong(f[2]) != ServerConf.serverId)
+			return false;
+		int d = diskIndex(f[6]);
+		if (d < 0)
+			return false;
+		long[] k = digest(set, md5);
+		Segment s = segmentFor(k);
+
+		synchronized (s) {
+			s.put(k[0], k[1], set.hashCode(), Byte.parseByte(f[0]), Long.parseLong(f[3]),
+					Integer.parseInt(f[4]), Integer.parseInt(f[5]), (byte)d);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the local INFO of set@md5, or null if it is not stored here
+	 */
+	public String get(String set, String md5) {
+		long[] k = digest(set, md5);
+		Segment s = segmentFor(k);
+		byte t;
+		long blk;
+		int off, len, d;
+
+		synchronized (s) {
+			int i = s.find(k[0], k[1]);
+			if (i < 0)
+				return null;
+			t = s.type[i];
+			blk = s.block[i];
+			off = s.offset[i];
+			len = s.length[i];
+			d = s.disk[i];
+		}
+		return t + "@" + set + "@" + ServerConf.serverId + "@" + blk + "@" + off + "@" + len + "@" + diskArray[d];
+	}
+
+	public void remove(String set, String md5) {
+		long[] k = digest(set, md5);
+		Segment s = segmentFor(k);
+
+		synchronized (s) {
+			int i = s.find(k[0], k[1]);
+			if (i >= 0)
+				s.remove(i);
+		}
+	}
+
+	/**
+	 * Drop all the entries of a deleted set. Entries of other sets with the same
+	 * set hash are dropped too, which only costs a missed dedup.
+	 */
+	public void removeSet(String set) {
+		int sh = set.hashCode();
+
+		for (Segment s : segments) {
+			synchronized (s) {
+				s.rehash(s.k0.length, sh, true);
+			}
+		}
+	}
+
+	public int size() {
+		int n = 0;
+
+		for (Segment s : segments) {
+			synchronized (s) {
+				n += s.size;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Rebuild the index from the record headers in the blocks of this node
+	 * (see BlockRecord), one thread per disk. Only the headers are read and
+	 * Redis is not touched. The blocks of a set are read in order, so the
+	 * newest copy of an md5 (e.g. one moved by Compactor) wins. Entries of
+	 * objects deleted or overwritten since are dropped on lookup, when
+	 * StorePhoto checks them against Redis. Legacy blocks without record
+	 * headers are skipped; duplicates of their objects are stored again.
+	 *
+	 * @return number of entries loaded
+	 */
+	public long rebuild() throws InterruptedException {
+		final AtomicLong n = new AtomicLong(0);
+		Thread[] ts = new Thread[diskArray.length];
+
+		for (int i = 0; i < diskArray.length; i++) {
+			final String disk = diskArray[i];
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					n.addAndGet(rebuildDisk(disk));
+				}
+			}, "MM-DedupRebuild-" + i);
+			ts[i].setDaemon(true);
+			ts[i].start();
+		}
+		for (Thread t : ts)
+			t.join();
+		return n.get();
+	}
+
+	private long rebuildDisk(String disk) {
+		long n = 0;
+		File[] sets = new File(disk + "/" + StorePhoto.destRoot).listFiles();
+
+		if (sets == null)
+			return 0;
+		for (File sd : sets) {
+			String[] names = sd.list();
+			if (!sd.isDirectory() || names == null)
+				continue;
+			List<Long> bs = new ArrayList<Long>();
+			for (String name : names) {
+				long block = MetaRebuild.blockNumber(name);
+				if (block >= 0)
+					bs.add(block);
+			}
+			Collections.sort(bs);
+			for (long block : bs) {
+				File f = new File(sd, "b" + block);
+				BlockRecord.Reader r = null;
+				try {
+					if (BlockRecord.isLegacy(f))
+						continue;
+					r = new BlockRecord.Reader(f, false);
+					BlockRecord.Record rec;
+					while ((rec = r.next()) != null) {
+						if (rec.isSegment() || rec.isTombstone())
+							continue;
+						if (put(rec.set, rec.md5, (rec.isManifest() ? "2@" : "1@") + rec.set + "@" +
+								ServerConf.serverId + "@" + block + "@" + rec.offset + "@" + rec.length + "@" + disk))
+							n++;
+					}
+				} catch (IOException e) {
+					// the block may be deleted meanwhile, e.g. by Expirer
+					System.out.println("Scan " + f + " failed: " + e.getMessage());
+				} finally {
+					if (r != null) {
+						try {
+							r.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,186 @@
+package iie.mm.server;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the disk for new writes. For every disk of the storage array it
+ * tracks the usable space, the writes in flight and an EWMA of recent write
+ * latencies, and places a write on the disk with the lowest cost
+ *
+ *   (inflight + 1) * latency / weight
+ *
+ * either among two random disks (power of two choices, the default) or among
+ * all of them. Disks with less than min_free usable bytes are skipped while
+ * any other disk has room. Weights are set by the operator, e.g. to put less
+ * load on a slower disk.
+ */
+public class DiskPlacer {
+	public static final int RANDOM = 0;
+	public static final int P2C = 1;
+	public static final int LEAST = 2;
+
+	// usable space is refreshed at most once per interval
+	private static final long REFRESH_INTERVAL = 1000;
+	// weight of the newest sample in the latency EWMA
+	private static final double ALPHA = 0.2;
+	// the latency of a disk not written for longer than this is stale, it is
+	// ignored until the disk is sampled again, so a disk that was slow once
+	// is not avoided forever
+	private static final long STALE = 1000;
+
+	private static class Disk {
+		String path;
+		int weight = 1;
+		volatile long free = Long.MAX_VALUE;
+		AtomicInteger inflight = new AtomicInteger(0);
+		// microseconds
+		volatile double latency = 0;
+		volatile long lastSample = 0;
+		long writes = 0;
+	}
+
+	private Disk[] disks;
+	private int policy;
+	private long minFree;
+	private Random rand = new Random();
+	private volatile long lastRefresh = 0;
+
+	public DiskPlacer(String[] diskArray, int policy, Map<String, Integer> weights, long minFree) {
+		disks = new Disk[diskArray.length];
+		for (int i = 0; i < diskArray.length; i++) {
+			disks[i] = new Disk();
+			disks[i].path = diskArray[i];
+			if (weights != null && weights.get(diskArray[i]) != null)
+				disks[i].weight = Math.max(1, weights.get(diskArray[i]));
+		}
+		this.policy = policy;
+		this.minFree = minFree;
+		refresh();
+	}
+
+	public static int parsePolicy(String policy) {
+		if (policy.equalsIgnoreCase("random"))
+			return RANDOM;
+		if (policy.equalsIgnoreCase("least"))
+			return LEAST;
+		if (policy.equalsIgnoreCase("p2c"))
+			return P2C;
+		throw new IllegalArgumentException("Unknown disk placement policy: " + policy);
+	}
+
+	private void refresh() {
+		long now = System.currentTimeMillis();
+		if (now - lastRefresh < REFRESH_INTERVAL)
+			return;
+		synchronized (this) {
+			if (now - lastRefresh < REFRESH_INTERVAL)
+				return;
+			for (Disk d : disks) {
+				long free = new File(d.path).getUsableSpace();
+				// 0 if the path does not exist yet, do not exclude it for that
+				d.free = free > 0 ? free : Long.MAX_VALUE;
+			}
+			lastRefresh = now;
+		}
+	}
+
+	private boolean hasRoom(Disk d) {
+		return d.free >= minFree;
+	}
+
+	private double cost(Disk d, long now) {
+		double latency = now - d.lastSample > STALE ? 0 : d.latency;
+
+		return (d.inflight.get() + 1) * Math.max(latency, 1.0) / d.weight;
+	}
+
+	private int nextInt(int n) {
+		synchronized (rand) {
+			return rand.nextInt(n);
+		}
+	}
+
+	/**
+	 * @return index of the disk for a new write
+	 */
+	public int choose() {
+		int n = disks.length;
+
+		if (n == 1)
+			return 0;
+		refresh();
+		if (policy == RANDOM)
+			return nextInt(n);
+
+		long now = System.currentTimeMillis();
+		int best = -1;
+		if (policy == P2C) {
+			int a = nextInt(n), b = nextInt(n - 1);
+			if (b >= a)
+				b++;
+			best = better(a, b, now);
+			if (hasRoom(disks[best]))
+				return best;
+			// both are full, fall back to a scan
+		}
+		best = -1;
+		for (int i = 0, start = nextInt(n); i < n; i++) {
+			int j = (start + i) % n;
+			best = best < 0 ? j : better(best, j, now);
+		}
+		return best;
+	}
+
+	private int better(int a, int b, long now) {
+		boolean ra = hasRoom(disks[a]), rb = hasRoom(disks[b]);
+		if (ra != rb)
+			return ra ? a : b;
+		return cost(disks[b], now) < cost(disks[a], now) ? b : a;
+	}
+
+	/**
+	 * A write to disk d is started.
+	 */
+	public void begin(int d) {
+		disks[d].inflight.incrementAndGet();
+	}
+
+	/**
+	 * A write to disk d is done.
+	 */
+	public void end(int d) {
+		disks[d].inflight.decrementAndGet();
+	}
+
+	/**
+	 * An append to disk d took nanos.
+	 */
+	public void addLatency(int d, long nanos) {
+		Disk disk = disks[d];
+		long now = System.currentTimeMillis();
+		synchronized (disk) {
+			// a stale latency is replaced, not averaged
+			disk.latency = now - disk.lastSample > STALE ? nanos / 1000.0 :
+				(1 - ALPHA) * disk.latency + ALPHA * nanos / 1000.0;
+			disk.lastSample = now;
+			disk.writes++;
+		}
+	}
+
+	public String getStats() {
+		StringBuffer sb = new StringBuffer();
+
+		for (Disk d : disks) {
+			synchronized (d) {
+				sb.append("  disk " + d.path + ": weight " + d.weight + ", inflight " + d.inflight.get() +
+						", latency " + (long)d.latency + " us, writes " + d.writes + ", free " +
+						(d.free == Long.MAX_VALUE ? "?" : (d.free / 1024 / 1024) + "MB") +
+						(hasRoom(d) ? "" : " FULL") + "\n");
+			}
+		}
+		return sb.toString();
+	}
+}
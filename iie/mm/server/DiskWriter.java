@@ -0,0 +1,124 @@
+package iie.mm.server;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The only thread that appends objects to one disk. Writers of any set
+ * queue their requests here and wait; the thread drains the queue, appends
+ * each set's requests with one gathering write, and commits the metadata of
+ * the whole drain with one Redis transaction (see
+ * StorePhoto.writeDiskBatch). Appends to a disk are never interleaved by
+ * concurrent threads, so the disk sees few large sequential writes instead
+ * of many small ones scattered over block files.
+ */
+public class DiskWriter implements Runnable {
+	private ServerConf conf;
+	private int diskId;
+	private String disk;
+	private int maxBatch;
+	private long maxBytes;
+
+	private LinkedList<StorePhoto.PendingWrite> queue = new LinkedList<StorePhoto.PendingWrite>();
+	private long batches = 0, writes = 0;
+	private int maxDepth = 0;
+
+	public DiskWriter(ServerConf conf, int diskId, String disk) {
+		this.conf = conf;
+		this.diskId = diskId;
+		this.disk = disk;
+		this.maxBatch = conf.getDisk_writer_batch();
+		this.maxBytes = conf.getBlockSize();
+	}
+
+	/**
+	 * Queue a write and wait until it is appended and committed.
+	 *
+	 * @return the INFO of the object, #FAIL: on failure
+	 */
+	public String submit(StorePhoto.PendingWrite pw) {
+		List<StorePhoto.PendingWrite> l = new ArrayList<StorePhoto.PendingWrite>(1);
+		l.add(pw);
+		enqueue(l);
+		await(pw);
+		return pw.result;
+	}
+
+	/**
+	 * Queue some writes without waiting, see await().
+	 */
+	public void enqueue(List<StorePhoto.PendingWrite> pws) {
+		synchronized (queue) {
+			queue.addAll(pws);
+			if (queue.size() > maxDepth)
+				maxDepth = queue.size();
+			queue.notify();
+		}
+	}
+
+	public static void await(StorePhoto.PendingWrite pw) {
+		synchronized (pw) {
+			while (!pw.done) {
+				try {
+					pw.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	private List<StorePhoto.PendingWrite> take() {
+		List<StorePhoto.PendingWrite> batch = new ArrayList<StorePhoto.PendingWrite>();
+		long bytes = 0;
+
+		synchronized (queue) {
+			while (queue.isEmpty()) {
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			while (!queue.isEmpty() && batch.size() < maxBatch &&
+					(batch.isEmpty() || bytes + queue.getFirst().clen <= maxBytes)) {
+				StorePhoto.PendingWrite w = queue.removeFirst();
+				bytes += w.clen;
+				batch.add(w);
+			}
+		}
+		return batch;
+	}
+
+	@Override
+	public void run() {
+		StorePhoto sp = new StorePhoto(conf);
+
+		while (true) {
+			List<StorePhoto.PendingWrite> batch = take();
+			try {
+				sp.writeDiskBatch(diskId, batch);
+			} catch (Throwable e) {
+				e.printStackTrace();
+				for (StorePhoto.PendingWrite w : batch)
+					w.result = "#FAIL:" + e.getMessage();
+			}
+			synchronized (queue) {
+				batches++;
+				writes += batch.size();
+			}
+			for (StorePhoto.PendingWrite w : batch) {
+				synchronized (w) {
+					w.done = true;
+					w.notify();
+				}
+			}
+		}
+	}
+
+	public String getStats() {
+		synchronized (queue) {
+			return "writer " + disk + ": depth " + queue.size() + " (max " + maxDepth + "), " + writes +
+					" writes in " + batches + " batches, avg " + (batches == 0 ? 0 : (double)writes / batches);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package iie.mm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Expires the objects of sets with a retention time, set.ttl in Redis (in
+ * seconds, see ClientAPI.setTTL).
+ *
+ * Records carry no timestamp and nothing is tracked per object. Every record
+ * of a block was written before the block was last modified, so a sealed
+ * block is expired as a whole once its modification time is older than the
+ * ttl: the INFOs of its records are removed from Redis (an md5 without other
+ * copies is deleted), the local caches forget them and the block file is
+ * unlinked. Blocks of a set are visited in order and the sweep of the set
+ * stops at the first block that is too young, so a pass costs one lookup per
+ * set plus the work on the expired blocks.
+ *
+ * A block holding segments of a chunked object whose manifest is still live
+ * (in a younger block), or of a stream still being uploaded, is kept until
+ * the manifest expires. A block holding the tombstone of a deleted record is
+ * kept while the block of that record is still there. Legacy blocks
+ * without record headers are not expired. The current block of a set is
+ * never expired, it is sealed by the next write that does not fit.
+ */
+public class Expirer implements Runnable {
+	// remove ARGV[2] from the INFO chain of KEYS[1]/ARGV[1], delete the field if nothing is left
+	static final String REMOVE_INFO =
+			"local v = redis.call('hget', KEYS[1], ARGV[1]) " +
+			"if not v then return '0' end " +
+			"local keep, found = {}, false " +
+			"for e in string.gmatch(v, '[^#]+') do " +
+			"if e == ARGV[2] then found = true else table.insert(keep, e) end end " +
+			"if not found then return '0' end " +
+			"if #keep == 0 then redis.call('hdel', KEYS[1], ARGV[1]) " +
+			"else redis.call('hset', KEYS[1], ARGV[1], table.concat(keep, '#')) end " +
+			"return '1'";
+
+	private ServerConf conf;
+	private StorePhoto sp = null;
+	private String sha = null;
+
+	private long runs = 0, blocks = 0, objects = 0, freed = 0, pinned = 0, legacy = 0;
+
+	public Expirer(ServerConf conf) {
+		this.conf = conf;
+	}
+
+	@Override
+	public void run() {
+		sp = new StorePhoto(conf);
+
+		while (true) {
+			try {
+				Thread.sleep(conf.getExpire_interval() * 1000);
+			} catch (InterruptedException e) {
+			}
+			try {
+				sweep();
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * One pass over the sets with a ttl on all the disks.
+	 */
+	public void sweep() throws IOException {
+		Jedis jedis = new RedisFactory(conf).getDefaultInstance();
+		if (jedis == null) {
+			System.out.println("Get default jedis instance failed, skip expiration.");
+			return;
+		}
+		try {
+			sha = jedis.scriptLoad(REMOVE_INFO);
+			String[] disks = sp.getDiskArray();
+			long now = System.currentTimeMillis();
+
+			for (String disk : disks) {
+				File[] sets = new File(disk + "/" + StorePhoto.destRoot).listFiles();
+				if (sets == null)
+					continue;
+				for (File sd : sets) {
+					if (!sd.isDirectory())
+						continue;
+					String set = sd.getName();
+					String ttl = jedis.get(set + ".ttl");
+					if (ttl == null)
+						continue;
+					String cur = jedis.get(set + ".blk." + conf.getNodeName() + "." + disk);
+					String[] names = sd.list();
+					if (cur == null || names == null)
+						continue;
+					List<Long> bs = new ArrayList<Long>();
+					for (String name : names) {
+						long block = MetaRebuild.blockNumber(name);
+						if (block >= 0 && block < Long.parseLong(cur))
+							bs.add(block);
+					}
+					Collections.sort(bs);
+					for (long block : bs) {
+						File f = new File(sd, "b" + block);
+						if (now - f.lastModified() < Long.parseLong(ttl) * 1000)
+							break;
+						if (BlockRecord.isLegacy(f)) {
+							synchronized (this) {
+								legacy++;
+							}
+							continue;
+						}
+						expireBlock(jedis, set, disk, block, f);
+					}
+				}
+			}
+			synchronized (this) {
+				runs++;
+			}
+		} catch (JedisException e) {
+			System.out.println("Expiration failed: " + e.getMessage());
+			jedis = RedisFactory.putBrokenInstance(jedis);
+		} finally {
+			RedisFactory.putInstance(jedis);
+		}
+	}
+
+	private void expireBlock(Jedis jedis, String set, String disk, long block, File f) throws IOException {
+		List<BlockRecord.Record> recs = new ArrayList<BlockRecord.Record>();
+		List<BlockRecord.Record> segs = new ArrayList<BlockRecord.Record>();
+		BlockRecord.Reader r = new BlockRecord.Reader(f, false);
+		BlockRecord.Record rec;
+		String path = disk + "/" + StorePhoto.destRoot + set + "/b" + block;
+		boolean tomb = false;
+
+		try {
+			while ((rec = r.next()) != null) {
+				if (rec.isSegment())
+					segs.add(rec);
+				else if (rec.isTombstone())
+					tomb |= StorePhoto.isTombstoneLive(new String(r.read(rec)), path);
+				else
+					recs.add(rec);
+			}
+		} finally {
+			r.close();
+		}
+
+		Pipeline p = jedis.pipelined();
+		List<Response<String>> rs = new ArrayList<Response<String>>();
+		for (BlockRecord.Record x : recs) {
+			String info = (x.isManifest() ? "2@" : "1@") + x.set + "@" + ServerConf.serverId + "@" + block +
+					"@" + x.offset + "@" + x.length + "@" + disk;
+			rs.add(p.evalsha(sha, 1, new String[]{x.set, x.md5, info}));
+		}
+		p.sync();
+		int n = 0;
+		for (int i = 0; i < recs.size(); i++) {
+			if ("1".equals(rs.get(i).get())) {
+				StorePhoto.forget(recs.get(i).set, recs.get(i).md5);
+				n++;
+			}
+		}
+
+		// segments of a chunked object that is still referenced
+		if (segs.size() > 0) {
+			p = jedis.pipelined();
+			List<Response<String>> chains = new ArrayList<Response<String>>();
+			for (BlockRecord.Record x : segs)
+				chains.add(p.hget(x.set, x.md5));
+			p.sync();
+			for (Response<String> c : chains) {
+				if (c.get() == null)
+					continue;
+				for (String e : c.get().split("#")) {
+					String[] es = e.split("@");
+					if (es.length == 7 && es[0].equals("2") && Long.parseLong(es[2]) == ServerConf.serverId) {
+						synchronized (this) {
+							objects += n;
+							pinned++;
+						}
+						return;
+					}
+				}
+			}
+		}
+
+		// segments of an open stream have no INFO yet; a deleted record may come back by MetaRebuild
+		if (tomb || StorePhoto.isStreamBlock(path)) {
+			synchronized (this) {
+				objects += n;
+				pinned++;
+			}
+			return;
+		}
+		long len = f.length();
+		if (f.delete()) {
+			StorePhoto.dropBlock(path);
+			synchronized (this) {
+				blocks++;
+				objects += n;
+				freed += len;
+			}
+			System.out.println("Expired " + f + ": " + n + " objects, " + len + " bytes.");
+		}
+	}
+
+	public synchronized String getStats() {
+		return " Expirer: " + runs + " runs, " + blocks + " blocks expired, " + objects + " objects, " +
+				(freed / 1024 / 1024) + "MB freed, " + pinned + " pinned, " + legacy + " legacy skipped";
+	}
+}
@@ -5,19 +5,32 @@ import iie.mm.server.StorePhoto.RedirectException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.io.nio.IndirectNIOBuffer;
+import org.eclipse.jetty.server.HttpConnection;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 public class HTTPHandler extends AbstractHandler {
 	private ServerConf conf;
-	private StorePhoto sp;
+	private AsyncWriter aw;
+	// jetty calls handle() from many threads, StorePhoto is not thread-safe
+	private final ThreadLocal<StorePhoto> tsp = new ThreadLocal<StorePhoto>() {
+		@Override
+		protected StorePhoto initialValue() {
+			return new StorePhoto(conf);
+		}
+	};
 	
-	public HTTPHandler(ServerConf conf) {
+	public HTTPHandler(ServerConf conf, AsyncWriter aw) {
 		this.conf = conf;
-		sp = new StorePhoto(conf);
+		this.aw = aw;
 	}
 	
 	private void badResponse(Request baseRequest, HttpServletResponse response, String message) throws IOException {
@@ -36,13 +49,28 @@ public class HTTPHandler extends AbstractHandler {
 		response.getWriter().flush();
 	}
 	
-	private void okResponse(Request baseRequest, HttpServletResponse response, byte[] content) throws IOException {
+	private void okResponse(Request baseRequest, HttpServletResponse response, PhotoRegion pr) throws IOException {
 		// FIXME: text/image/audio/video/application
 		response.setContentType("image");
 		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentLength(pr.length());
 		baseRequest.setHandled(true);
-		response.getOutputStream().write(content);
-		response.getOutputStream().flush();
+		ServletOutputStream out = response.getOutputStream();
+		ByteBuffer bb = (out instanceof HttpConnection.Output ? pr.buffer() : null);
+		if (bb != null) {
+			// jetty writes the mapped (or cached) content to the socket directly.
+			// flush() blocks until all of it is written, the caller closes pr
+			// after that and the block may then be unmapped
+			if (bb.isDirect())
+				((HttpConnection.Output)out).sendContent(new DirectNIOBuffer(bb, true));
+			else
+				((HttpConnection.Output)out).sendContent(new IndirectNIOBuffer(bb, true));
+		} else {
+			// the block is not mapped (e.g. it is still being appended) or the
+			// object is chained: copy through jetty's buffers
+			pr.transferFully(Channels.newChannel(out));
+		}
+		out.flush();
 	}
 	
 	private void redirectResponse(Request baseRequest, HttpServletResponse response, RedirectException e) throws IOException {
@@ -73,29 +101,23 @@ public class HTTPHandler extends AbstractHandler {
 		} else {
 			String[] infos = key.split("@");
 			
-			if (infos.length == 2) {
-				byte[] content = null;
+			if (infos.length == 2 || infos.length == 7) {
+				PhotoRegion pr = null;
 				try {
-					content = sp.getPhoto(infos[0], infos[1]);
-					if (content == null || content.length == 0) {
+					if (infos.length == 2)
+						pr = tsp.get().getPhotoRegion(infos[0], infos[1]);
+					else
+						pr = tsp.get().openPhoto(key, infos);
+					if (pr == null || pr.length() == 0) {
 						notFoundResponse(baseRequest, response, "#FAIL:can not find any MM object by key=" + key);
 					} else {
-						okResponse(baseRequest, response, content);
+						okResponse(baseRequest, response, pr);
 					}
 				} catch (RedirectException e) {
 					redirectResponse(baseRequest, response, e);
-				}
-			} else if (infos.length == 7) {
-				byte[] content = null;
-				try {
-					content = sp.searchPhoto(key, null);
-					if (content == null || content.length == 0) {
-						notFoundResponse(baseRequest, response, "#FAIL:can not find any MM object by key=" + key);
-					} else {
-						okResponse(baseRequest, response, content);
-					} 
-				} catch (RedirectException e) {
-					redirectResponse(baseRequest, response, e);
+				} finally {
+					if (pr != null)
+						pr.close();
 				}
 			} else {
 				badResponse(baseRequest, response, "#FAIL: invalid key format {" + key + "}");
@@ -117,6 +139,40 @@ public class HTTPHandler extends AbstractHandler {
 		response.getWriter().println(" Total Written Bytes (B): " + ServerProfile.writtenBytes.longValue());
 		response.getWriter().println(" Total Read    Bytes (B): " + ServerProfile.readBytes.longValue());
 		response.getWriter().println(" Avg Read Latency   (ms): " + (double)ServerProfile.readDelay.longValue() / ServerProfile.readN.longValue());
+		ContentCache cc = StorePhoto.getContentCache();
+		if (cc != null) {
+			long hits = ServerProfile.cacheHits.longValue(), misses = ServerProfile.cacheMisses.longValue();
+			response.getWriter().println(" Content Cache       (B): " + cc.getSize() + "/" + cc.getCapacity() + 
+					(cc.isOffHeap() ? " off-heap" : " heap"));
+			response.getWriter().println(" Content Cache Hit/Miss : " + hits + "/" + misses + ", ratio " + 
+					(hits + misses == 0 ? 0 : (double)hits / (hits + misses)));
+			response.getWriter().println(" Content Cache Evictions: " + ServerProfile.cacheEvictions.longValue());
+		}
+		DedupIndex di = StorePhoto.getDedupIndex();
+		if (di != null)
+			response.getWriter().println(" Dedup Index Entries/Hits: " + di.size() + "/" + ServerProfile.dedupHits.longValue());
+		BlockSyncer bs = StorePhoto.getBlockSyncer();
+		if (bs != null)
+			response.getWriter().println(bs.getStats());
+		response.getWriter().println(" Write Ack Latency      : " + ServerProfile.writeAck);
+		DiskPlacer dp = StorePhoto.getDiskPlacer();
+		if (dp != null)
+			response.getWriter().print(" Disk Placement:\n" + dp.getStats());
+		DiskWriter[] dws = StorePhoto.getDiskWriters();
+		if (dws != null) {
+			for (DiskWriter dw : dws)
+				response.getWriter().println("  " + dw.getStats());
+		}
+		Compactor cp = StorePhoto.getCompactor();
+		if (cp != null)
+			response.getWriter().println(cp.getStats());
+		Expirer ex = StorePhoto.getExpirer();
+		if (ex != null)
+			response.getWriter().println(ex.getStats());
+		TrashDeleter td = StorePhoto.getTrashDeleter();
+		if (td != null)
+			response.getWriter().println(td.getStats());
+		response.getWriter().print(aw.getStats());
 		response.getWriter().println(PhotoServer.getServerInfo(conf));
 		response.getWriter().flush();
 	}
@@ -7,15 +7,20 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.hyperic.sigar.SigarException;
 
 public class Handler implements Runnable{
+	//批量请求(MSTORE/MSEARCH)请求体的最大字节数,可以跨多个块
+	static final int MAX_BATCH_FRAME = 64 * 1024 * 1024;
+	//批量读一次回复的最大字节数,回复的总长度用int表示
+	static final int MAX_MSEARCH_REPLY = 256 * 1024 * 1024;
+	
 	private ServerConf conf;
-	private ConcurrentHashMap<String,BlockingQueue<WriteTask>> sq;
+	private AsyncWriter aw;
 	private Socket s;
 	
 	private StorePhoto sp;
@@ -23,11 +28,11 @@ public class Handler implements Runnable{
 	private DataInputStream dis;
 	private DataOutputStream dos;					//向客户端的输出流
 	
-	public Handler(ServerConf conf, Socket s, ConcurrentHashMap<String, BlockingQueue<WriteTask>> sq) throws IOException {
+	public Handler(ServerConf conf, Socket s, AsyncWriter aw) throws IOException {
 		this.conf = conf;
 		this.s = s;
 		s.setTcpNoDelay(true);
-		this.sq = sq;
+		this.aw = aw;
 		dis = new DataInputStream(this.s.getInputStream());
 		dos = new DataOutputStream(this.s.getOutputStream());
 		sp = new StorePhoto(conf);
@@ -39,9 +44,19 @@ public class Handler implements Runnable{
 			while(true) {
 				byte[] header = new byte[4];
 				
-				if ((dis.read(header)) == -1) {
+				//流水线的请求可能把头部分在两次读中,所以要读满4个字节
+				int first = dis.read();
+				if (first == -1) {
 					break;
-				} else if (header[0] == ActionType.SYNCSTORE) {
+				}
+				header[0] = (byte)first;
+				dis.readFully(header, 1, 3);
+				//带MUX标志的请求在头部之后有请求号,回复以请求号开头,这样回复可以和异步写的确认交错返回
+				long reqId = -1;
+				if ((header[3] & ActionType.MUX) != 0)
+					reqId = dis.readLong();
+				
+				if (header[0] == ActionType.SYNCSTORE) {
 					int setlen = header[1];
 					int md5len = header[2];
 					int contentlen = dis.readInt();
@@ -55,13 +70,39 @@ public class Handler implements Runnable{
 					String result = null;
 					result = sp.storePhoto(set, md5, setmd5content, setlen + md5len, contentlen);
 
-					if (result == null)
-						dos.writeInt(-1);
-					else {
-						dos.writeInt(result.length());
-						dos.write(result.getBytes());
+					synchronized (dos) {
+						if (reqId >= 0)
+							dos.writeLong(reqId);
+						if (result == null)
+							dos.writeInt(-1);
+						else {
+							dos.writeInt(result.length());
+							dos.write(result.getBytes());
+						}
+						dos.flush();
+					}
+				} else if (header[0] == ActionType.STREAMSTORE) {
+					if (reqId >= 0)
+						throw new IOException("STREAMSTORE can not be multiplexed.");
+					int setlen = header[1];
+					int md5len = header[2];
+					int contentlen = dis.readInt();
+					
+					//只读出set和md5,内容由storePhoto按段读出并写入块文件
+					byte[] setmd5 = readBytes(setlen + md5len, dis);
+					String set = new String(setmd5, 0, setlen);
+					String md5 = new String(setmd5, setlen, md5len);
+					String result = sp.storePhoto(set, md5, dis, contentlen);
+					
+					synchronized (dos) {
+						if (result == null)
+							dos.writeInt(-1);
+						else {
+							dos.writeInt(result.length());
+							dos.write(result.getBytes());
+						}
+						dos.flush();
 					}
-					dos.flush();
 				} else if(header[0] == ActionType.ASYNCSTORE){
 					int setlen = header[1];
 					int md5len = header[2];
@@ -72,71 +113,156 @@ public class Handler implements Runnable{
 					String set = new String(setmd5content, 0, setlen);
 					String md5 = new String(setmd5content, setlen, md5len);
 					
+					asyncStore(aw, sp, set, md5, setmd5content, setlen + md5len, contentlen, !conf.isAsync_busy());
+				} else if (header[0] == ActionType.ASYNCSTOREACK) {
+					int setlen = header[1];
+					int md5len = header[2];
+					reqId = dis.readLong();
+					int contentlen = dis.readInt();
+					
+					byte[] setmd5content = readBytes(setlen + md5len + contentlen, dis);
+					String set = new String(setmd5content, 0, setlen);
+					String md5 = new String(setmd5content, setlen, md5len);
 					WriteTask t = new WriteTask(set, md5, setmd5content, setlen + md5len, contentlen);
-					BlockingQueue<WriteTask> bq = sq.get(set);
-
-					if (bq != null)	{
-						//存在这个键,表明该写线程已经存在,直接把任务加到任务队列里即可
-						bq.add(t);
-					} else {
-						//如果不存在这个键,则需要新开启一个写线程
-						BlockingQueue<WriteTask> tasks = new LinkedBlockingQueue<WriteTask>();
-						tasks.add(t);
-						sq.put(set, tasks);
-						WriteThread wt = new WriteThread(conf,set, sq);
-						new Thread(wt).start();
-					}
+					
+					t.setReqId(reqId);
+					t.setAck(new WriteTask.Ack() {
+						@Override
+						public void done(WriteTask t, String result) {
+							sendAck(t.getReqId(), result == null ? null : result.getBytes(), 
+									result == null ? -1 : result.length());
+						}
+					});
+					if (!aw.submit(t))
+						sendAck(reqId, null, ActionType.BUSY);
 				} else if (header[0] == ActionType.SEARCH) {
 					//这样能把byte当成无符号的用，拼接的元信息长度最大可以255
 					int infolen = header[1]&0xff;		
-
-					if (infolen > 0) {
-						String infos = new String(readBytes(infolen, dis));		
-							byte[] content = null;
-							try {
-								content = sp.searchPhoto(infos, null);
-							} catch (RedirectException e) {
-							}
-							// FIXME: ?? 有可能刚刚写进redis的时候，还无法马上读出来,这时候会无法找到图片,返回null
-							if (content != null) {
-								dos.writeInt(content.length);
-								dos.write(content);
+					String infos = null;
+					
+					if (infolen > 0)
+						infos = new String(readBytes(infolen, dis));
+					synchronized (dos) {
+						if (reqId >= 0)
+							dos.writeLong(reqId);
+						if (infos != null) {
+							if (s.getChannel() != null) {
+								// 零拷贝: 用transferTo把块文件中的内容直接发送到socket
+								PhotoRegion pr = null;
+								try {
+									pr = sp.openPhoto(infos, null);
+								} catch (RedirectException e) {
+								}
+								if (pr != null) {
+									dos.writeInt(pr.length());
+									dos.flush();
+									try {
+										pr.transferFully(s.getChannel());
+									} finally {
+										pr.close();
+									}
+								} else {
+									dos.writeInt(-1);
+								}
 							} else {
-								dos.writeInt(-1);
+								byte[] content = null;
+								try {
+									content = sp.searchPhoto(infos, null);
+								} catch (RedirectException e) {
+								}
+								// FIXME: ?? 有可能刚刚写进redis的时候，还无法马上读出来,这时候会无法找到图片,返回null
+								if (content != null) {
+									dos.writeInt(content.length);
+									dos.write(content);
+								} else {
+									dos.writeInt(-1);
+								}
 							}
-					} else {
-						dos.writeInt(-1);
+						} else {
+							dos.writeInt(-1);
+						}
+						dos.flush();
+					}
+				} else if (header[0] == ActionType.MSTORE) {
+					byte[] body = readBatchBody();
+					byte[] r = mStore(sp, body);
+					
+					synchronized (dos) {
+						if (reqId >= 0)
+							dos.writeLong(reqId);
+						if (r == null)
+							dos.writeInt(-1);
+						else {
+							dos.writeInt(r.length);
+							dos.write(r);
+						}
+						dos.flush();
+					}
+				} else if (header[0] == ActionType.MSEARCH) {
+					byte[] infos = readBatchBody();
+					Object[] reply = mSearch(sp, infos);
+					
+					try {
+						synchronized (dos) {
+							if (reqId >= 0)
+								dos.writeLong(reqId);
+							for (Object o : reply) {
+								if (o instanceof ByteBuffer) {
+									dos.write(((ByteBuffer)o).array(), 0, ((ByteBuffer)o).limit());
+								} else if (s.getChannel() != null) {
+									// 零拷贝: 先把缓冲的长度发出去,再transferTo
+									dos.flush();
+									((PhotoRegion)o).transferFully(s.getChannel());
+								} else {
+									byte[] content = new byte[((PhotoRegion)o).length()];
+									((PhotoRegion)o).read(content);
+									dos.write(content);
+								}
+							}
+							dos.flush();
+						}
+					} finally {
+						for (Object o : reply) {
+							if (o instanceof PhotoRegion)
+								((PhotoRegion)o).close();
+						}
+					}
+				} else if (header[0] == ActionType.DEL) {
+					byte[] setmd5 = readBytes(header[1] + header[2], dis);
+					String result = sp.delPhoto(new String(setmd5, 0, header[1]), new String(setmd5, header[1], header[2]));
+					
+					synchronized (dos) {
+						if (reqId >= 0)
+							dos.writeLong(reqId);
+						if (result == null)
+							dos.writeInt(-1);
+						else {
+							dos.writeInt(result.length());
+							dos.write(result.getBytes());
+						}
+						dos.flush();
 					}
-					dos.flush();
 				} else if (header[0] == ActionType.DELSET) {
 					String set = new String(readBytes(header[1], dis));
 
-					BlockingQueue<WriteTask> bq = sq.get(set);
-					
-					if(bq != null) {
-						// 要删除这个集合,把在这个集合上进行写的线程停掉, null作为标志
-						bq.add(new WriteTask(null, null, null, 0, 0));
-						
+					delSet(aw, sp, set);
+					synchronized (dos) {
+						if (reqId >= 0) {
+							dos.writeLong(reqId);
+							dos.writeInt(1);
+						}
+						dos.write(1);			//返回一个字节1,代表删除成功
+						dos.flush();
 					}
-					sp.delSet(set);
-					dos.write(1);			//返回一个字节1,代表删除成功
-					dos.flush();
 				} else if(header[0] == ActionType.SERVERINFO) {
-					ServerInfo si = new ServerInfo();
-					String str = "";
-					try {
-						str += si.getCpuTotalInfo() + System.getProperty("line.separator");
-						str += si.getMemInfo()+ System.getProperty("line.separator");
-						for(String s : si.getDiskInfo())
-							str += s+ System.getProperty("line.separator");
-					} catch (SigarException e) {
-						str = "#FAIL:" + e.getMessage();
-						e.printStackTrace();
+					String str = serverInfo();
+					synchronized (dos) {
+						if (reqId >= 0)
+							dos.writeLong(reqId);
+						dos.writeInt(str.length());
+						dos.write(str.getBytes());
+						dos.flush();
 					}
-					
-					dos.writeInt(str.length());
-					dos.write(str.getBytes());
-					dos.flush();
 				}
 			}
 		} catch (IOException e) {
@@ -146,6 +272,188 @@ public class Handler implements Runnable{
 		} finally {
 			if (sp != null)
 				sp.close();
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * 读取批量请求(MSTORE/MSEARCH)的请求体,长度与NIOServer的检查相同,
+	 * 长度不合法时抛出IOException,关闭连接
+	 */
+	private byte[] readBatchBody() throws IOException {
+		int len = dis.readInt();
+		if (len < 0 || len > Math.max(conf.getBlockSize() + 512, MAX_BATCH_FRAME))
+			throw new IOException("Invalid frame length " + len + " for batch request");
+		return readBytes(len, dis);
+	}
+	
+	/**
+	 * 把异步写任务加入到该集合所在分片的写队列中,队列满时按配置阻塞等待,
+	 * 或者(BUSY策略)由当前线程同步写入
+	 * @param wait	队列满时是否可以阻塞等待,NIO的工作线程是所有连接共用的,不能等待
+	 */
+	static void asyncStore(AsyncWriter aw, StorePhoto sp, 
+			String set, String md5, byte[] content, int coff, int clen, boolean wait) {
+		if (!aw.submit(new WriteTask(set, md5, content, coff, clen), wait))
+			sp.storePhoto(set, md5, content, coff, clen);
+	}
+	
+	/**
+	 * 批量写,body是若干个 集合长度(byte) + md5长度(byte) + 内容长度(int) + 集合 + md5 + 内容.
+	 * 内容不拷贝,直接从body中写入块
+	 * @return	个数(int) + 若干个 元信息长度(int) + 元信息,body格式错误时为null,不写入任何对象
+	 */
+	static byte[] mStore(StorePhoto sp, byte[] body) {
+		ByteBuffer in = ByteBuffer.wrap(body);
+		List<String> sets = new ArrayList<String>();
+		List<String> md5s = new ArrayList<String>();
+		List<Integer> coffs = new ArrayList<Integer>();
+		List<Integer> clens = new ArrayList<Integer>();
+		
+		while (in.hasRemaining()) {
+			if (in.remaining() < 6)
+				return null;
+			//长度按无符号的byte读,与SEARCH相同
+			int setlen = in.get() & 0xff;
+			int md5len = in.get() & 0xff;
+			int clen = in.getInt();
+			//格式错误时整个请求失败,而不是只写入前面的对象
+			if (clen < 0 || (long)setlen + md5len + clen > in.remaining())
+				return null;
+			sets.add(new String(body, in.position(), setlen));
+			md5s.add(new String(body, in.position() + setlen, md5len));
+			coffs.add(in.position() + setlen + md5len);
+			clens.add(clen);
+			in.position(in.position() + setlen + md5len + clen);
+		}
+		
+		int n = sets.size();
+		byte[][] content = new byte[n][];
+		int[] coff = new int[n];
+		int[] clen = new int[n];
+		for (int i = 0; i < n; i++) {
+			content[i] = body;
+			coff[i] = coffs.get(i);
+			clen[i] = clens.get(i);
+		}
+		String[] r = sp.mstorePhoto(sets.toArray(new String[0]), md5s.toArray(new String[0]), 
+				content, coff, clen);
+		
+		byte[][] infos = new byte[n][];
+		int len = 4;
+		for (int i = 0; i < n; i++) {
+			if (r[i] != null) {
+				infos[i] = r[i].getBytes();
+				len += infos[i].length;
+			}
+			len += 4;
+		}
+		ByteBuffer out = ByteBuffer.allocate(len);
+		out.putInt(n);
+		for (int i = 0; i < n; i++) {
+			if (infos[i] == null)
+				out.putInt(-1);
+			else {
+				out.putInt(infos[i].length);
+				out.put(infos[i]);
+			}
+		}
+		return out.array();
+	}
+	
+	/**
+	 * 批量读,infos是若干个 元信息长度(int) + 元信息.
+	 * 返回回复的各个部分: ByteBuffer或者PhotoRegion,PhotoRegion由调用者发送后关闭.
+	 * 回复超过MAX_MSEARCH_REPLY的对象不放在这次回复中,长度为-1,由客户端逐个读
+	 */
+	static Object[] mSearch(StorePhoto sp, byte[] infos) {
+		ByteBuffer in = ByteBuffer.wrap(infos);
+		List<Object> parts = new ArrayList<Object>();
+		long total = 4;
+		int n = 0;
+		
+		parts.add(null);
+		while (in.remaining() >= 4) {
+			int len = in.getInt();
+			if (len < 0 || len > in.remaining())
+				break;
+			String info = new String(infos, in.position(), len);
+			in.position(in.position() + len);
+			
+			PhotoRegion pr = null;
+			try {
+				pr = sp.openPhoto(info, null);
+			} catch (RedirectException e) {
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if (pr != null && total + 4 + pr.length() > MAX_MSEARCH_REPLY) {
+				pr.close();
+				pr = null;
+			}
+			ByteBuffer bb = ByteBuffer.allocate(4);
+			bb.putInt(pr == null ? -1 : pr.length());
+			bb.flip();
+			parts.add(bb);
+			total += 4;
+			if (pr != null) {
+				parts.add(pr);
+				total += pr.length();
+			}
+			n++;
+		}
+		//回复的第一部分: 总长度和个数
+		ByteBuffer head = ByteBuffer.allocate(8);
+		head.putInt((int)total);
+		head.putInt(n);
+		head.flip();
+		parts.set(0, head);
+		return parts.toArray();
+	}
+	
+	/**
+	 * 丢弃该集合排队中的异步写任务,然后删除该集合的所有文件
+	 */
+	static void delSet(AsyncWriter aw, StorePhoto sp, String set) {
+		aw.dropSet(set);
+		sp.delSet(set);
+	}
+	
+	/**
+	 * 获取本节点的cpu,内存和磁盘信息
+	 */
+	static String serverInfo() {
+		ServerInfo si = new ServerInfo();
+		String str = "";
+		try {
+			str += si.getCpuTotalInfo() + System.getProperty("line.separator");
+			str += si.getMemInfo()+ System.getProperty("line.separator");
+			for(String s : si.getDiskInfo())
+				str += s+ System.getProperty("line.separator");
+		} catch (SigarException e) {
+			str = "#FAIL:" + e.getMessage();
+			e.printStackTrace();
+		}
+		return str;
+	}
+	
+	/**
+	 * 回复一个ASYNCSTOREACK,它由写线程异步发出,所以要和其他回复互斥
+	 */
+	private void sendAck(long reqId, byte[] r, int len) {
+		try {
+			synchronized (dos) {
+				dos.writeLong(reqId);
+				dos.writeInt(len);
+				if (r != null)
+					dos.write(r);
+				dos.flush();
+			}
+		} catch (IOException e) {
+			System.out.println("Send ack " + reqId + " failed: " + e.getMessage());
 		}
 	}
 	
@@ -0,0 +1,74 @@
+package iie.mm.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in microseconds, with 4 buckets per power
+ * of two (at most ~19% error), for percentiles of write acknowledgements.
+ */
+public class LatencyHistogram {
+	private static final int SUB = 4;
+	// up to 2^40 us
+	private static final int BUCKETS = 40 * SUB;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private static int bucket(long us) {
+		if (us < 1)
+			return 0;
+		int log = 63 - Long.numberOfLeadingZeros(us);
+		// next 2 bits below the leading one
+		int sub = log >= 2 ? (int)((us >>> (log - 2)) & (SUB - 1)) : (int)((us << (2 - log)) & (SUB - 1));
+		return Math.min(BUCKETS - 1, log * SUB + sub);
+	}
+
+	// upper bound of a bucket
+	private static long value(int b) {
+		int log = b / SUB, sub = b % SUB;
+		return (long)((1L << log) * (1 + (sub + 1) / (double)SUB));
+	}
+
+	public void add(long nanos) {
+		counts.incrementAndGet(bucket(nanos / 1000));
+	}
+
+	/**
+	 * @return percentiles in us, e.g. for {50, 99}
+	 */
+	public long[] percentiles(double[] ps) {
+		long[] c = new long[BUCKETS];
+		long total = 0;
+		long[] r = new long[ps.length];
+
+		for (int i = 0; i < BUCKETS; i++) {
+			c[i] = counts.get(i);
+			total += c[i];
+		}
+		if (total == 0)
+			return r;
+		for (int j = 0; j < ps.length; j++) {
+			long want = (long)Math.ceil(total * ps[j] / 100), n = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				n += c[i];
+				if (n >= want) {
+					r[j] = value(i);
+					break;
+				}
+			}
+		}
+		return r;
+	}
+
+	public long count() {
+		long n = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+			n += counts.get(i);
+		return n;
+	}
+
+	public String toString() {
+		long[] p = percentiles(new double[]{50, 90, 99, 99.9});
+		return "n " + count() + ", p50/p90/p99/p999 " + p[0] + "/" + p[1] + "/" + p[2] + "/" + p[3] + " us";
+	}
+}
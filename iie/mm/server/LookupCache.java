@@ -0,0 +1,160 @@
+package iie.mm.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread safe object map with a hard entry cap and per-entry expiry. It has
+ * the same put/get/remove surface as TimeLimitedCacheMap, but:
+ *
+ * 1. There is no global lock, keys are striped over segments, each segment
+ *    has its own lock and its own share of the entry cap;
+ * 2. There is no evictor thread. All entries of a segment share the same TTL,
+ *    thus insertion order is expiry order, and put() expires from the eldest
+ *    end (amortized O(1)), get() drops an expired entry when it meets one;
+ * 3. When a segment is full, put() evicts its eldest entry, so a scan over a
+ *    huge set can not blow the heap.
+ */
+public final class LookupCache {
+	private static final int DEFAULT_SEGMENTS = 32;
+	// expire at most this many stale entries per put
+	private static final int EXPIRE_BATCH = 8;
+
+	private static final class Entry {
+		final Object value;
+		final long expireAt;
+
+		Entry(Object value, long expireAt) {
+			this.value = value;
+			this.expireAt = expireAt;
+		}
+	}
+
+	private static final class Segment {
+		// insertion ordered, the eldest entry expires first
+		final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>();
+	}
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final int segmentCap;
+	private final long ttlNanos;
+
+	public LookupCache(int maxEntries, long expiryTime, TimeUnit unit) {
+		this(maxEntries, expiryTime, unit, DEFAULT_SEGMENTS);
+	}
+
+	public LookupCache(int maxEntries, long expiryTime, TimeUnit unit, int concurrency) {
+		int n = 1;
+		while (n < concurrency)
+			n <<= 1;
+		segments = new Segment[n];
+		for (int i = 0; i < n; i++)
+			segments[i] = new Segment();
+		segmentMask = n - 1;
+		segmentCap = Math.max(1, (maxEntries + n - 1) / n);
+		ttlNanos = unit.toNanos(expiryTime);
+	}
+
+	private Segment segmentFor(Object key) {
+		int h = key.hashCode();
+		// spread the hash bits, as HashMap does
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[h & segmentMask];
+	}
+
+	public void put(String key, Object value) {
+		Segment s = segmentFor(key);
+		long now = System.nanoTime();
+
+		synchronized (s) {
+			// re-put moves the key to the young end
+			s.map.remove(key);
+			s.map.put(key, new Entry(value, now + ttlNanos));
+			Iterator<Map.Entry<String, Entry>> iter = s.map.entrySet().iterator();
+			int expired = 0;
+			while (iter.hasNext()) {
+				Entry e = iter.next().getValue();
+				if (s.map.size() > segmentCap ||
+						(expired < EXPIRE_BATCH && e.expireAt - now < 0)) {
+					iter.remove();
+					expired++;
+				} else
+					break;
+			}
+		}
+	}
+
+	public Object remove(Object key) {
+		Segment s = segmentFor(key);
+		Entry e;
+
+		synchronized (s) {
+			e = s.map.remove(key);
+		}
+		return e == null ? null : e.value;
+	}
+
+	public Object get(String key) {
+		Segment s = segmentFor(key);
+		Entry e;
+
+		synchronized (s) {
+			e = s.map.get(key);
+			if (e != null && e.expireAt - System.nanoTime() < 0) {
+				s.map.remove(key);
+				e = null;
+			}
+		}
+		return e == null ? null : e.value;
+	}
+
+	/**
+	 * Remove all the entries whose key starts with prefix, e.g. on set deletion.
+	 */
+	public void invalidate(String prefix) {
+		for (Segment s : segments) {
+			synchronized (s) {
+				Iterator<String> iter = s.map.keySet().iterator();
+				while (iter.hasNext()) {
+					if (iter.next().startsWith(prefix))
+						iter.remove();
+				}
+			}
+		}
+	}
+
+	public int size() {
+		int n = 0;
+
+		for (Segment s : segments) {
+			synchronized (s) {
+				n += s.map.size();
+			}
+		}
+		return n;
+	}
+
+	/* Each segment is copied under its own lock, so the clone is not an
+	 * atomic snapshot of the whole map.
+	 */
+	public Map<String, Object> getClonedMap() {
+		HashMap<String, Object> mapClone = new HashMap<String, Object>();
+		long now = System.nanoTime();
+
+		for (Segment s : segments) {
+			synchronized (s) {
+				for (Map.Entry<String, Entry> e : s.map.entrySet()) {
+					if (e.getValue().expireAt - now >= 0)
+						mapClone.put(e.getKey(), e.getValue().value);
+				}
+			}
+		}
+		return Collections.unmodifiableMap(mapClone);
+	}
+}
@@ -0,0 +1,130 @@
+package iie.mm.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput comparison of TimeLimitedCacheMap and LookupCache under the
+ * StorePhoto lookup pattern: get, and put on miss, with a few removes.
+ *
+ * Each round runs a warmup pass and then a measured pass, like a JMH
+ * throughput benchmark with one fork. Keys are drawn from a skewed
+ * distribution over a key space much larger than the LookupCache cap, which
+ * is what a full set scan through HTTP /get looks like.
+ *
+ * Usage: LookupCacheBench [-th 16] [-sec 5] [-keys 2000000] [-cap 100000] [-rounds 3]
+ */
+public class LookupCacheBench {
+	static interface Cache {
+		Object get(String key);
+		void put(String key, Object value);
+		Object remove(String key);
+		int size();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = 16, seconds = 5, keys = 2000000, cap = 100000, rounds = 3;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-th"))
+				threads = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-sec"))
+				seconds = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-keys"))
+				keys = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-cap"))
+				cap = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-rounds"))
+				rounds = Integer.parseInt(args[i + 1]);
+		}
+		System.out.println(threads + " threads, " + keys + " keys, LookupCache cap " + cap +
+				", " + rounds + " rounds x " + seconds + "s");
+
+		for (int r = 0; r < rounds; r++) {
+			final TimeLimitedCacheMap tlc = new TimeLimitedCacheMap(10, 60, 300, TimeUnit.SECONDS);
+			run("TimeLimitedCacheMap", new Cache() {
+				public Object get(String key) {
+					return tlc.get(key);
+				}
+				public void put(String key, Object value) {
+					tlc.put(key, value);
+				}
+				public Object remove(String key) {
+					return tlc.remove(key);
+				}
+				public int size() {
+					return tlc.getClonedMap().size();
+				}
+			}, threads, seconds, keys);
+
+			final LookupCache lc = new LookupCache(cap, 300, TimeUnit.SECONDS);
+			run("LookupCache", new Cache() {
+				public Object get(String key) {
+					return lc.get(key);
+				}
+				public void put(String key, Object value) {
+					lc.put(key, value);
+				}
+				public Object remove(String key) {
+					return lc.remove(key);
+				}
+				public int size() {
+					return lc.size();
+				}
+			}, threads, seconds, keys);
+		}
+		System.exit(0);
+	}
+
+	static void run(String name, final Cache c, int threads, final int seconds, final int keys)
+			throws Exception {
+		final AtomicLong ops = new AtomicLong(0);
+		final AtomicLong hits = new AtomicLong(0);
+		// warmup, then measure
+		for (int pass = 0; pass < 2; pass++) {
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			final boolean measure = (pass == 1);
+			List<Thread> ts = new ArrayList<Thread>();
+			for (int i = 0; i < threads; i++) {
+				final long seed = i * 31 + pass;
+				ts.add(new Thread() {
+					public void run() {
+						Random rand = new Random(seed);
+						long n = 0, h = 0;
+						while (System.nanoTime() < deadline) {
+							for (int j = 0; j < 1000; j++) {
+								// skewed: low key ids are hot
+								double d = rand.nextDouble();
+								String key = "set." + (int)(d * d * d * keys);
+								Object v = c.get(key);
+								if (v == null)
+									c.put(key, key);
+								else
+									h++;
+								if (j % 100 == 0)
+									c.remove(key);
+							}
+							n += 1000;
+						}
+						if (measure) {
+							ops.addAndGet(n);
+							hits.addAndGet(h);
+						}
+					}
+				});
+			}
+			for (Thread t : ts)
+				t.start();
+			for (Thread t : ts)
+				t.join();
+		}
+		Runtime rt = Runtime.getRuntime();
+		System.out.println(String.format("%-20s %12.0f ops/s, hit ratio %.3f, entries %d, heap used %dMB",
+				name, ops.get() / (double)seconds, hits.get() / (double)ops.get(), c.size(),
+				(rt.totalMemory() - rt.freeMemory()) / 1024 / 1024));
+		System.gc();
+	}
+}
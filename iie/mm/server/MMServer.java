@@ -1,8 +1,10 @@
 package iie.mm.server;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Set;
 
 public class MMServer {
@@ -56,6 +58,34 @@ public class MMServer {
 				blockSize = ServerConf.DEFAULT_BLOCK_SIZE, 
 				period = ServerConf.DEFAULT_PERIOD,
 				httpPort = ServerConf.DEFAULT_HTTP_PORT;
+		boolean useNio = false, groupCommit = false;
+		int flushInterval = ServerConf.DEFAULT_FLUSH_INTERVAL, 
+				reqnrToFlush = ServerConf.DEFAULT_REQNR_TO_FLUSH;
+		long mmapBudget = ServerConf.DEFAULT_MMAP_BUDGET;
+		int maxOpenBlocks = ServerConf.DEFAULT_MAX_OPEN_BLOCKS;
+		long contentCacheSize = ServerConf.DEFAULT_CONTENT_CACHE_SIZE;
+		boolean contentCacheOffheap = false;
+		int lookupCacheSize = ServerConf.DEFAULT_LOOKUP_CACHE_SIZE;
+		int redisPoolSize = ServerConf.DEFAULT_REDIS_POOL_SIZE;
+		int asyncWorkers = 0;
+		long asyncQueueBytes = ServerConf.DEFAULT_ASYNC_QUEUE_BYTES;
+		boolean asyncBusy = false;
+		boolean dedupIndex = true;
+		boolean rebuildMeta = false, rebuildVerify = false;
+		int rebuildThreads = 4;
+		String diskPolicy = null;
+		Map<String, Integer> diskWeights = new HashMap<String, Integer>();
+		long diskMinFree = ServerConf.DEFAULT_DISK_MIN_FREE;
+		boolean diskWriter = false;
+		int diskWriterBatch = ServerConf.DEFAULT_DISK_WRITER_BATCH;
+		String durability = null;
+		long syncInterval = ServerConf.DEFAULT_SYNC_INTERVAL, syncBytes = ServerConf.DEFAULT_SYNC_BYTES;
+		long compactInterval = 0, compactRate = ServerConf.DEFAULT_COMPACT_RATE;
+		long compactGrace = ServerConf.DEFAULT_COMPACT_GRACE;
+		int compactDead = ServerConf.DEFAULT_COMPACT_DEAD_PERCENT;
+		long expireInterval = ServerConf.DEFAULT_EXPIRE_INTERVAL;
+		long trashRate = ServerConf.DEFAULT_TRASH_RATE;
+		int nioThreads = -1, nioWorkers = -1;
 		Set<String> sa = new HashSet<String>();
 		Set<String> sentinels = new HashSet<String>();
 		
@@ -72,6 +102,39 @@ public class MMServer {
 				System.out.println("-prd  : logging period.");
 				System.out.println("-sa   : storage array.");
 				System.out.println("-stl  : sentinels <host:port;host:port>.");
+				System.out.println("-nio  : use NIO event loop instead of thread per connection.");
+				System.out.println("-nio_th : number of NIO I/O threads.");
+				System.out.println("-nio_wk : number of NIO worker threads.");
+				System.out.println("-gc   : group commit concurrent writes.");
+				System.out.println("-fi   : group commit flush interval (ms).");
+				System.out.println("-rf   : group commit max requests per flush.");
+				System.out.println("-mmb  : max mapped bytes of block cache (MB).");
+				System.out.println("-mob  : max open block files of block cache.");
+				System.out.println("-cc   : hot object content cache size (MB), 0 to disable.");
+				System.out.println("-cc_offheap : keep cached contents off java heap.");
+				System.out.println("-lcs  : max entries of set@md5 lookup cache.");
+				System.out.println("-rps  : max connections of redis pool (standalone mode).");
+				System.out.println("-aw   : number of async write threads (shards).");
+				System.out.println("-aqb  : total bytes of async write queues (MB).");
+				System.out.println("-abusy : do not block when async write queue is full.");
+				System.out.println("-nodd : disable the local dedup index.");
+				System.out.println("-dp   : disk placement policy <random|p2c|least>.");
+				System.out.println("-dw   : disk weights <path=weight;path=weight>.");
+				System.out.println("-dmf  : min free space of a writable disk (MB).");
+				System.out.println("-pdw  : append through one writer thread per disk.");
+				System.out.println("-pdwb : max requests merged by a disk writer at once.");
+				System.out.println("-dur  : durability mode <none|periodic|group>.");
+				System.out.println("-dsi  : periodic sync interval (ms).");
+				System.out.println("-dsb  : periodic sync after this many written bytes (MB).");
+				System.out.println("-cpi  : compact sealed blocks every this many seconds (0 disables).");
+				System.out.println("-cpr  : max compaction I/O rate (MB/s).");
+				System.out.println("-cpd  : compact blocks with at least this percent of dead bytes.");
+				System.out.println("-cpg  : compaction grace period (seconds).");
+				System.out.println("-exi  : expire blocks of sets with a ttl every this many seconds (0 disables).");
+				System.out.println("-tdr  : max rate of deleting files of deleted sets (MB/s, 0 for no limit).");
+				System.out.println("-rebuild_meta : rebuild the metadata in redis from local blocks, then exit.");
+				System.out.println("-rbt  : rebuild threads per disk.");
+				System.out.println("-rbv  : verify content checksums while rebuilding.");
 				
 				System.exit(0);
 			}
@@ -149,6 +212,241 @@ public class MMServer {
 					sentinels.add(stls[i]);
 				}
 			}
+			if (o.flag.equals("-nio")) {
+				useNio = true;
+			}
+			if (o.flag.equals("-nio_th")) {
+				// set NIO I/O threads
+				if (o.opt == null) {
+					System.out.println("-nio_th threads");
+					System.exit(0);
+				}
+				nioThreads = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-nio_wk")) {
+				// set NIO worker threads
+				if (o.opt == null) {
+					System.out.println("-nio_wk threads");
+					System.exit(0);
+				}
+				nioWorkers = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-gc")) {
+				groupCommit = true;
+			}
+			if (o.flag.equals("-fi")) {
+				// set group commit flush interval
+				if (o.opt == null) {
+					System.out.println("-fi flushInterval");
+					System.exit(0);
+				}
+				flushInterval = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-rf")) {
+				// set group commit batch size
+				if (o.opt == null) {
+					System.out.println("-rf reqnrToFlush");
+					System.exit(0);
+				}
+				reqnrToFlush = Integer.parseInt(o.opt);
+				if (reqnrToFlush < 1)
+					throw new IllegalArgumentException("Invalid reqnrToFlush: " + reqnrToFlush);
+			}
+			if (o.flag.equals("-mmb")) {
+				// set block cache mapping budget
+				if (o.opt == null) {
+					System.out.println("-mmb MB");
+					System.exit(0);
+				}
+				mmapBudget = Long.parseLong(o.opt) * 1024 * 1024;
+			}
+			if (o.flag.equals("-mob")) {
+				// set block cache descriptor budget
+				if (o.opt == null) {
+					System.out.println("-mob files");
+					System.exit(0);
+				}
+				maxOpenBlocks = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-cc")) {
+				// set content cache size
+				if (o.opt == null) {
+					System.out.println("-cc MB");
+					System.exit(0);
+				}
+				contentCacheSize = Long.parseLong(o.opt) * 1024 * 1024;
+			}
+			if (o.flag.equals("-cc_offheap")) {
+				contentCacheOffheap = true;
+			}
+			if (o.flag.equals("-lcs")) {
+				// set lookup cache size
+				if (o.opt == null) {
+					System.out.println("-lcs entries");
+					System.exit(0);
+				}
+				lookupCacheSize = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-rps")) {
+				// set redis pool size
+				if (o.opt == null) {
+					System.out.println("-rps connections");
+					System.exit(0);
+				}
+				redisPoolSize = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-aw")) {
+				// set async write threads
+				if (o.opt == null) {
+					System.out.println("-aw threads");
+					System.exit(0);
+				}
+				asyncWorkers = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-aqb")) {
+				// set async write queue budget
+				if (o.opt == null) {
+					System.out.println("-aqb MB");
+					System.exit(0);
+				}
+				asyncQueueBytes = Long.parseLong(o.opt) * 1024 * 1024;
+				if (asyncQueueBytes < 1)
+					throw new IllegalArgumentException("Invalid async queue bytes: " + o.opt + "MB");
+			}
+			if (o.flag.equals("-abusy")) {
+				asyncBusy = true;
+			}
+			if (o.flag.equals("-nodd")) {
+				dedupIndex = false;
+			}
+			if (o.flag.equals("-dp")) {
+				// set disk placement policy
+				if (o.opt == null) {
+					System.out.println("-dp <random|p2c|least>");
+					System.exit(0);
+				}
+				DiskPlacer.parsePolicy(o.opt);
+				diskPolicy = o.opt;
+			}
+			if (o.flag.equals("-dw")) {
+				// set disk weights
+				if (o.opt == null) {
+					System.out.println("-dw path=weight;path=weight");
+					System.exit(0);
+				}
+				for (String w : o.opt.split(";")) {
+					int i = w.lastIndexOf('=');
+					if (i <= 0)
+						throw new IllegalArgumentException("Invalid disk weight: " + w);
+					diskWeights.put(w.substring(0, i), Integer.parseInt(w.substring(i + 1)));
+				}
+			}
+			if (o.flag.equals("-dmf")) {
+				// set min free space of writable disks
+				if (o.opt == null) {
+					System.out.println("-dmf MB");
+					System.exit(0);
+				}
+				diskMinFree = Long.parseLong(o.opt) * 1024 * 1024;
+			}
+			if (o.flag.equals("-pdw")) {
+				diskWriter = true;
+			}
+			if (o.flag.equals("-pdwb")) {
+				// set disk writer batch size
+				if (o.opt == null) {
+					System.out.println("-pdwb requests");
+					System.exit(0);
+				}
+				diskWriterBatch = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-dur")) {
+				// set durability mode
+				if (o.opt == null) {
+					System.out.println("-dur <none|periodic|group>");
+					System.exit(0);
+				}
+				BlockSyncer.parseMode(o.opt);
+				durability = o.opt;
+			}
+			if (o.flag.equals("-dsi")) {
+				// set periodic sync interval
+				if (o.opt == null) {
+					System.out.println("-dsi ms");
+					System.exit(0);
+				}
+				syncInterval = Long.parseLong(o.opt);
+			}
+			if (o.flag.equals("-dsb")) {
+				// set periodic sync bytes
+				if (o.opt == null) {
+					System.out.println("-dsb MB");
+					System.exit(0);
+				}
+				syncBytes = Long.parseLong(o.opt) * 1024 * 1024;
+			}
+			if (o.flag.equals("-cpi")) {
+				// set compaction interval
+				if (o.opt == null) {
+					System.out.println("-cpi seconds");
+					System.exit(0);
+				}
+				compactInterval = Long.parseLong(o.opt);
+			}
+			if (o.flag.equals("-cpr")) {
+				// set compaction rate
+				if (o.opt == null) {
+					System.out.println("-cpr MB/s");
+					System.exit(0);
+				}
+				compactRate = Long.parseLong(o.opt) * 1024 * 1024;
+			}
+			if (o.flag.equals("-cpd")) {
+				// set dead bytes percent to compact a block
+				if (o.opt == null) {
+					System.out.println("-cpd percent");
+					System.exit(0);
+				}
+				compactDead = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-cpg")) {
+				// set compaction grace period
+				if (o.opt == null) {
+					System.out.println("-cpg seconds");
+					System.exit(0);
+				}
+				compactGrace = Long.parseLong(o.opt);
+			}
+			if (o.flag.equals("-exi")) {
+				// set expiration interval
+				if (o.opt == null) {
+					System.out.println("-exi seconds");
+					System.exit(0);
+				}
+				expireInterval = Long.parseLong(o.opt);
+			}
+			if (o.flag.equals("-tdr")) {
+				// set trash deleting rate
+				if (o.opt == null) {
+					System.out.println("-tdr MB/s");
+					System.exit(0);
+				}
+				trashRate = Long.parseLong(o.opt) * 1024 * 1024;
+			}
+			if (o.flag.equals("-rebuild_meta")) {
+				rebuildMeta = true;
+			}
+			if (o.flag.equals("-rbt")) {
+				// set rebuild threads per disk
+				if (o.opt == null) {
+					System.out.println("-rbt threads");
+					System.exit(0);
+				}
+				rebuildThreads = Integer.parseInt(o.opt);
+			}
+			if (o.flag.equals("-rbv")) {
+				rebuildVerify = true;
+			}
 		}
 		
 		// set the serverConf
@@ -158,11 +456,57 @@ public class MMServer {
 			else
 				conf = new ServerConf(serverName, serverPort, redisServer, redisPort, blockSize, period, httpPort);
 			conf.setStoreArray(sa);
+			conf.setUse_nio(useNio);
+			if (nioThreads > 0)
+				conf.setNio_threads(nioThreads);
+			if (nioWorkers > 0)
+				conf.setNio_workers(nioWorkers);
+			conf.setGroup_commit(groupCommit);
+			conf.setFlush_interval(flushInterval);
+			conf.setReqnr_to_flush(reqnrToFlush);
+			conf.setMmap_budget(mmapBudget);
+			conf.setMax_open_blocks(maxOpenBlocks);
+			conf.setContent_cache_size(contentCacheSize);
+			conf.setContent_cache_offheap(contentCacheOffheap);
+			conf.setLookup_cache_size(lookupCacheSize);
+			conf.setRedis_pool_size(redisPoolSize);
+			conf.setAsync_workers(asyncWorkers);
+			conf.setAsync_queue_bytes(asyncQueueBytes);
+			conf.setAsync_busy(asyncBusy);
+			conf.setDedup_index(dedupIndex);
+			if (diskPolicy != null)
+				conf.setDisk_policy(diskPolicy);
+			conf.setDisk_weights(diskWeights);
+			conf.setDisk_min_free(diskMinFree);
+			conf.setDisk_writer(diskWriter);
+			conf.setDisk_writer_batch(diskWriterBatch);
+			if (durability != null)
+				conf.setDurability(durability);
+			conf.setSync_interval(syncInterval);
+			conf.setSync_bytes(syncBytes);
+			conf.setCompact_interval(compactInterval);
+			conf.setCompact_rate(compactRate);
+			conf.setCompact_dead_percent(compactDead);
+			conf.setCompact_grace(compactGrace);
+			conf.setExpire_interval(expireInterval);
+			conf.setTrash_rate(trashRate);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(0);
 		}
 		
+		if (rebuildMeta) {
+			try {
+				//先注册本节点,得到serverId,新的元信息中要用到它
+				new ProfileTimerTask(conf, period);
+				boolean ok = new MetaRebuild(conf, rebuildThreads, rebuildVerify).run();
+				System.exit(ok ? 0 : 1);
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		
 		PhotoServer ps = null;
 		try {
 			ps = new PhotoServer(conf);
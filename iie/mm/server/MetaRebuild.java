@@ -0,0 +1,313 @@
+package iie.mm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Rebuild the metadata of this node in Redis from the record headers in the
+ * blocks (see BlockRecord), e.g. after the Redis master lost its data. It
+ * should run while the server is stopped.
+ *
+ * Every disk of the storage array is scanned by its own thread pool, one
+ * block per task, and each task pushes its INFOs to Redis in pipelined
+ * batches. It regenerates:
+ *
+ *   set -> md5 -> INFO, appended to the existing chain (replicas stored on
+ *       other nodes) unless it is already there, so reruns are harmless;
+ *   set.srvs membership of this node;
+ *   set.blk.node.disk, the last block number of the set on each disk.
+ *
+ * Records deleted by DEL are still in their blocks until compaction, each
+ * with a tombstone written after it (maybe in another block or disk). The
+ * INFOs named by the tombstones are collected during the scan and removed
+ * again once all the blocks are pushed, so deleted objects do not come back.
+ *
+ * Only the header is read for each record unless verify is set, then the
+ * contents are read too and records with bad checksums are skipped. Legacy
+ * blocks without record headers can not be recovered this way, they are
+ * counted and reported.
+ */
+public class MetaRebuild {
+	private static final int BATCH = 10000;
+	// append ARGV[2] to the INFO chain of KEYS[1]/ARGV[1] if it is not there yet
+	private static final String APPEND_INFO =
+			"local v = redis.call('hget', KEYS[1], ARGV[1]) " +
+			"if not v then redis.call('hset', KEYS[1], ARGV[1], ARGV[2]) " +
+			"elseif not string.find('#' .. v .. '#', '#' .. ARGV[2] .. '#', 1, true) then " +
+			"redis.call('hset', KEYS[1], ARGV[1], v .. '#' .. ARGV[2]) end";
+
+	private ServerConf conf;
+	private String node;
+	private int threads;
+	private boolean verify;
+	private String sha;
+	private String removeSha;
+
+	private AtomicLong blocks = new AtomicLong(0);
+	private AtomicLong legacy = new AtomicLong(0);
+	private AtomicLong objects = new AtomicLong(0);
+	private AtomicLong bad = new AtomicLong(0);
+	private AtomicLong broken = new AtomicLong(0);
+	private AtomicLong bytes = new AtomicLong(0);
+	private AtomicLong failed = new AtomicLong(0);
+	// set:disk -> last block number
+	private Map<String, Long> lastBlock = new HashMap<String, Long>();
+	// {set, md5, INFO} deleted by the tombstones found
+	private List<String[]> deleted = new ArrayList<String[]>();
+
+	/**
+	 * @param threads	scanning threads per disk
+	 * @param verify	read the contents and check their checksums
+	 */
+	public MetaRebuild(ServerConf conf, int threads, boolean verify) {
+		this.conf = conf;
+		this.node = conf.getNodeName() + ":" + conf.getServerPort();
+		this.threads = threads;
+		this.verify = verify;
+		// every scanning thread holds a redis connection
+		int disks = Math.max(1, conf.getStoreArray().size());
+		if (conf.getRedis_pool_size() < disks * threads + 1)
+			conf.setRedis_pool_size(disks * threads + 1);
+	}
+
+	/**
+	 * @return true if all the blocks were scanned and pushed to Redis
+	 */
+	public boolean run() throws Exception {
+		long begin = System.currentTimeMillis();
+		Jedis jedis = new RedisFactory(conf).getDefaultInstance();
+		if (jedis == null)
+			throw new JedisException("Get default jedis instance failed.");
+		try {
+			sha = jedis.scriptLoad(APPEND_INFO);
+			removeSha = jedis.scriptLoad(Expirer.REMOVE_INFO);
+		} finally {
+			RedisFactory.putInstance(jedis);
+		}
+
+		Set<String> disks = conf.getStoreArray();
+		if (disks.size() == 0) {
+			disks = new HashSet<String>();
+			disks.add(".");
+		}
+		List<ExecutorService> pools = new ArrayList<ExecutorService>();
+		for (final String disk : disks) {
+			File root = new File(disk + "/" + StorePhoto.destRoot);
+			File[] sets = root.listFiles();
+			if (sets == null) {
+				System.out.println("No MM data in disk " + disk);
+				continue;
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			pools.add(pool);
+			for (File sd : sets) {
+				if (!sd.isDirectory())
+					continue;
+				final String set = sd.getName();
+				File[] bfs = sd.listFiles();
+				if (bfs == null)
+					continue;
+				Arrays.sort(bfs);
+				for (final File bf : bfs) {
+					final long block = blockNumber(bf.getName());
+					if (block < 0)
+						continue;
+					noteBlock(set, disk, block);
+					pool.execute(new Runnable() {
+						@Override
+						public void run() {
+							scanBlock(set, disk, block, bf);
+						}
+					});
+				}
+			}
+			pool.shutdown();
+		}
+		for (ExecutorService pool : pools)
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+
+		commitSets();
+		applyTombstones();
+
+		long ms = Math.max(1, System.currentTimeMillis() - begin);
+		System.out.println("Rebuilt metadata of " + node + " (serverId " + ServerConf.serverId + "): " +
+				objects.get() + " objects in " + blocks.get() + " blocks, " + (bytes.get() / 1024 / 1024) +
+				"MB in " + ms + " ms (" + (bytes.get() / 1024 * 1000 / 1024 / ms) + "MB/s).");
+		System.out.println(" Legacy blocks (not recovered): " + legacy.get() + ", bad checksums: " + bad.get() +
+				", broken tails: " + broken.get() + ", deleted by tombstones: " + deleted.size() +
+				", failed blocks: " + failed.get());
+		return failed.get() == 0;
+	}
+
+	static long blockNumber(String name) {
+		if (name.length() < 2 || name.charAt(0) != 'b')
+			return -1;
+		try {
+			return Long.parseLong(name.substring(1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void noteBlock(String set, String disk, long block) {
+		String k = set + ":" + disk;
+		synchronized (lastBlock) {
+			Long l = lastBlock.get(k);
+			if (l == null || l < block)
+				lastBlock.put(k, block);
+		}
+	}
+
+	private void scanBlock(String set, String disk, long block, File f) {
+		Jedis jedis = null;
+		BlockRecord.Reader r = null;
+
+		try {
+			if (BlockRecord.isLegacy(f)) {
+				legacy.incrementAndGet();
+				return;
+			}
+			jedis = new RedisFactory(conf).getDefaultInstance();
+			Pipeline p = jedis.pipelined();
+			int n = 0;
+			BlockRecord.Record rec;
+
+			r = new BlockRecord.Reader(f, verify);
+			while ((rec = r.next()) != null) {
+				if (rec.isSegment())
+					continue;
+				if (rec.isTombstone()) {
+					noteTombstone(rec, new String(r.read(rec)));
+					continue;
+				}
+				if (!rec.valid) {
+					bad.incrementAndGet();
+					System.out.println("Bad checksum of " + rec.set + "@" + rec.md5 + " in " + f);
+					continue;
+				}
+				String info = (rec.isManifest() ? "2@" : "1@") + rec.set + "@" + ServerConf.serverId + "@" +
+						block + "@" + rec.offset + "@" + rec.length + "@" + disk;
+				p.evalsha(sha, 1, new String[]{rec.set, rec.md5, info});
+				objects.incrementAndGet();
+				if (++n % BATCH == 0)
+					p.sync();
+			}
+			if (r.getBrokenAt() >= 0) {
+				broken.incrementAndGet();
+				System.out.println("Broken record header at " + r.getBrokenAt() + " of " + f);
+			}
+			p.sync();
+			blocks.incrementAndGet();
+			bytes.addAndGet(f.length());
+		} catch (JedisException e) {
+			failed.incrementAndGet();
+			System.out.println("Push metadata of " + f + " failed: " + e.getMessage());
+			jedis = RedisFactory.putBrokenInstance(jedis);
+		} catch (IOException e) {
+			failed.incrementAndGet();
+			System.out.println("Scan " + f + " failed: " + e.getMessage());
+		} finally {
+			if (r != null) {
+				try {
+					r.close();
+				} catch (IOException e) {
+				}
+			}
+			RedisFactory.putInstance(jedis);
+		}
+	}
+
+	private void noteTombstone(BlockRecord.Record rec, String infos) {
+		for (String info : infos.split("#")) {
+			String[] f = info.split("@");
+			if (f.length != 7)
+				continue;
+			// as pushed by scanBlock, the server id may have changed since
+			String local = f[0] + "@" + f[1] + "@" + ServerConf.serverId + "@" + f[3] + "@" + f[4] + "@" +
+					f[5] + "@" + f[6];
+			synchronized (deleted) {
+				deleted.add(new String[]{rec.set, rec.md5, local});
+			}
+		}
+	}
+
+	/**
+	 * Remove the INFOs of the deleted records, pushed again by scanBlock.
+	 */
+	private void applyTombstones() {
+		if (deleted.isEmpty())
+			return;
+		Jedis jedis = new RedisFactory(conf).getDefaultInstance();
+		try {
+			Pipeline p = jedis.pipelined();
+			int n = 0;
+			for (String[] d : deleted) {
+				p.evalsha(removeSha, 1, d);
+				if (++n % BATCH == 0)
+					p.sync();
+			}
+			p.sync();
+		} catch (JedisException e) {
+			failed.incrementAndGet();
+			System.out.println("Apply tombstones failed: " + e.getMessage());
+			jedis = RedisFactory.putBrokenInstance(jedis);
+		} finally {
+			RedisFactory.putInstance(jedis);
+		}
+	}
+
+	/**
+	 * Register this node in set.srvs, and move set.blk.node.disk to the last
+	 * block on disk, so that new writes never go into a recovered block.
+	 */
+	private void commitSets() {
+		Jedis jedis = new RedisFactory(conf).getDefaultInstance();
+		try {
+			Pipeline p = jedis.pipelined();
+			Set<String> sets = new HashSet<String>();
+			Map<String, Response<String>> cur = new HashMap<String, Response<String>>();
+
+			for (String k : lastBlock.keySet()) {
+				int i = k.indexOf(':');
+				String set = k.substring(0, i), disk = k.substring(i + 1);
+				if (sets.add(set))
+					p.sadd(set + ".srvs", node);
+				cur.put(k, p.get(set + ".blk." + conf.getNodeName() + "." + disk));
+			}
+			p.sync();
+			p = jedis.pipelined();
+			for (Map.Entry<String, Long> e : lastBlock.entrySet()) {
+				String v = cur.get(e.getKey()).get();
+				if (v != null && Long.parseLong(v) >= e.getValue())
+					continue;
+				int i = e.getKey().indexOf(':');
+				p.set(e.getKey().substring(0, i) + ".blk." + conf.getNodeName() + "." + e.getKey().substring(i + 1),
+						"" + e.getValue());
+			}
+			p.sync();
+			System.out.println("Registered " + sets.size() + " sets on " + node + ".");
+		} catch (JedisException e) {
+			failed.incrementAndGet();
+			System.out.println("Push set metadata failed: " + e.getMessage());
+			jedis = RedisFactory.putBrokenInstance(jedis);
+		} finally {
+			RedisFactory.putInstance(jedis);
+		}
+	}
+}
@@ -0,0 +1,651 @@
+package iie.mm.server;
+
+import iie.mm.server.StorePhoto.RedirectException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non-blocking front end of the MM server.
+ *
+ * One acceptor thread hands new connections to a small set of I/O threads
+ * (one Selector each). I/O threads parse the 4 bytes ActionType header frames
+ * incrementally, and dispatch complete requests to a fixed worker pool. Thus,
+ * the number of threads does not grow with the number of connections.
+ *
+ * The wire protocol is exactly the same as Handler's. Plain requests on the
+ * same connection are handled one by one, so replies keep their order. MUX
+ * requests (ActionType.MUX flag) carry request ids, they are handled in
+ * parallel and replied in completion order. The content of a STREAMSTORE is
+ * never buffered as a whole, it is handed to workers in fixed size chunks, and
+ * the connection stops reading while a chunk is being written.
+ */
+public class NIOServer implements Runnable {
+	private ServerConf conf;
+	private AsyncWriter aw;
+	private ServerSocketChannel ssc;
+	private Selector acceptor;
+	private IOThread[] ioThreads;
+	private ExecutorService workers;
+	private int nextIO = 0;
+
+	// StorePhoto is not thread-safe, thus each worker thread owns one
+	private final ThreadLocal<StorePhoto> tsp = new ThreadLocal<StorePhoto>() {
+		@Override
+		protected StorePhoto initialValue() {
+			return new StorePhoto(conf);
+		}
+	};
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int NEED_MORE = Integer.MIN_VALUE;
+	// max requests in flight on one MUX connection
+	private static final int MAX_MUX_INFLIGHT = 64;
+
+	public NIOServer(ServerConf conf, AsyncWriter aw) throws IOException {
+		this.conf = conf;
+		this.aw = aw;
+		ssc = ServerSocketChannel.open();
+		ssc.socket().setReuseAddress(true);
+		ssc.socket().bind(new InetSocketAddress(conf.getServerPort()));
+		ssc.configureBlocking(false);
+		acceptor = Selector.open();
+		ssc.register(acceptor, SelectionKey.OP_ACCEPT);
+
+		ioThreads = new IOThread[conf.getNio_threads()];
+		for (int i = 0; i < ioThreads.length; i++) {
+			ioThreads[i] = new IOThread(i);
+		}
+		workers = Executors.newFixedThreadPool(conf.getNio_workers());
+	}
+
+	@Override
+	public void run() {
+		for (IOThread t : ioThreads) {
+			t.start();
+		}
+		System.out.println("Start NIO Server @ " + conf.getServerPort() + " w/ " + ioThreads.length +
+				" I/O threads and " + conf.getNio_workers() + " workers.");
+		while (true) {
+			try {
+				acceptor.select();
+				Iterator<SelectionKey> iter = acceptor.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						SocketChannel sc = ssc.accept();
+						if (sc == null)
+							continue;
+						sc.configureBlocking(false);
+						sc.socket().setTcpNoDelay(true);
+						// round-robin connections over I/O threads
+						ioThreads[nextIO].addConnection(sc);
+						nextIO = (nextIO + 1) % ioThreads.length;
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * One connection's parsing state. Only touched by its I/O thread, except
+	 * for the reply which is handed over through IOThread.completed.
+	 */
+	class Connection {
+		SocketChannel sc;
+		SelectionKey key;
+		IOThread owner;
+		ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		// pending reply parts: ByteBuffer or PhotoRegion
+		LinkedList<Object> out = new LinkedList<Object>();
+		// true if there is a request being handled by worker
+		boolean busy = false;
+		// MUX requests being handled by workers, their replies carry request ids
+		int inflight = 0;
+
+		// current frame
+		byte[] header = null;
+		int contentlen = -1;
+		long reqId = -1;
+		byte[] body = null;
+		int bodyOff = 0;
+		// STREAMSTORE being received, its content is handed to workers chunk by chunk
+		StorePhoto.StreamState stream = null;
+		int streamLeft = 0;
+
+		Connection(SocketChannel sc, IOThread owner) {
+			this.sc = sc;
+			this.owner = owner;
+		}
+
+		/**
+		 * Returns the number of body bytes of current frame, or NEED_MORE if we
+		 * need more bytes to figure it out.
+		 */
+		private int bodyLength() {
+			switch (header[0]) {
+			case ActionType.SYNCSTORE:
+			case ActionType.ASYNCSTORE:
+				if (contentlen < 0) {
+					if (in.remaining() < 4)
+						return NEED_MORE;
+					contentlen = in.getInt();
+				}
+				return header[1] + header[2] + contentlen;
+			case ActionType.ASYNCSTOREACK:
+				if (contentlen < 0) {
+					if (in.remaining() < 12)
+						return NEED_MORE;
+					reqId = in.getLong();
+					contentlen = in.getInt();
+				}
+				return header[1] + header[2] + contentlen;
+			case ActionType.STREAMSTORE:
+				if (contentlen < 0) {
+					if (in.remaining() < 4)
+						return NEED_MORE;
+					contentlen = in.getInt();
+				}
+				return header[1] + header[2];
+			case ActionType.SEARCH:
+				return header[1] & 0xff;
+			case ActionType.MSTORE:
+			case ActionType.MSEARCH:
+				if (contentlen < 0) {
+					if (in.remaining() < 4)
+						return NEED_MORE;
+					contentlen = in.getInt();
+				}
+				return contentlen;
+			case ActionType.DELSET:
+				return header[1];
+			case ActionType.DEL:
+				return header[1] + header[2];
+			default:
+				return 0;
+			}
+		}
+
+		/**
+		 * Parse buffered input. Returns a complete request, or null if we need
+		 * more bytes.
+		 */
+		Request parse() throws IOException {
+			if (stream != null)
+				return parseChunk();
+			if (header == null) {
+				if (in.remaining() < 4)
+					return null;
+				header = new byte[4];
+				in.get(header);
+			}
+			if ((header[3] & ActionType.MUX) != 0 && header[0] == ActionType.STREAMSTORE)
+				throw new IOException("STREAMSTORE can not be multiplexed.");
+			if ((header[3] & ActionType.MUX) != 0 && reqId < 0) {
+				if (in.remaining() < 8)
+					return null;
+				reqId = in.getLong();
+			}
+			if (body == null) {
+				int len = bodyLength();
+				if (len == NEED_MORE)
+					return null;
+				int max = conf.getBlockSize() + 512;
+				if (header[0] == ActionType.MSTORE || header[0] == ActionType.MSEARCH)
+					max = Math.max(max, Handler.MAX_BATCH_FRAME);
+				if (len < 0 || len > max)
+					throw new IOException("Invalid frame length " + len + " for action " + header[0]);
+				body = new byte[len];
+				bodyOff = 0;
+			}
+			int n = Math.min(in.remaining(), body.length - bodyOff);
+			in.get(body, bodyOff, n);
+			bodyOff += n;
+			if (bodyOff < body.length)
+				return null;
+
+			if (header[0] == ActionType.STREAMSTORE) {
+				// got set and md5, then the content follows in chunks
+				stream = new StorePhoto.StreamState(new String(body, 0, header[1]), 
+						new String(body, header[1], header[2]), contentlen);
+				streamLeft = contentlen;
+				header = null;
+				contentlen = -1;
+				body = null;
+				return parseChunk();
+			}
+			Request r = new Request(this, header, contentlen, body);
+			r.reqId = reqId;
+			r.mux = (header[3] & ActionType.MUX) != 0;
+			header = null;
+			contentlen = -1;
+			reqId = -1;
+			body = null;
+			return r;
+		}
+
+		/**
+		 * Collect the next chunk of the STREAMSTORE content. The chunk buffer is
+		 * reused, it is safe since the connection is busy until the worker has
+		 * written the chunk.
+		 */
+		private Request parseChunk() {
+			int len = Math.min(stream.buf.length, streamLeft);
+
+			if (body == null) {
+				body = stream.buf;
+				bodyOff = 0;
+			}
+			int n = Math.min(in.remaining(), len - bodyOff);
+			in.get(body, bodyOff, n);
+			bodyOff += n;
+			if (bodyOff < len)
+				return null;
+
+			Request r = new Request(this, new byte[]{ActionType.STREAMSTORE, 0, 0, 0}, len, body);
+			r.stream = stream;
+			streamLeft -= len;
+			if (streamLeft == 0) {
+				r.last = true;
+				stream = null;
+			}
+			body = null;
+			return r;
+		}
+
+		void close() {
+			key.cancel();
+			// the client is gone in the middle of a STREAMSTORE
+			if (stream != null)
+				StorePhoto.closeStream(stream);
+			for (Object o : out) {
+				if (o instanceof PhotoRegion)
+					((PhotoRegion)o).close();
+			}
+			out.clear();
+			try {
+				sc.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * A complete request frame, it is handled by a worker thread.
+	 */
+	class Request implements Runnable {
+		Connection c;
+		byte[] header;
+		int contentlen;
+		long reqId;
+		boolean mux;
+		byte[] body;
+		// for a STREAMSTORE chunk, contentlen is the chunk length
+		StorePhoto.StreamState stream = null;
+		boolean last = false;
+
+		Request(Connection c, byte[] header, int contentlen, byte[] body) {
+			this.c = c;
+			this.header = header;
+			this.contentlen = contentlen;
+			this.body = body;
+		}
+
+		@Override
+		public void run() {
+			Object[] reply = null;
+
+			try {
+				reply = handle();
+			} catch (Exception e) {
+				e.printStackTrace();
+				if (!mux) {
+					// the client waits for a reply we can not build, close the
+					// connection as the blocking Handler does
+					c.owner.complete(c, null, FAIL);
+					return;
+				}
+			}
+			if (mux) {
+				// prefix the request id, and always reply so the client future completes
+				if (reply == null)
+					reply = new Object[]{intAndBytes(null)};
+				else if (header[0] == ActionType.DELSET)
+					reply = new Object[]{intAndBytes(new byte[]{1})};
+				Object[] r = new Object[reply.length + 1];
+				ByteBuffer id = ByteBuffer.allocate(8);
+				id.putLong(reqId);
+				id.flip();
+				r[0] = id;
+				System.arraycopy(reply, 0, r, 1, reply.length);
+				reply = r;
+			}
+			c.owner.complete(c, reply, mux ? DONE_MUX : DONE);
+		}
+
+		private Object[] handle() throws Exception {
+			StorePhoto sp = tsp.get();
+
+			switch (header[0]) {
+			case ActionType.SYNCSTORE: {
+				int setlen = header[1];
+				int md5len = header[2];
+				String set = new String(body, 0, setlen);
+				String md5 = new String(body, setlen, md5len);
+				String result = sp.storePhoto(set, md5, body, setlen + md5len, contentlen);
+
+				return new Object[]{intAndBytes(result == null ? null : result.getBytes())};
+			}
+			case ActionType.ASYNCSTORE: {
+				int setlen = header[1];
+				int md5len = header[2];
+				String set = new String(body, 0, setlen);
+				String md5 = new String(body, setlen, md5len);
+
+				// do not wait for a full shard, the worker pool is shared by all connections
+				Handler.asyncStore(aw, sp, set, md5, body, setlen + md5len, contentlen, false);
+				return null;
+			}
+			case ActionType.ASYNCSTOREACK: {
+				int setlen = header[1];
+				int md5len = header[2];
+				String set = new String(body, 0, setlen);
+				String md5 = new String(body, setlen, md5len);
+				WriteTask t = new WriteTask(set, md5, body, setlen + md5len, contentlen);
+				final Connection conn = c;
+
+				t.setReqId(reqId);
+				t.setAck(new WriteTask.Ack() {
+					@Override
+					public void done(WriteTask t, String result) {
+						// the ack is out of band, it does not finish a request
+						conn.owner.push(conn, new Object[]{ack(t.getReqId(), result)});
+					}
+				});
+				if (!aw.submit(t, false)) {
+					ByteBuffer bb = ByteBuffer.allocate(12);
+					bb.putLong(reqId);
+					bb.putInt(ActionType.BUSY);
+					bb.flip();
+					return new Object[]{bb};
+				}
+				return null;
+			}
+			case ActionType.SEARCH: {
+				PhotoRegion pr = null;
+
+				if (body.length > 0) {
+					try {
+						pr = sp.openPhoto(new String(body), null);
+					} catch (RedirectException e) {
+					}
+				}
+				if (pr == null)
+					return new Object[]{intAndBytes(null)};
+				// zero copy: the content is sent by transferTo in I/O thread
+				ByteBuffer bb = ByteBuffer.allocate(4);
+				bb.putInt(pr.length());
+				bb.flip();
+				return new Object[]{bb, pr};
+			}
+			case ActionType.STREAMSTORE: {
+				sp.appendStream(stream, body, 0, contentlen);
+				if (!last)
+					return null;
+				String result = sp.finishStream(stream);
+				return new Object[]{intAndBytes(result.getBytes())};
+			}
+			case ActionType.MSTORE: {
+				return new Object[]{intAndBytes(Handler.mStore(sp, body))};
+			}
+			case ActionType.MSEARCH: {
+				// zero copy as SEARCH, contents are sent by transferTo in I/O thread
+				return Handler.mSearch(sp, body);
+			}
+			case ActionType.DEL: {
+				String result = sp.delPhoto(new String(body, 0, header[1]), new String(body, header[1], header[2]));
+				
+				return new Object[]{intAndBytes(result == null ? null : result.getBytes())};
+			}
+			case ActionType.DELSET: {
+				Handler.delSet(aw, sp, new String(body));
+				ByteBuffer bb = ByteBuffer.allocate(1);
+				bb.put((byte)1);
+				bb.flip();
+				return new Object[]{bb};
+			}
+			case ActionType.SERVERINFO: {
+				return new Object[]{intAndBytes(Handler.serverInfo().getBytes())};
+			}
+			}
+			return null;
+		}
+	}
+
+	// kinds of completions handed back to I/O threads
+	private static final Integer DONE = 0;
+	private static final Integer DONE_MUX = 1;
+	private static final Integer PUSH = 2;
+	private static final Integer FAIL = 3;
+
+	/**
+	 * Build a length prefixed reply, -1 for null content.
+	 */
+	private static ByteBuffer intAndBytes(byte[] content) {
+		ByteBuffer bb;
+
+		if (content == null) {
+			bb = ByteBuffer.allocate(4);
+			bb.putInt(-1);
+		} else {
+			bb = ByteBuffer.allocate(4 + content.length);
+			bb.putInt(content.length);
+			bb.put(content);
+		}
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Build an ASYNCSTOREACK reply: request id, then length prefixed INFO.
+	 */
+	private static ByteBuffer ack(long reqId, String result) {
+		byte[] r = (result == null ? null : result.getBytes());
+		ByteBuffer bb = ByteBuffer.allocate(12 + (r == null ? 0 : r.length));
+
+		bb.putLong(reqId);
+		if (r == null)
+			bb.putInt(-1);
+		else {
+			bb.putInt(r.length);
+			bb.put(r);
+		}
+		bb.flip();
+		return bb;
+	}
+
+	class IOThread extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+		private ConcurrentLinkedQueue<Object[]> completed = new ConcurrentLinkedQueue<Object[]>();
+
+		IOThread(int id) throws IOException {
+			super("MM-NIO-" + id);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void addConnection(SocketChannel sc) {
+			accepted.add(sc);
+			selector.wakeup();
+		}
+
+		/**
+		 * Called by worker thread to hand the reply parts (maybe null) back.
+		 */
+		void complete(Connection c, Object[] reply, Integer kind) {
+			completed.add(new Object[]{c, reply, kind});
+			selector.wakeup();
+		}
+
+		/**
+		 * Called by any thread to send reply parts which do not finish the
+		 * current request, e.g. ASYNCSTOREACK acks.
+		 */
+		void push(Connection c, Object[] reply) {
+			completed.add(new Object[]{c, reply, PUSH});
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+
+					SocketChannel sc;
+					while ((sc = accepted.poll()) != null) {
+						Connection c = new Connection(sc, this);
+						c.key = sc.register(selector, SelectionKey.OP_READ, c);
+					}
+					Object[] done;
+					while ((done = completed.poll()) != null) {
+						Connection c = (Connection)done[0];
+						Object[] reply = (Object[])done[1];
+						if (done[2] == FAIL) {
+							c.close();
+							continue;
+						}
+						if (done[2] == DONE)
+							c.busy = false;
+						else if (done[2] == DONE_MUX)
+							c.inflight--;
+						if (reply != null) {
+							for (Object o : reply)
+								c.out.add(o);
+						}
+						if (!c.key.isValid()) {
+							c.close();
+							continue;
+						}
+						try {
+							if (reply != null)
+								doWrite(c);
+						} catch (IOException e) {
+							c.close();
+							continue;
+						}
+						try {
+							if (c.key.isValid() && canDispatch(c))
+								dispatch(c);
+						} catch (IOException e) {
+							e.printStackTrace();
+							c.close();
+						}
+					}
+
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						Connection c = (Connection)key.attachment();
+
+						try {
+							if (key.isValid() && key.isWritable())
+								doWrite(c);
+							if (key.isValid() && key.isReadable())
+								doRead(c);
+						} catch (IOException e) {
+							c.close();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void doRead(Connection c) throws IOException {
+			if (c.sc.read(c.in) < 0) {
+				c.close();
+				return;
+			}
+			try {
+				dispatch(c);
+			} catch (IOException e) {
+				e.printStackTrace();
+				c.close();
+			}
+		}
+
+		/**
+		 * Parse the buffered bytes, and hand at most one request to workers.
+		 */
+		private void dispatch(Connection c) throws IOException {
+			Request r;
+
+			c.in.flip();
+			// a plain request blocks the connection until its reply, MUX requests
+			// are handled in parallel up to MAX_MUX_INFLIGHT
+			while (canDispatch(c) && (r = c.parse()) != null) {
+				if (r.mux)
+					c.inflight++;
+				else
+					c.busy = true;
+				workers.execute(r);
+			}
+			c.in.compact();
+			updateInterest(c);
+		}
+
+		private boolean canDispatch(Connection c) {
+			return !c.busy && c.inflight < MAX_MUX_INFLIGHT;
+		}
+
+		private void doWrite(Connection c) throws IOException {
+			while (!c.out.isEmpty()) {
+				Object o = c.out.getFirst();
+				if (o instanceof PhotoRegion) {
+					PhotoRegion pr = (PhotoRegion)o;
+					pr.transferTo(c.sc);
+					if (!pr.isDone())
+						break;
+					pr.close();
+				} else {
+					ByteBuffer bb = (ByteBuffer)o;
+					c.sc.write(bb);
+					if (bb.hasRemaining())
+						break;
+				}
+				c.out.removeFirst();
+			}
+			updateInterest(c);
+		}
+
+		private void updateInterest(Connection c) {
+			if (!c.key.isValid())
+				return;
+			int ops = 0;
+
+			// stop reading while a request is in flight, and input buffer is full
+			if (canDispatch(c) && c.in.hasRemaining())
+				ops |= SelectionKey.OP_READ;
+			if (!c.out.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			c.key.interestOps(ops);
+		}
+	}
+}
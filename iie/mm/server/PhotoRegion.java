@@ -0,0 +1,187 @@
+package iie.mm.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A slice of a block file which holds one MM object. It is sent to sockets
+ * either from the block's mapping (if the block is mapped by BlockCache), or
+ * with FileChannel.transferTo (sendfile). Thus the content never gets into
+ * the java heap.
+ *
+ * Both ways are positional, they do not change the position of the shared
+ * file channel, so many regions of the same block can be sent concurrently.
+ *
+ * The block is pinned in BlockCache until close(). A region may also be
+ * served from the in-memory ContentCache, then there is no block at all.
+ */
+public class PhotoRegion {
+	private BlockCache.Block block;
+	private FileChannel fc;
+	private ByteBuffer slice;
+	private long position;
+	private long remaining;
+	private int length;
+	private long start;
+	//分段存储的大对象的各段,依次发送
+	private PhotoRegion[] parts = null;
+	private int cur = 0;
+
+	public PhotoRegion(BlockCache.Block block, long position, int length) {
+		this.block = block;
+		this.fc = block.getChannel();
+		this.slice = block.slice(position, length);
+		this.position = position;
+		this.remaining = length;
+		this.length = length;
+		this.start = System.currentTimeMillis();
+	}
+	
+	/**
+	 * A region of content cached in memory by ContentCache, no block is pinned.
+	 */
+	public PhotoRegion(ByteBuffer content) {
+		this.block = null;
+		this.fc = null;
+		this.slice = content;
+		this.position = 0;
+		this.remaining = content.remaining();
+		this.length = content.remaining();
+		this.start = System.currentTimeMillis();
+	}
+
+	/**
+	 * A large object stored in several regions, possibly in several blocks.
+	 * The parts are sent one after another, and closed with this region.
+	 */
+	public PhotoRegion(PhotoRegion[] parts) {
+		this.block = null;
+		this.fc = null;
+		this.slice = null;
+		this.parts = parts;
+		long len = 0;
+		for (PhotoRegion p : parts)
+			len += p.length();
+		this.position = 0;
+		this.remaining = len;
+		this.length = (int)len;
+		this.start = System.currentTimeMillis();
+	}
+
+	public boolean isChained() {
+		return parts != null;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public boolean isDone() {
+		return remaining <= 0;
+	}
+
+	/**
+	 * Transfer as many bytes as the target accepts. For a blocking channel, it
+	 * should be called until isDone().
+	 *
+	 * @return bytes transferred
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		long n;
+
+		if (parts != null) {
+			while (cur < parts.length && parts[cur].isDone())
+				cur++;
+			if (cur == parts.length)
+				return 0;
+			n = parts[cur].transferTo(target);
+			remaining -= n;
+			return n;
+		}
+		if (slice != null)
+			n = target.write(slice);
+		else
+			n = fc.transferTo(position, remaining, target);
+
+		if (n == 0 && slice == null && position + remaining > fc.size())
+			throw new IOException("Block file is truncated, want " + remaining + "B @ " + position);
+		position += n;
+		remaining -= n;
+		return n;
+	}
+
+	/**
+	 * Transfer all the remaining bytes to a blocking channel.
+	 */
+	public void transferFully(WritableByteChannel target) throws IOException {
+		while (!isDone())
+			transferTo(target);
+	}
+
+	/**
+	 * Read the whole content into buf.
+	 */
+	public void read(byte[] buf) throws IOException {
+		read(ByteBuffer.wrap(buf, 0, length));
+	}
+	
+	/**
+	 * Read the whole content into dst, which should have length() bytes
+	 * remaining.
+	 */
+	public void read(ByteBuffer dst) throws IOException {
+		if (parts != null) {
+			for (PhotoRegion p : parts) {
+				ByteBuffer d = dst.duplicate();
+				d.limit(d.position() + p.length());
+				p.read(d);
+				dst.position(d.position());
+			}
+		} else if (slice != null) {
+			dst.put(slice.duplicate());
+		} else {
+			block.readFully(dst, position);
+		}
+	}
+
+	/**
+	 * Get the content without copy, from the block mapping or ContentCache.
+	 * The mapping is unmapped on eviction, so the buffer must not be used
+	 * after close(). Returns null if the block is not mapped or the object
+	 * is chained.
+	 */
+	public ByteBuffer buffer() {
+		if (parts != null || slice == null)
+			return null;
+		ByteBuffer bb = slice.duplicate();
+		position += remaining;
+		remaining = 0;
+		return bb;
+	}
+
+	/**
+	 * Done with this region, update the read profile and unpin the block.
+	 */
+	public void close() {
+		ServerProfile.updateRead(length, System.currentTimeMillis() - start);
+		release();
+	}
+	
+	/**
+	 * Unpin the block without counting a read, e.g. after its content has been
+	 * copied into ContentCache.
+	 */
+	public void release() {
+		if (parts != null) {
+			for (PhotoRegion p : parts)
+				p.release();
+			parts = new PhotoRegion[0];
+		}
+		if (block != null) {
+			block.release();
+			block = null;
+		}
+	}
+}
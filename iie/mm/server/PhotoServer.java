@@ -2,12 +2,12 @@ package iie.mm.server;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Set;
 import java.util.Timer;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -24,15 +24,19 @@ public class PhotoServer {
 	private int serverport;
 	private int period ;					//每隔period秒统计一次读写信息
 	private ExecutorService pool;
-	//集合跟到这个集合上的写操作队列的映射
-	private ConcurrentHashMap<String, BlockingQueue<WriteTask>> sq = new ConcurrentHashMap<String, BlockingQueue<WriteTask>>();		
+	//异步写的分片队列和固定数目的写线程
+	private AsyncWriter aw;
 	
 	public PhotoServer(ServerConf conf) throws Exception {
 		this.conf = conf;
 		serverport = conf.getServerPort();
 		period = conf.getPeriod();
-		ss = new ServerSocket(serverport);
-		pool = Executors.newCachedThreadPool();
+		if (!conf.isUse_nio()) {
+			// 通过channel创建,这样接收的socket都有channel,读取时可以用transferTo零拷贝发送
+			ss = ServerSocketChannel.open().socket();
+			ss.bind(new InetSocketAddress(serverport));
+			pool = Executors.newCachedThreadPool();
+		}
 	}
 	
 	public void startUp() throws Exception {
@@ -40,19 +44,39 @@ public class PhotoServer {
 		Timer t = new Timer();
 		t.schedule(new ProfileTimerTask(conf, period), 1 * 1000, period * 1000);
 		
+		aw = new AsyncWriter(conf);
+		
+		//在后台重建本节点的去重索引,重建完成之前到达的重复对象会再存一份
+		if (conf.isDedup_index()) {
+			Thread r = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					StorePhoto.rebuildDedupIndex(conf);
+				}
+			}, "MM-DedupRebuild");
+			r.setDaemon(true);
+			r.start();
+		}
+		
 		//启动http服务
 		Server server = new Server(conf.getHttpPort());
-		server.setHandler(new HTTPHandler(conf));
+		server.setHandler(new HTTPHandler(conf, aw));
 		server.start();
 		
 		//启动监听写请求的服务,它使用junixsocket,所以需要用一个新的线程
 		if (conf.isUse_junixsocket())
 			new Thread(new WriteServer()).start();
 		
+		//使用NIO时,由少量的I/O线程处理所有的tcp连接
+		if (conf.isUse_nio()) {
+			new NIOServer(conf, aw).run();
+			return;
+		}
+		
 		while(true) {
 			try {
 				// 接收tcp请求,来自tcp的请求是读取请求或者写请求
-				pool.execute(new Handler(conf, ss.accept(), sq));
+				pool.execute(new Handler(conf, ss.accept(), aw));
 			} catch (IOException e) {
 				e.printStackTrace();
 				pool.shutdown();
@@ -103,7 +127,7 @@ public class PhotoServer {
 			    System.out.println("Start Unix Socket Server @ " + server.getInetAddress());
 			    while (true) {
 		            Socket sock = server.accept();
-		            pool.execute((new Handler(conf, sock, sq)));
+		            pool.execute((new Handler(conf, sock, aw)));
 			    }
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -1,11 +1,15 @@
 package iie.mm.server;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisSentinelPool;
 
 public class RedisFactory {
 	private static ServerConf conf;
 	private static JedisSentinelPool jsp = null;
+	// STANDALONE模式下整个进程共享一个连接池,每个请求借用一个连接,用完归还
+	private static JedisPool jp = null;
 
 	public RedisFactory(ServerConf conf) {
 		RedisFactory.conf = conf;
@@ -15,17 +19,27 @@ public class RedisFactory {
 	public Jedis getDefaultInstance() {
 		switch (conf.getRedisMode()) {
 		case STANDALONE:
-			return new Jedis(conf.getRedisHost(), conf.getRedisPort());
+		{
+			synchronized (RedisFactory.class) {
+				if (jp == null) {
+					JedisPoolConfig c = new JedisPoolConfig();
+					c.setMaxActive(conf.getRedis_pool_size());
+					c.setMaxIdle(conf.getRedis_pool_size());
+					c.setMaxWait(10000);
+					jp = new JedisPool(c, conf.getRedisHost(), conf.getRedisPort());
+				}
+			}
+			return jp.getResource();
+		}
 		case SENTINEL:
 		{
 			Jedis r;
 			
-			if (jsp != null)
-				r = jsp.getResource();
-			else {
-				jsp = new JedisSentinelPool("mymaster", conf.getSentinels());
-				r = jsp.getResource();
+			synchronized (RedisFactory.class) {
+				if (jsp == null)
+					jsp = new JedisSentinelPool("mymaster", conf.getSentinels());
 			}
+			r = jsp.getResource();
 			return r;
 		}
 		}
@@ -37,6 +51,7 @@ public class RedisFactory {
 			return null;
 		switch (conf.getRedisMode()) {
 		case STANDALONE:
+			jp.returnResource(j);
 			break;
 		case SENTINEL:
 			jsp.returnResource(j);
@@ -50,6 +65,7 @@ public class RedisFactory {
 			return null;
 		switch (conf.getRedisMode()) {
 		case STANDALONE:
+			jp.returnBrokenResource(j);
 			break;
 		case SENTINEL:
 			jsp.returnBrokenResource(j);
@@ -2,6 +2,7 @@ package iie.mm.server;
 
 import java.net.InetAddress;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -22,12 +23,33 @@ public class ServerConf {
 	public static int DEFAULT_REDIS_PORT = 30308;
 	public static int DEFAULT_BLOCK_SIZE = 64 * 1024 * 1024;
 	public static int DEFAULT_PERIOD = 10;
-	public static int DEFAULT_FLUSH_INTERVAL = 10;
+	public static int DEFAULT_FLUSH_INTERVAL = 0;
 	public static int DEFAULT_REQNR_TO_FLUSH = 15;
 	public static int DEFAULT_HTTP_PORT = 20202;
+	public static int DEFAULT_NIO_WORKERS = 64;
+	public static long DEFAULT_MMAP_BUDGET = 4L * 1024 * 1024 * 1024;
+	public static int DEFAULT_MAX_OPEN_BLOCKS = 1024;
+	public static long DEFAULT_CONTENT_CACHE_SIZE = 0;
+	public static int DEFAULT_LOOKUP_CACHE_SIZE = 100000;
+	public static int DEFAULT_REDIS_POOL_SIZE = 128;
+	public static long DEFAULT_ASYNC_QUEUE_BYTES = 256L * 1024 * 1024;
+	public static long DEFAULT_DISK_MIN_FREE = 1024L * 1024 * 1024;
+	public static int DEFAULT_DISK_WRITER_BATCH = 256;
+	public static long DEFAULT_SYNC_INTERVAL = 1000;
+	public static long DEFAULT_SYNC_BYTES = 64L * 1024 * 1024;
+	public static long DEFAULT_COMPACT_RATE = 10L * 1024 * 1024;
+	public static int DEFAULT_COMPACT_DEAD_PERCENT = 50;
+	public static long DEFAULT_COMPACT_GRACE = 600;
+	public static long DEFAULT_EXPIRE_INTERVAL = 60;
+	public static long DEFAULT_TRASH_RATE = 256L * 1024 * 1024;
 	
 	private boolean use_junixsocket = false;
 	
+	// 使用NIO的事件循环代替每个连接一个线程的Handler
+	private boolean use_nio = false;
+	private int nio_threads = Runtime.getRuntime().availableProcessors();
+	private int nio_workers = DEFAULT_NIO_WORKERS;
+	
 	private String nodeName; // 节点名
 	private int serverPort = DEFAULT_SERVER_PORT;
 	private String redisHost;
@@ -36,6 +58,9 @@ public class ServerConf {
 	private int httpPort = DEFAULT_HTTP_PORT;
 	private int period = DEFAULT_PERIOD; // 每隔period秒统计一次读写速率
 	
+	// group commit: 同一个集合和磁盘上的并发写合并成一次写入和一次redis pipeline
+	// flush_interval是leader等待凑齐一批请求的最长时间(ms),reqnr_to_flush是一批的最大请求数
+	private boolean group_commit = false;
 	private int flush_interval = DEFAULT_FLUSH_INTERVAL;
 	private int reqnr_to_flush = DEFAULT_REQNR_TO_FLUSH;
 	
@@ -44,6 +69,57 @@ public class ServerConf {
 		
 	private Set<String> storeArray = new HashSet<String>();
 	
+	// 读块缓存: 映射的总字节数和打开的文件数上限
+	private long mmap_budget = DEFAULT_MMAP_BUDGET;
+	private int max_open_blocks = DEFAULT_MAX_OPEN_BLOCKS;
+	
+	// 热点对象内容缓存的字节数(0表示不启用),以及是否放在堆外
+	private long content_cache_size = DEFAULT_CONTENT_CACHE_SIZE;
+	private boolean content_cache_offheap = false;
+	
+	// set@md5 -> INFO查找缓存的最大条目数
+	private int lookup_cache_size = DEFAULT_LOOKUP_CACHE_SIZE;
+	
+	// STANDALONE模式下redis连接池的最大连接数
+	private int redis_pool_size = DEFAULT_REDIS_POOL_SIZE;
+	
+	// 异步写: 写线程(分片)数,0表示按磁盘数确定;所有分片队列的总字节数;队列满时返回BUSY而不是阻塞
+	private int async_workers = 0;
+	private long async_queue_bytes = DEFAULT_ASYNC_QUEUE_BYTES;
+	private boolean async_busy = false;
+	
+	// 本节点的set@md5 -> 位置去重索引,重复的写直接返回已有的元信息
+	private boolean dedup_index = true;
+	
+	// 写入的磁盘选择: 策略(random, p2c, least),各磁盘的权重,可用空间低于disk_min_free的磁盘不再写入
+	private String disk_policy = "p2c";
+	private Map<String, Integer> disk_weights = new HashMap<String, Integer>();
+	private long disk_min_free = DEFAULT_DISK_MIN_FREE;
+	
+	// 每个磁盘一个写线程,合并各集合的写请求后顺序追加;disk_writer_batch是一次合并的最大请求数
+	private boolean disk_writer = false;
+	private int disk_writer_batch = DEFAULT_DISK_WRITER_BATCH;
+	
+	// 持久化模式: none不fsync;periodic每隔sync_interval毫秒或写入sync_bytes字节fsync一次;
+	// group写请求等待一次共同的fsync覆盖它之后才返回
+	private String durability = "none";
+	private long sync_interval = DEFAULT_SYNC_INTERVAL;
+	private long sync_bytes = DEFAULT_SYNC_BYTES;
+	
+	// 块压缩: 每隔compact_interval秒(0为不启用)扫描一次已封闭的块,无效字节超过compact_dead_percent%的块
+	// 中有效的记录以不超过compact_rate字节每秒的速度复制到新块.最近compact_grace秒内修改过的块不压缩,
+	// 旧块在元信息切换compact_grace秒后才删除
+	private long compact_interval = 0;
+	private long compact_rate = DEFAULT_COMPACT_RATE;
+	private int compact_dead_percent = DEFAULT_COMPACT_DEAD_PERCENT;
+	private long compact_grace = DEFAULT_COMPACT_GRACE;
+	
+	// 设置了保存时间(redis中的set.ttl)的集合,每隔expire_interval秒(0为不启用)删除一次全部内容都已过期的块
+	private long expire_interval = DEFAULT_EXPIRE_INTERVAL;
+	
+	// 删除集合时目录先移到回收目录,后台每秒最多删除trash_rate字节的块文件(0为不限速)
+	private long trash_rate = DEFAULT_TRASH_RATE;
+	
 	public enum RedisMode {
 		SENTINEL, STANDALONE,
 	}
@@ -83,7 +159,7 @@ public class ServerConf {
 			this.period = Integer.parseInt(results.get(2).toString());
 			System.out.println("Get period from redis server: " + this.period);
 		}
-		jedis.disconnect();
+		RedisFactory.putInstance(jedis);
 	}
 	
 	public ServerConf(String nodeName, int serverPort, String redisHost, int redisPort, 
@@ -105,9 +181,8 @@ public class ServerConf {
 		setRedisMode(RedisMode.STANDALONE);
 		
 		// ok, get global config if they exist.
-		Jedis jedis = new RedisFactory(this).getDefaultInstance();
-		if (jedis == null)
-			throw new JedisException("Get default jedis instance failed.");
+		// 连接池大小在构造之后才设置,所以这里不经过连接池
+		Jedis jedis = new Jedis(this.redisHost, this.redisPort);
 		
 		Pipeline p = jedis.pipelined();
 		p.get("mm.conf.blocksize");
@@ -180,6 +255,16 @@ public class ServerConf {
 	}
 
 
+	public boolean isGroup_commit() {
+		return group_commit;
+	}
+
+
+	public void setGroup_commit(boolean group_commit) {
+		this.group_commit = group_commit;
+	}
+
+
 	public int getFlush_interval() {
 		return flush_interval;
 	}
@@ -210,6 +295,36 @@ public class ServerConf {
 	}
 
 
+	public boolean isUse_nio() {
+		return use_nio;
+	}
+
+
+	public void setUse_nio(boolean use_nio) {
+		this.use_nio = use_nio;
+	}
+
+
+	public int getNio_threads() {
+		return nio_threads;
+	}
+
+
+	public void setNio_threads(int nio_threads) {
+		this.nio_threads = nio_threads;
+	}
+
+
+	public int getNio_workers() {
+		return nio_workers;
+	}
+
+
+	public void setNio_workers(int nio_workers) {
+		this.nio_workers = nio_workers;
+	}
+
+
 	public Set<String> getStoreArray() {
 		return storeArray;
 	}
@@ -220,6 +335,246 @@ public class ServerConf {
 	}
 
 
+	public long getMmap_budget() {
+		return mmap_budget;
+	}
+
+
+	public void setMmap_budget(long mmap_budget) {
+		this.mmap_budget = mmap_budget;
+	}
+
+
+	public int getMax_open_blocks() {
+		return max_open_blocks;
+	}
+
+
+	public void setMax_open_blocks(int max_open_blocks) {
+		this.max_open_blocks = max_open_blocks;
+	}
+
+
+	public long getContent_cache_size() {
+		return content_cache_size;
+	}
+
+
+	public void setContent_cache_size(long content_cache_size) {
+		this.content_cache_size = content_cache_size;
+	}
+
+
+	public boolean isContent_cache_offheap() {
+		return content_cache_offheap;
+	}
+
+
+	public void setContent_cache_offheap(boolean content_cache_offheap) {
+		this.content_cache_offheap = content_cache_offheap;
+	}
+
+
+	public int getLookup_cache_size() {
+		return lookup_cache_size;
+	}
+
+
+	public void setLookup_cache_size(int lookup_cache_size) {
+		this.lookup_cache_size = lookup_cache_size;
+	}
+
+
+	public int getRedis_pool_size() {
+		return redis_pool_size;
+	}
+
+
+	public void setRedis_pool_size(int redis_pool_size) {
+		this.redis_pool_size = redis_pool_size;
+	}
+
+
+	public int getAsync_workers() {
+		return async_workers;
+	}
+
+
+	public void setAsync_workers(int async_workers) {
+		this.async_workers = async_workers;
+	}
+
+
+	public long getAsync_queue_bytes() {
+		return async_queue_bytes;
+	}
+
+
+	public void setAsync_queue_bytes(long async_queue_bytes) {
+		this.async_queue_bytes = async_queue_bytes;
+	}
+
+
+	public boolean isAsync_busy() {
+		return async_busy;
+	}
+
+
+	public void setAsync_busy(boolean async_busy) {
+		this.async_busy = async_busy;
+	}
+
+
+	public boolean isDedup_index() {
+		return dedup_index;
+	}
+
+
+	public void setDedup_index(boolean dedup_index) {
+		this.dedup_index = dedup_index;
+	}
+
+
+	public String getDisk_policy() {
+		return disk_policy;
+	}
+
+
+	public void setDisk_policy(String disk_policy) {
+		this.disk_policy = disk_policy;
+	}
+
+
+	public Map<String, Integer> getDisk_weights() {
+		return disk_weights;
+	}
+
+
+	public void setDisk_weights(Map<String, Integer> disk_weights) {
+		this.disk_weights = disk_weights;
+	}
+
+
+	public long getDisk_min_free() {
+		return disk_min_free;
+	}
+
+
+	public void setDisk_min_free(long disk_min_free) {
+		this.disk_min_free = disk_min_free;
+	}
+
+
+	public boolean isDisk_writer() {
+		return disk_writer;
+	}
+
+
+	public void setDisk_writer(boolean disk_writer) {
+		this.disk_writer = disk_writer;
+	}
+
+
+	public int getDisk_writer_batch() {
+		return disk_writer_batch;
+	}
+
+
+	public void setDisk_writer_batch(int disk_writer_batch) {
+		this.disk_writer_batch = disk_writer_batch;
+	}
+
+
+	public String getDurability() {
+		return durability;
+	}
+
+
+	public void setDurability(String durability) {
+		this.durability = durability;
+	}
+
+
+	public long getSync_interval() {
+		return sync_interval;
+	}
+
+
+	public void setSync_interval(long sync_interval) {
+		this.sync_interval = sync_interval;
+	}
+
+
+	public long getSync_bytes() {
+		return sync_bytes;
+	}
+
+
+	public void setSync_bytes(long sync_bytes) {
+		this.sync_bytes = sync_bytes;
+	}
+
+
+	public long getCompact_interval() {
+		return compact_interval;
+	}
+
+
+	public void setCompact_interval(long compact_interval) {
+		this.compact_interval = compact_interval;
+	}
+
+
+	public long getCompact_rate() {
+		return compact_rate;
+	}
+
+
+	public void setCompact_rate(long compact_rate) {
+		this.compact_rate = compact_rate;
+	}
+
+
+	public int getCompact_dead_percent() {
+		return compact_dead_percent;
+	}
+
+
+	public void setCompact_dead_percent(int compact_dead_percent) {
+		this.compact_dead_percent = compact_dead_percent;
+	}
+
+
+	public long getCompact_grace() {
+		return compact_grace;
+	}
+
+
+	public void setCompact_grace(long compact_grace) {
+		this.compact_grace = compact_grace;
+	}
+
+
+	public long getExpire_interval() {
+		return expire_interval;
+	}
+
+
+	public void setExpire_interval(long expire_interval) {
+		this.expire_interval = expire_interval;
+	}
+
+
+	public long getTrash_rate() {
+		return trash_rate;
+	}
+
+
+	public void setTrash_rate(long trash_rate) {
+		this.trash_rate = trash_rate;
+	}
+
+
 	public RedisMode getRedisMode() {
 		return redisMode;
 	}
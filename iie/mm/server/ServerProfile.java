@@ -7,6 +7,15 @@ public class ServerProfile {
 	public static AtomicLong readBytes = new AtomicLong(0);
 	public static AtomicLong readDelay = new AtomicLong(0);				//总读取延迟，单位毫秒
 	public static AtomicLong readN = new AtomicLong(0);					//读取次数
+	public static AtomicLong cacheHits = new AtomicLong(0);				//内容缓存命中次数
+	public static AtomicLong cacheMisses = new AtomicLong(0);			//内容缓存未命中次数
+	public static AtomicLong cacheEvictions = new AtomicLong(0);		//内容缓存淘汰的对象数
+	public static AtomicLong asyncDequeued = new AtomicLong(0);			//异步写完成出队的任务数
+	public static AtomicLong asyncBlocked = new AtomicLong(0);			//异步写入队时队列已满的次数
+	public static AtomicLong asyncWaitNanos = new AtomicLong(0);		//异步写任务在队列中的总等待时间,单位纳秒
+	public static AtomicLong asyncMaxWaitNanos = new AtomicLong(0);		//异步写任务在队列中的最长等待时间,单位纳秒
+	public static AtomicLong dedupHits = new AtomicLong(0);				//去重索引命中的写请求数
+	public static LatencyHistogram writeAck = new LatencyHistogram();	//写请求从开始到返回元信息的延迟分布
 	
 	public static void addWrite(int n) {
 		writtenBytes.addAndGet(n);
@@ -1,17 +1,28 @@
 package iie.mm.server;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisConnectionException;
@@ -21,7 +32,7 @@ public class StorePhoto {
 	private ServerConf conf;
 	private String localHostName;
 	private int serverport;							//本机监听的端口,在这里的作用就是构造存图片时返回值
-	private String destRoot = "./mm_data/";
+	static final String destRoot = "./mm_data/";
 	private Set<String> storeArray = new HashSet<String>();
 	private String[] diskArray;						//代表磁盘的数组
 	private long blocksize;							//文件块的大小，单位是B
@@ -29,10 +40,42 @@ public class StorePhoto {
 	//一级的hash,集合 + 磁盘->上下文
 	//不能放在构造函数里初始化,不然会每次创建一个storephoto类时,它都被初始化一遍
 	private static Map<String, StoreSetContext> writeContextHash = new ConcurrentHashMap<String, StoreSetContext>();		
-	private Map<String, RandomAccessFile> readRafHash;			//读文件时的随机访问流，用哈希来缓存
+	//读文件时打开的块,所有StorePhoto共享,已封闭的块用mmap映射,按LRU限制映射字节数和打开的文件数
+	private static BlockCache blockCache = null;
+	//热点对象内容的缓存,按INFO字符串索引,所有StorePhoto共享,容量为0时不启用
+	private static ContentCache contentCache = null;
 	private Jedis jedis;
 	
-	private TimeLimitedCacheMap lookupCache = new TimeLimitedCacheMap(10, 60, 300, TimeUnit.SECONDS);
+	//set@md5 -> INFO的查找缓存,所有StorePhoto共享
+	private static LookupCache lookupCache = null;
+	//本节点存储的set@md5 -> 位置的去重索引,所有StorePhoto共享,不启用时为null
+	private static DedupIndex dedupIndex = null;
+	//新写入的对象放在哪个磁盘上,按各磁盘的可用空间,未完成的写和最近的写延迟选择
+	private static DiskPlacer diskPlacer = null;
+	//每个磁盘一个写线程,启用时所有对象都由它追加到该磁盘,不启用时为null
+	private static DiskWriter[] diskWriters = null;
+	//按配置的持久化模式对写入的块做fsync
+	private static BlockSyncer blockSyncer = null;
+	//后台回收已封闭块中无效字节的线程,不启用时为null
+	private static Compactor compactor = null;
+	//删除设置了保存时间的集合中已过期的块的线程,不启用时为null
+	private static Expirer expirer = null;
+	//在后台限速删除已删除集合的目录
+	private static TrashDeleter trashDeleter = null;
+	private static AtomicLong trashSeq = new AtomicLong(0);
+	//正在流式写入的对象的段所在的块(路径 -> 流的个数),这些段还没有元信息指向它们,块不能被压缩或过期删除
+	private static Map<String, Integer> streamBlocks = new HashMap<String, Integer>();
+	//从KEYS[1]/ARGV[1]的元信息中去掉节点ARGV[2]的副本,没有其他副本时删除该项,返回去掉的元信息
+	private static final String DEL_INFO =
+			"local v = redis.call('hget', KEYS[1], ARGV[1]) " +
+			"if not v then return '' end " +
+			"local keep, gone = {}, {} " +
+			"for e in string.gmatch(v, '[^#]+') do " +
+			"local _, _, sid = string.find(e, '^[^@]*@[^@]*@([^@]*)@') " +
+			"if sid == ARGV[2] then table.insert(gone, e) else table.insert(keep, e) end end " +
+			"if #keep == 0 then redis.call('hdel', KEYS[1], ARGV[1]) " +
+			"elseif #gone > 0 then redis.call('hset', KEYS[1], ARGV[1], table.concat(keep, '#')) end " +
+			"return table.concat(gone, '#')";
 	
 	public static class RedirectException extends Exception {
 		/**
@@ -51,6 +94,8 @@ public class StorePhoto {
 	public class StoreSetContext {
 		public String key;
 		public String disk;
+		//磁盘在diskArray中的下标
+		public int diskId;
 		
 		//当前可写的块
 		private long curBlock = -1;
@@ -62,7 +107,11 @@ public class StorePhoto {
 		
 		private String path = null;
 		
-		public StoreSetContext(String set, String disk) {
+		//group commit模式下等待写入的请求,以及当前是否有leader在提交
+		private LinkedList<PendingWrite> pending = new LinkedList<PendingWrite>();
+		private boolean committing = false;
+		
+		public StoreSetContext(String set, String disk, int diskId) {
 			// 根据set和md5构造存储的路径
 			StringBuffer sb = new StringBuffer();
 			sb.append(disk);
@@ -78,6 +127,67 @@ public class StorePhoto {
 			
 			this.key = set + ":" + disk;
 			this.disk = disk;
+			this.diskId = diskId;
+		}
+	}
+	
+	/**
+	 * 一个等待group commit的写请求
+	 */
+	static class PendingWrite {
+		String set, md5;
+		byte[] content;
+		int coff, clen;
+		String result = null;
+		boolean done = false;
+		//被前一个leader指定为新的leader
+		boolean leader = false;
+		
+		PendingWrite(String set, String md5, byte[] content, int coff, int clen) {
+			this.set = set;
+			this.md5 = md5;
+			this.content = content;
+			this.coff = coff;
+			this.clen = clen;
+		}
+	}
+	
+	/**
+	 * 一个流式写入的大对象的状态.内容按固定大小的段从socket读出,直接写入块文件中,
+	 * 不需要整个对象的缓冲区.对象可以跨越多个块,每个块中的部分是一个预先占好位置的记录(见reserveSegment),
+	 * 各段的位置记录在一个清单中,清单作为一个普通的记录写入块中,元信息的类型为2,指向这个清单
+	 */
+	public static class StreamState {
+		public static final int CHUNK = 1024 * 1024;
+		
+		String set, md5;
+		int length;
+		int written = 0;
+		StoreSetContext ssc = null;
+		//已预留的段: 块号,内容的偏移,长度
+		List<long[]> segs = new ArrayList<long[]>();
+		//最后一段的记录头位置,已写入的字节数和内容的校验和
+		long segHdr = -1;
+		int segFill = 0;
+		CRC32 segCrc = null;
+		String error = null;
+		//本节点已经有这个对象时,不再写入内容,直接返回已有的元信息
+		boolean checked = false;
+		String dup = null;
+		//段所在的块的路径,见holdStreamBlock;流结束后closed为true,不再预留新的段
+		Set<String> blocks = new HashSet<String>();
+		boolean closed = false;
+		//当前段所在块的文件句柄,整个流共用一个,由closeStream关闭
+		RandomAccessFile raf = null;
+		long rafBlock = -1;
+		//读取下一段内容的缓冲区,大小为CHUNK
+		public final byte[] buf;
+		
+		public StreamState(String set, String md5, int length) {
+			this.set = set;
+			this.md5 = md5;
+			this.length = length;
+			this.buf = new byte[Math.min(CHUNK, Math.max(length, 1))];
 		}
 	}
 	
@@ -90,10 +200,54 @@ public class StorePhoto {
 			storeArray.add(".");
 		}
 		diskArray = storeArray.toArray(new String[0]);
-		jedis = new RedisFactory(conf).getDefaultInstance();
+		//jedis连接在每个请求开始时从连接池借用,请求结束时归还
+		new RedisFactory(conf);
 
 		localHostName = conf.getNodeName();
-		readRafHash = new ConcurrentHashMap<String, RandomAccessFile>();
+		synchronized (StorePhoto.class) {
+			if (blockCache == null)
+				blockCache = new BlockCache(conf.getMmap_budget(), conf.getMax_open_blocks());
+			if (contentCache == null && conf.getContent_cache_size() > 0)
+				contentCache = new ContentCache(conf.getContent_cache_size(), conf.isContent_cache_offheap());
+			if (lookupCache == null)
+				lookupCache = new LookupCache(conf.getLookup_cache_size(), 300, TimeUnit.SECONDS);
+			if (dedupIndex == null && conf.isDedup_index())
+				dedupIndex = new DedupIndex(1 << 16, diskArray);
+			if (diskPlacer == null)
+				diskPlacer = new DiskPlacer(diskArray, DiskPlacer.parsePolicy(conf.getDisk_policy()), 
+						conf.getDisk_weights(), conf.getDisk_min_free());
+			if (blockSyncer == null)
+				blockSyncer = new BlockSyncer(BlockSyncer.parseMode(conf.getDurability()), 
+						conf.getSync_interval(), conf.getSync_bytes());
+			if (diskWriters == null && conf.isDisk_writer()) {
+				diskWriters = new DiskWriter[diskArray.length];
+				for (int i = 0; i < diskArray.length; i++)
+					diskWriters[i] = new DiskWriter(conf, i, diskArray[i]);
+				for (int i = 0; i < diskArray.length; i++) {
+					Thread t = new Thread(diskWriters[i], "MM-DiskWriter-" + i);
+					t.setDaemon(true);
+					t.start();
+				}
+			}
+			if (compactor == null && conf.getCompact_interval() > 0) {
+				compactor = new Compactor(conf);
+				Thread t = new Thread(compactor, "MM-Compactor");
+				t.setDaemon(true);
+				t.start();
+			}
+			if (trashDeleter == null) {
+				trashDeleter = new TrashDeleter(diskArray, conf.getTrash_rate());
+				Thread t = new Thread(trashDeleter, "MM-TrashDeleter");
+				t.setDaemon(true);
+				t.start();
+			}
+			if (expirer == null && conf.getExpire_interval() > 0) {
+				expirer = new Expirer(conf);
+				Thread t = new Thread(expirer, "MM-Expirer");
+				t.setDaemon(true);
+				t.start();
+			}
+		}
 	}
 	
 	public void reconnectJedis() {
@@ -101,6 +255,13 @@ public class StorePhoto {
 			jedis = new RedisFactory(conf).getDefaultInstance();
 		}
 	}
+	
+	/**
+	 * 把借用的jedis连接还给连接池
+	 */
+	public void releaseJedis() {
+		jedis = RedisFactory.putInstance(jedis);
+	}
 
 	/**
 	 * 把content代表的图片内容,存储起来,把小图片合并成一个块,块大小由配置文件中blocksize指定.
@@ -112,101 +273,202 @@ public class StorePhoto {
 	 * 				节点的端口号,所在相对路径（包括完整文件名）,位于所在块的偏移的字节数，该图片的字节数,磁盘
 	 */
 	public String storePhoto(String set, String md5, byte[] content, int coff, int clen) {
-		reconnectJedis();
-		StringBuffer rVal = new StringBuffer(128);
+		long begin = System.nanoTime();
+		try {
+			return doStorePhoto(set, md5, content, coff, clen);
+		} finally {
+			releaseJedis();
+			ServerProfile.writeAck.add(System.nanoTime() - begin);
+		}
+	}
+	
+	/**
+	 * 查询去重索引,本节点已经存有set@md5时,返回它在redis中的完整元信息(可能包含其他节点上的副本),
+	 * 调用者不需要再写入.索引与redis不一致时(例如元数据被删除),删除索引项并返回null
+	 */
+	private String lookupDup(String set, String md5) {
+		if (dedupIndex == null)
+			return null;
+		String local = dedupIndex.get(set, md5);
+		if (local == null)
+			return null;
 		
-		//随机选一个磁盘
-		int diskid = new Random().nextInt(diskArray.length);
+		String info = (String) lookupCache.get(set + "." + md5);
+		if (info == null) {
+			//从连接池取连接失败时也当作索引未命中,之后由正常的写入路径返回#FAIL
+			try {
+				reconnectJedis();
+				info = jedis.hget(set, md5);
+			} catch (JedisConnectionException e) {
+				jedis = RedisFactory.putBrokenInstance(jedis);
+				return null;
+			} catch (JedisException e) {
+				jedis = RedisFactory.putBrokenInstance(jedis);
+				return null;
+			}
+			if (info != null)
+				lookupCache.put(set + "." + md5, info);
+		}
+		if (info == null || !("#" + info + "#").contains("#" + local + "#")) {
+			dedupIndex.remove(set, md5);
+			return null;
+		}
+		ServerProfile.dedupHits.incrementAndGet();
+		return info;
+	}
+	
+	public static DedupIndex getDedupIndex() {
+		return dedupIndex;
+	}
+	
+	public static DiskPlacer getDiskPlacer() {
+		return diskPlacer;
+	}
+	
+	/**
+	 * 启动时从各块中的记录头重建本节点的去重索引,不访问redis.重建完成之前的重复写会再写一份
+	 */
+	public static void rebuildDedupIndex(ServerConf conf) {
+		new StorePhoto(conf);
+		if (dedupIndex == null)
+			return;
+		try {
+			long begin = System.currentTimeMillis();
+			long n = dedupIndex.rebuild();
+			System.out.println("Rebuilt dedup index with " + n + " objects in " + 
+					(System.currentTimeMillis() - begin) + " ms.");
+		} catch (InterruptedException e) {
+			System.out.println("Rebuild dedup index interrupted.");
+		}
+	}
+	
+	/**
+	 * 随机选一个磁盘,返回该集合在这个磁盘上的写上下文
+	 */
+	private StoreSetContext getWriteContext(String set) {
+		return getWriteContext(set, diskPlacer.choose());
+	}
+	
+	/**
+	 * 返回该集合在第diskid个磁盘上的写上下文
+	 */
+	private StoreSetContext getWriteContext(String set, int diskid) {
 		StoreSetContext ssc = null;
+		
 		synchronized (writeContextHash) {
 			ssc = writeContextHash.get(set + ":" + diskArray[diskid]);
 			
 			if (ssc == null) {
-				ssc = new StoreSetContext(set, diskArray[diskid]);
+				ssc = new StoreSetContext(set, diskArray[diskid], diskid);
 				writeContextHash.put(ssc.key, ssc);
 			}
 		}
+		return ssc;
+	}
+	
+	private String doStorePhoto(String set, String md5, byte[] content, int coff, int clen) {
+		String returnVal;
+		
+		String dup = lookupDup(set, md5);
+		if (dup != null)
+			return dup;
+		
+		StoreSetContext ssc = getWriteContext(set);
+		diskPlacer.begin(ssc.diskId);
+		try {
+			if (diskWriters != null)
+				return diskWriters[ssc.diskId].submit(new PendingWrite(set, md5, content, coff, clen));
+			if (conf.isGroup_commit())
+				return groupCommit(ssc, new PendingWrite(set, md5, content, coff, clen));
+			reconnectJedis();
+			returnVal = appendRecord(ssc, set, md5, 1, BlockRecord.FLAG_OBJECT, content, coff, clen);
+			//group-sync模式下等到内容落盘后再提交元信息
+			blockSyncer.sync();
+		} catch (JedisConnectionException e) {
+			System.out.println("Jedis connection broken in storeObject.");
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e1) {
+			}
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			return "#FAIL:" + e.getMessage();
+		} catch (JedisException e) {
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			return "#FAIL:" + e.getMessage();
+		} catch (Exception e) {
+			return "#FAIL:" + e.getMessage();
+		} finally {
+			diskPlacer.end(ssc.diskId);
+		}
+		
+		return commitInfo(set, md5, returnVal);
+	}
+	
+	/**
+	 * 把一个记录(记录头和内容,见BlockRecord)追加到该集合的当前块
+	 * @return		type@set@serverid@block@offset@length@disk,偏移指向内容而不是记录头
+	 */
+	private String appendRecord(StoreSetContext ssc, String set, String md5, int type, byte flags, 
+			byte[] content, int coff, int clen) throws IOException {
+		StringBuffer rVal = new StringBuffer(128);
+		ByteBuffer hdr = BlockRecord.header(set, md5, flags, content, coff, clen);
+		long begin;
+		
 		synchronized (ssc) {
 			//找到当前可写的文件块,如果当前不够大,或不存在,则新创建一个,命名block＿id,id递增,redis中只存储id
 			//用curBlock缓存当前可写的块，减少查询jedis的次数
-		
+			prepareBlock(ssc, set, hdr.remaining() + clen);
+			//写入成功之后才移动ssc.offset
+			long off = ssc.offset + hdr.remaining();
+			
+			// 统计写入的字节数
+			ServerProfile.addWrite(clen);
+			// 构造返回值
+			rVal.append(type);
+			rVal.append("@");
+			rVal.append(set);
+			rVal.append("@");
+			rVal.append(ServerConf.serverId);
+			rVal.append("@");
+			rVal.append(ssc.curBlock);
+			rVal.append("@");
+			rVal.append(off);
+			rVal.append("@");
+			rVal.append(clen);
+			rVal.append("@");
+			//磁盘,现在存的是磁盘的名字,读取的时候直接拿来构造路径
+			rVal.append(ssc.disk);
+			
+			List<ByteBuffer> bufs = new ArrayList<ByteBuffer>(2);
+			bufs.add(hdr);
+			bufs.add(ByteBuffer.wrap(content, coff, clen));
+			begin = System.nanoTime();
 			try {
-				if (ssc.curBlock < 0) {
-					//需要通过节点名字来标示不同节点上相同名字的集合
-					String reply = jedis.get(set + ".blk." + localHostName + "." + ssc.disk);
-					if (reply != null) {
-						ssc.curBlock = Long.parseLong(reply);
-						ssc.newf = new File(ssc.path + "b" + ssc.curBlock);
-						ssc.offset = ssc.newf.length();
-					} else {
-						ssc.curBlock = 0;
-						ssc.newf = new File(ssc.path + "b" + ssc.curBlock);
-						//把集合和它所在节点记录在redis的set里,方便删除,set.srvs表示set所在的服务器的位置
-						jedis.sadd(set + ".srvs", localHostName + ":" + serverport);
-						jedis.set(set + ".blk." + localHostName + "." + ssc.disk, "" + ssc.curBlock);
-						ssc.offset = 0;
-					}
-					ssc.raf = new RandomAccessFile(ssc.newf, "rw");
-					ssc.raf.seek(ssc.offset);
-				}
-				if (ssc.offset + content.length > blocksize) {
-					ssc.curBlock++;
-					ssc.newf = new File(ssc.path + "b" + ssc.curBlock);
-					//如果换了一个新块,则先把之前的关掉
-					if(ssc.raf != null)
-						ssc.raf.close();
-					ssc.raf = new RandomAccessFile(ssc.newf, "rw");
-					//当前可写的块号加一
-					jedis.incr(set + ".blk." + localHostName + "." + ssc.disk);
-					ssc.offset = 0;
-				}
-				
-				//在每个文件前面写入它的md5和offset length，从而恢复元数据
-				//md5 32个字节，offset:length分配20个字节
-//				ssc.offset += 52;
-				// 统计写入的字节数
-				ServerProfile.addWrite(clen);
-				// 构造返回值
-				rVal.append("1@"); // type
-				rVal.append(set);
-				rVal.append("@");
-				rVal.append(ServerConf.serverId);
-				rVal.append("@");
-				rVal.append(ssc.curBlock);
-				rVal.append("@");
-				rVal.append(ssc.offset);
-				rVal.append("@");
-				rVal.append(clen);
-				rVal.append("@");
-				//磁盘,现在存的是磁盘的名字,读取的时候直接拿来构造路径
-				rVal.append(diskArray[diskid]);
-				
-				ssc.raf.write(content, coff, clen);
-	
-				ssc.offset += clen;
-			} catch (JedisConnectionException e) {
-				System.out.println("Jedis connection broken in storeObject.");
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-				}
-				jedis = RedisFactory.putBrokenInstance(jedis);
-				return "#FAIL:" + e.getMessage();
-			} catch (JedisException e) {
-				jedis = RedisFactory.putBrokenInstance(jedis);
-				return "#FAIL:" + e.getMessage();
-			} catch (Exception e) {
-				return "#FAIL:" + e.getMessage();
+				writeFully(ssc.raf, bufs, hdr.remaining() + clen);
+			} catch (IOException e) {
+				abandonBlock(ssc);
+				throw e;
 			}
+			diskPlacer.addLatency(ssc.diskId, System.nanoTime() - begin);
+			blockSyncer.written(ssc, ssc.raf.getChannel(), hdr.remaining() + clen);
+			ssc.offset = off + clen;
 		}
-		
+		return rVal.toString();
+	}
+	
+	/**
+	 * 把新写入的对象的元信息写入redis,如果该md5已经存在,则把新的元信息拼接在已有的之后
+	 * @return		该对象的完整元信息,失败时以#FAIL:开头
+	 */
+	private String commitInfo(String set, String md5, String returnVal) {
 		try {
-			String returnVal = rVal.toString();
 			Transaction t1 = jedis.multi();
 			
 			Response<Long> r1 = t1.hsetnx(set, md5, returnVal);
 			Response<String> r2 = t1.hget(set,md5);
 			t1.exec();
+			if (dedupIndex != null)
+				dedupIndex.put(set, md5, returnVal);
 			if (r1.get() == 1)
 				return returnVal;
 			else {
@@ -245,18 +507,437 @@ public class StorePhoto {
 	}
 	
 	/**
-	 * 存储多个图片，通过反复调用storePhoto实现
+	 * Group commit: concurrent writes to the same StoreSetContext are queued,
+	 * and one of the writers (the leader) appends all of them with one gathering
+	 * write, then commits their metadata to redis with one pipeline.
+	 * 
+	 * The leader waits at most flush_interval ms for the batch to grow to
+	 * reqnr_to_flush requests. Requests arrived while a leader is committing
+	 * form the next batch, and the first of them becomes the next leader.
+	 */
+	private String groupCommit(StoreSetContext ssc, PendingWrite pw) {
+		synchronized (ssc.pending) {
+			ssc.pending.add(pw);
+			if (!ssc.committing) {
+				ssc.committing = true;
+				pw.leader = true;
+			} else if (ssc.pending.size() >= conf.getReqnr_to_flush()) {
+				// wake up the collecting leader
+				ssc.pending.notifyAll();
+			}
+		}
+		synchronized (pw) {
+			while (!pw.done && !pw.leader) {
+				try {
+					pw.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			if (pw.done)
+				return pw.result;
+		}
+		
+		// ok, we are the leader now
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		try {
+			synchronized (ssc.pending) {
+				long deadline = System.currentTimeMillis() + conf.getFlush_interval();
+				long left;
+				while (ssc.pending.size() < conf.getReqnr_to_flush() && 
+						(left = deadline - System.currentTimeMillis()) > 0) {
+					try {
+						ssc.pending.wait(left);
+					} catch (InterruptedException e) {
+					}
+				}
+				while (!ssc.pending.isEmpty() && (batch.isEmpty() || batch.size() < conf.getReqnr_to_flush()))
+					batch.add(ssc.pending.removeFirst());
+			}
+			commitBatch(ssc, batch);
+		} catch (Throwable e) {
+			// never leave the batch or the followers waiting, see DiskWriter.run()
+			e.printStackTrace();
+			for (PendingWrite w : batch)
+				w.result = "#FAIL:" + e.getMessage();
+		} finally {
+			synchronized (ssc.pending) {
+				if (ssc.pending.isEmpty())
+					ssc.committing = false;
+				else {
+					// hand over leadership to the oldest waiter
+					PendingWrite next = ssc.pending.getFirst();
+					synchronized (next) {
+						next.leader = true;
+						next.notify();
+					}
+				}
+			}
+			for (PendingWrite w : batch) {
+				if (w != pw) {
+					synchronized (w) {
+						w.done = true;
+						w.notify();
+					}
+				}
+			}
+		}
+		return pw.result;
+	}
+	
+	/**
+	 * 把一批写请求连续写入当前块,然后用一个pipeline更新redis中的元数据
+	 */
+	private void commitBatch(StoreSetContext ssc, List<PendingWrite> batch) {
+		reconnectJedis();
+		if (writeBatch(ssc, batch) && syncBatch(batch))
+			commitInfos(batch);
+	}
+	
+	/**
+	 * group-sync模式下等待一批已写入的请求落盘
+	 * @return		是否成功,失败时所有请求的结果都是#FAIL
+	 */
+	private boolean syncBatch(List<PendingWrite> batch) {
+		try {
+			blockSyncer.sync();
+			return true;
+		} catch (IOException e) {
+			failBatch(batch, e);
+			return false;
+		}
+	}
+	
+	/**
+	 * 把同一集合的一批写请求用一次gathering write写入当前块,写满一块时换新块
+	 * @return		是否写入成功,失败时所有请求的结果都是#FAIL
+	 */
+	private boolean writeBatch(StoreSetContext ssc, List<PendingWrite> batch) {
+		String set = batch.get(0).set;
+		
+		synchronized (ssc) {
+			try {
+				List<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+				long bytes = 0, nanos = 0, begin;
+				
+				for (PendingWrite w : batch) {
+					ByteBuffer hdr = BlockRecord.header(w.set, w.md5, BlockRecord.FLAG_OBJECT, 
+							w.content, w.coff, w.clen);
+					int rlen = hdr.remaining() + w.clen;
+					if (ssc.curBlock < 0 || ssc.offset + rlen > blocksize) {
+						// flush what we have got before switching to a new block
+						begin = System.nanoTime();
+						writeFully(ssc.raf, bufs, bytes);
+						nanos += System.nanoTime() - begin;
+						if (bytes > 0)
+							blockSyncer.written(ssc, ssc.raf.getChannel(), bytes);
+						bufs.clear();
+						bytes = 0;
+					}
+					prepareBlock(ssc, set, rlen);
+					ServerProfile.addWrite(w.clen);
+					w.result = "1@" + set + "@" + ServerConf.serverId + "@" + ssc.curBlock + "@" + 
+							(ssc.offset + hdr.remaining()) + "@" + w.clen + "@" + ssc.disk;
+					bufs.add(hdr);
+					bufs.add(ByteBuffer.wrap(w.content, w.coff, w.clen));
+					bytes += rlen;
+					ssc.offset += rlen;
+				}
+				begin = System.nanoTime();
+				writeFully(ssc.raf, bufs, bytes);
+				diskPlacer.addLatency(ssc.diskId, nanos + System.nanoTime() - begin);
+				blockSyncer.written(ssc, ssc.raf.getChannel(), bytes);
+			} catch (JedisConnectionException e) {
+				System.out.println("Jedis connection broken in storeObject.");
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {
+				}
+				jedis = RedisFactory.putBrokenInstance(jedis);
+				failBatch(batch, e);
+				return false;
+			} catch (JedisException e) {
+				jedis = RedisFactory.putBrokenInstance(jedis);
+				failBatch(batch, e);
+				return false;
+			} catch (Exception e) {
+				abandonBlock(ssc);
+				failBatch(batch, e);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * 追加失败(例如磁盘满)后,文件中可能有一部分写入的记录,文件位置与ssc.offset不再一致.
+	 * 不再向这个块追加,下一次写入时换一个新块,已经提交的元信息仍然有效,残缺的记录只在块的末尾.
+	 * 调用者需要持有ssc的锁
+	 */
+	private void abandonBlock(StoreSetContext ssc) {
+		if (ssc.curBlock >= 0)
+			ssc.offset = blocksize;
+	}
+	
+	/**
+	 * 用一个事务(pipeline)提交一批已写入的请求的元数据,这些请求可以属于不同的集合
+	 */
+	private void commitInfos(List<PendingWrite> batch) {
+		if (batch.isEmpty())
+			return;
+		try {
+			// commands in a transaction are pipelined until exec()
+			Transaction t1 = jedis.multi();
+			List<Response<Long>> r1 = new ArrayList<Response<Long>>();
+			List<Response<String>> r2 = new ArrayList<Response<String>>();
+			
+			for (PendingWrite w : batch) {
+				r1.add(t1.hsetnx(w.set, w.md5, w.result));
+				r2.add(t1.hget(w.set, w.md5));
+			}
+			t1.exec();
+			
+			// chain the info of duplicated md5s, see storePhoto()
+			Pipeline p2 = null;
+			for (int i = 0; i < batch.size(); i++) {
+				PendingWrite w = batch.get(i);
+				if (dedupIndex != null)
+					dedupIndex.put(w.set, w.md5, w.result);
+				if (r1.get(i).get() != 1) {
+					w.result = r2.get(i).get() + "#" + w.result;
+					if (p2 == null)
+						p2 = jedis.pipelined();
+					p2.hset(w.set, w.md5, w.result);
+				}
+			}
+			if (p2 != null)
+				p2.sync();
+		} catch (JedisConnectionException e) {
+			System.out.println("Jedis connection broken in storeObject.");
+			e.printStackTrace();
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e1) {
+			}
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			failBatch(batch, e);
+		} catch (JedisException e) {
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			failBatch(batch, e);
+		} catch (Exception e) {
+			e.printStackTrace();
+			failBatch(batch, e);
+		}
+	}
+	
+	/**
+	 * 磁盘写线程调用: 把一批可能属于不同集合的写请求按集合分组,每组用一次写入追加到该磁盘上集合的当前块,
+	 * 然后用一个事务提交所有写入成功的请求的元数据
+	 */
+	void writeDiskBatch(int diskId, List<PendingWrite> batch) {
+		Map<String, List<PendingWrite>> bySet = new LinkedHashMap<String, List<PendingWrite>>();
+		List<PendingWrite> ok = new ArrayList<PendingWrite>(batch.size());
+		
+		for (PendingWrite w : batch) {
+			List<PendingWrite> l = bySet.get(w.set);
+			if (l == null) {
+				l = new ArrayList<PendingWrite>();
+				bySet.put(w.set, l);
+			}
+			l.add(w);
+		}
+		try {
+			reconnectJedis();
+			for (Map.Entry<String, List<PendingWrite>> e : bySet.entrySet()) {
+				if (writeBatch(getWriteContext(e.getKey(), diskId), e.getValue()))
+					ok.addAll(e.getValue());
+			}
+			if (syncBatch(ok))
+				commitInfos(ok);
+		} finally {
+			releaseJedis();
+		}
+	}
+	
+	public static BlockSyncer getBlockSyncer() {
+		return blockSyncer;
+	}
+	
+	public static DiskWriter[] getDiskWriters() {
+		return diskWriters;
+	}
+	
+	public static Compactor getCompactor() {
+		return compactor;
+	}
+	
+	public static Expirer getExpirer() {
+		return expirer;
+	}
+	
+	public static TrashDeleter getTrashDeleter() {
+		return trashDeleter;
+	}
+	
+	String[] getDiskArray() {
+		return diskArray;
+	}
+	
+	/**
+	 * 压缩时把一个仍然有效的记录复制到该集合在第diskid个磁盘上的当前块,记录的类型和标志不变
+	 * @return		新位置的元信息,元信息还没有提交,见Compactor
+	 */
+	String relocate(String set, int diskid, BlockRecord.Record rec, byte[] content) throws IOException {
+		reconnectJedis();
+		return appendRecord(getWriteContext(set, diskid), set, rec.md5, rec.isManifest() ? 2 : 1, rec.flags,
+				content, 0, rec.length);
+	}
+	
+	/**
+	 * 对象被压缩移动到新位置后,更新去重索引,丢弃查找缓存中旧的元信息
+	 */
+	static void moved(String set, String md5, String oldInfo, String newInfo) {
+		if (dedupIndex != null && oldInfo.equals(dedupIndex.get(set, md5)))
+			dedupIndex.put(set, md5, newInfo);
+		lookupCache.remove(set + "." + md5);
+	}
+	
+	/**
+	 * 对象在本节点上的副本被删除或过期后,清除去重索引和查找缓存中的项
+	 */
+	static void forget(String set, String md5) {
+		if (dedupIndex != null)
+			dedupIndex.remove(set, md5);
+		lookupCache.remove(set + "." + md5);
+	}
+	
+	/**
+	 * 压缩或过期的旧块被删除时,关闭并解除映射
+	 */
+	static void dropBlock(String path) {
+		blockCache.invalidateBlock(path);
+	}
+	
+	private void failBatch(List<PendingWrite> batch, Exception e) {
+		for (PendingWrite w : batch)
+			w.result = "#FAIL:" + e.getMessage();
+	}
+	
+	private static void writeFully(RandomAccessFile raf, List<ByteBuffer> bufs, long bytes) throws IOException {
+		if (bytes == 0)
+			return;
+		FileChannel fc = raf.getChannel();
+		ByteBuffer[] srcs = bufs.toArray(new ByteBuffer[0]);
+		while (bytes > 0) {
+			bytes -= fc.write(srcs);
+		}
+	}
+	
+	/**
+	 * 找到当前可写的文件块,如果当前块剩余空间不够len个字节,或不存在,则新创建一个,命名block＿id,id递增,redis中只存储id
+	 * 用curBlock缓存当前可写的块，减少查询jedis的次数. 调用者需要持有ssc的锁
+	 */
+	private void prepareBlock(StoreSetContext ssc, String set, int len) throws IOException {
+		if (ssc.curBlock < 0) {
+			//需要通过节点名字来标示不同节点上相同名字的集合
+			String reply = jedis.get(set + ".blk." + localHostName + "." + ssc.disk);
+			if (reply != null) {
+				ssc.curBlock = Long.parseLong(reply);
+				ssc.newf = new File(ssc.path + "b" + ssc.curBlock);
+				ssc.offset = ssc.newf.length();
+				//旧格式的块中没有记录头,不再向其中追加,换一个新块
+				if (BlockRecord.isLegacy(ssc.newf)) {
+					ssc.curBlock = jedis.incr(set + ".blk." + localHostName + "." + ssc.disk);
+					ssc.newf = new File(ssc.path + "b" + ssc.curBlock);
+					ssc.offset = ssc.newf.length();
+				}
+			} else {
+				ssc.curBlock = 0;
+				ssc.newf = new File(ssc.path + "b" + ssc.curBlock);
+				//把集合和它所在节点记录在redis的set里,方便删除,set.srvs表示set所在的服务器的位置
+				jedis.sadd(set + ".srvs", localHostName + ":" + serverport);
+				jedis.set(set + ".blk." + localHostName + "." + ssc.disk, "" + ssc.curBlock);
+				ssc.offset = 0;
+			}
+			ssc.raf = new RandomAccessFile(ssc.newf, "rw");
+			ssc.raf.seek(ssc.offset);
+		}
+		if (ssc.offset + len > blocksize) {
+			ssc.curBlock++;
+			ssc.newf = new File(ssc.path + "b" + ssc.curBlock);
+			//如果换了一个新块,则先把之前的关掉
+			if(ssc.raf != null) {
+				blockSyncer.closing(ssc, ssc.raf.getChannel());
+				ssc.raf.close();
+			}
+			ssc.raf = new RandomAccessFile(ssc.newf, "rw");
+			//当前可写的块号加一
+			jedis.incr(set + ".blk." + localHostName + "." + ssc.disk);
+			ssc.offset = 0;
+		}
+	}
+	
+	/**
+	 * 存储多个图片. 按集合分组,每组在一次加锁中连续写入当前块,元数据用一个pipeline提交(见commitBatch),
+	 * 而不是每个图片一次加锁和一次redis事务
 	 * @param set
 	 * @param md5
 	 * @param content
-	 * @return
+	 * @return		各图片的元信息,顺序与参数相同,失败的以#FAIL:开头
 	 */
 	public String[] mstorePhoto(String[] set, String[] md5, byte[][] content, int[] coff, int[] clen) {
+		long begin = System.nanoTime();
 		if(set.length == md5.length && md5.length == content.length) {
 			int length = set.length;
 			String[] infos = new String[length];
+			PendingWrite[] pws = new PendingWrite[length];
+			Map<String, List<PendingWrite>> bySet = new LinkedHashMap<String, List<PendingWrite>>();
+			
+			for(int i = 0; i < length; i++) {
+				pws[i] = new PendingWrite(set[i], md5[i], content[i], coff[i], clen[i]);
+				pws[i].result = lookupDup(set[i], md5[i]);
+				if (pws[i].result != null)
+					continue;
+				List<PendingWrite> l = bySet.get(set[i]);
+				if (l == null) {
+					l = new ArrayList<PendingWrite>();
+					bySet.put(set[i], l);
+				}
+				l.add(pws[i]);
+			}
+			try {
+				if (diskWriters != null) {
+					// 各集合的请求交给各自磁盘的写线程,然后一起等待
+					List<StoreSetContext> sscs = new ArrayList<StoreSetContext>();
+					for (Map.Entry<String, List<PendingWrite>> e : bySet.entrySet()) {
+						StoreSetContext ssc = getWriteContext(e.getKey());
+						sscs.add(ssc);
+						diskPlacer.begin(ssc.diskId);
+						diskWriters[ssc.diskId].enqueue(e.getValue());
+					}
+					int i = 0;
+					for (List<PendingWrite> l : bySet.values()) {
+						for (PendingWrite w : l)
+							DiskWriter.await(w);
+						diskPlacer.end(sscs.get(i++).diskId);
+					}
+				} else {
+					for (Map.Entry<String, List<PendingWrite>> e : bySet.entrySet()) {
+						StoreSetContext ssc = getWriteContext(e.getKey());
+						diskPlacer.begin(ssc.diskId);
+						try {
+							commitBatch(ssc, e.getValue());
+						} finally {
+							diskPlacer.end(ssc.diskId);
+						}
+					}
+				}
+			} finally {
+				releaseJedis();
+			}
+			long nanos = System.nanoTime() - begin;
 			for(int i = 0; i < length; i++) {
-				infos[i] = storePhoto(set[i],md5[i],content[i], coff[i], clen[i]);
+				infos[i] = pws[i].result;
+				ServerProfile.writeAck.add(nanos);
 			}
 			return infos;
 		} else {
@@ -265,18 +946,296 @@ public class StorePhoto {
 		}
 	}
 	
+	/**
+	 * 流式存储一个对象,从in中按段读取length个字节的内容,每段读出后直接写入块文件
+	 * @return		type@set@serverid@block@offset@length@disk,失败时以#FAIL:开头
+	 * @throws IOException	从in读取失败,这时in中剩余的内容没有被读取
+	 */
+	public String storePhoto(String set, String md5, InputStream in, int length) throws IOException {
+		StreamState st = new StreamState(set, md5, length);
+		int left = length;
+		
+		try {
+			while (left > 0) {
+				int n = Math.min(st.buf.length, left);
+				int off = 0;
+				while (off < n) {
+					int r = in.read(st.buf, off, n - off);
+					if (r < 0)
+						throw new EOFException("Stream of " + set + "@" + md5 + " ends at " + (length - left + off));
+					off += r;
+				}
+				appendStream(st, st.buf, 0, n);
+				left -= n;
+			}
+			return finishStream(st);
+		} finally {
+			closeStream(st);
+		}
+	}
+	
+	/**
+	 * 记录流式写入的对象在path代表的块中有段,流结束(见closeStream)之前Compactor和Expirer不处理这个块
+	 */
+	private static void holdStreamBlock(StreamState st, String path) throws IOException {
+		synchronized (streamBlocks) {
+			if (st.closed)
+				throw new IOException("Stream of " + st.set + "@" + st.md5 + " is closed.");
+			if (st.blocks.add(path)) {
+				Integer n = streamBlocks.get(path);
+				streamBlocks.put(path, n == null ? 1 : n + 1);
+			}
+		}
+	}
+	
+	/**
+	 * 流式写入结束(完成,失败或者连接断开)时调用,释放它的段所在的块,可以重复调用
+	 */
+	public static void closeStream(StreamState st) {
+		synchronized (streamBlocks) {
+			st.closed = true;
+			for (String path : st.blocks) {
+				Integer n = streamBlocks.get(path);
+				if (n == null || n <= 1)
+					streamBlocks.remove(path);
+				else
+					streamBlocks.put(path, n - 1);
+			}
+			st.blocks.clear();
+		}
+		//没有完成的流不需要落盘,直接关闭
+		if (st.raf != null) {
+			try {
+				st.raf.close();
+			} catch (IOException e) {
+			}
+			st.raf = null;
+		}
+	}
+	
+	/**
+	 * @return	是否有未完成的流式写入的段在path代表的块中
+	 */
+	static boolean isStreamBlock(String path) {
+		synchronized (streamBlocks) {
+			return streamBlocks.containsKey(path);
+		}
+	}
+	
+	/**
+	 * 把流式写入的一段内容写入预留的段中,段写满后再预留下一段.
+	 * 出错后不再写入,但是调用者仍然要读完剩余的内容,错误由finishStream返回
+	 */
+	public void appendStream(StreamState st, byte[] b, int off, int len) {
+		if (!st.checked) {
+			st.checked = true;
+			st.dup = lookupDup(st.set, st.md5);
+		}
+		if (st.dup != null || st.error != null || len == 0)
+			return;
+		if (st.ssc == null)
+			st.ssc = getWriteContext(st.set);
+		//段所在的块可能已经不是当前块,所以用自己的文件句柄按位置写入,不需要持有ssc的锁
+		long nanos = 0;
+		
+		diskPlacer.begin(st.ssc.diskId);
+		try {
+			while (len > 0) {
+				long[] seg = st.segs.isEmpty() ? null : st.segs.get(st.segs.size() - 1);
+				if (seg == null || st.segFill == seg[2])
+					seg = reserveSegment(st);
+				if (st.raf == null || st.rafBlock != seg[0]) {
+					if (st.raf != null) {
+						//关闭之后不能再落盘,换块时先落盘
+						blockSyncer.closing(st, st.raf.getChannel());
+						st.raf.close();
+					}
+					st.raf = new RandomAccessFile(st.ssc.path + "b" + seg[0], "rw");
+					st.rafBlock = seg[0];
+				}
+				FileChannel fc = st.raf.getChannel();
+				int n = (int)Math.min(len, seg[2] - st.segFill);
+				ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+				long pos = seg[1] + st.segFill;
+				long begin = System.nanoTime();
+				while (bb.hasRemaining())
+					pos += fc.write(bb, pos);
+				nanos += System.nanoTime() - begin;
+				st.segCrc.update(b, off, n);
+				st.segFill += n;
+				ServerProfile.addWrite(n);
+				st.written += n;
+				off += n;
+				len -= n;
+				if (st.segFill == seg[2]) {
+					//段写满了,补上记录头中的校验和
+					ByteBuffer crc = ByteBuffer.allocate(4);
+					crc.putInt((int)st.segCrc.getValue());
+					crc.flip();
+					pos = st.segHdr + 12;
+					while (crc.hasRemaining())
+						pos += fc.write(crc, pos);
+				}
+				//与其他写入一样按持久化模式落盘,periodic模式下由后台线程按-dsi/-dsb落盘
+				blockSyncer.written(st, fc, n);
+			}
+		} catch (JedisConnectionException e) {
+			System.out.println("Jedis connection broken in storeObject.");
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			st.error = e.getMessage();
+		} catch (JedisException e) {
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			st.error = e.getMessage();
+		} catch (Exception e) {
+			st.error = e.getMessage();
+		} finally {
+			diskPlacer.end(st.ssc.diskId);
+			if (nanos > 0)
+				diskPlacer.addLatency(st.ssc.diskId, nanos);
+			releaseJedis();
+		}
+	}
+	
+	/**
+	 * 在该集合的当前块中预留下一段: 写入记录头,然后跳过内容的长度,其他写请求接着写在它的后面.
+	 * 段的长度在预留时就确定了,所以记录头中只有校验和需要在段写满后补上.
+	 * 整个对象放得下时,这一段就是一个普通的对象记录
+	 * @return		块号,内容的偏移,长度
+	 */
+	private long[] reserveSegment(StreamState st) throws IOException {
+		StoreSetContext ssc = st.ssc;
+		int hlen = BlockRecord.headerLength(st.set, st.md5);
+		int left = st.length - st.written;
+		long[] seg;
+		
+		synchronized (ssc) {
+			reconnectJedis();
+			//剩余空间至少要放下一次读出的内容,否则换到新块,避免产生很小的段
+			prepareBlock(ssc, st.set, hlen + Math.min(left, StreamState.CHUNK));
+			int n = (int)Math.min(left, Math.max(blocksize - ssc.offset - hlen, Math.min(left, StreamState.CHUNK)));
+			byte flags = (st.written == 0 && n == st.length) ? BlockRecord.FLAG_OBJECT : BlockRecord.FLAG_SEGMENT;
+			
+			holdStreamBlock(st, ssc.path + "b" + ssc.curBlock);
+			st.segHdr = ssc.offset;
+			seg = new long[]{ssc.curBlock, ssc.offset + hlen, n};
+			try {
+				ssc.raf.write(BlockRecord.header(st.set, st.md5, flags, n, 0).array());
+				//文件长度要包括预留的内容,否则中途宕机后重启时从文件末尾(预留区域之内)继续追加,
+				//BlockRecord.Reader会在这个记录头处出错或者跳过之后的记录
+				if (ssc.raf.length() < ssc.offset + hlen + n)
+					ssc.raf.setLength(ssc.offset + hlen + n);
+			} catch (IOException e) {
+				abandonBlock(ssc);
+				throw e;
+			}
+			blockSyncer.written(ssc, ssc.raf.getChannel(), hlen);
+			ssc.offset += hlen + n;
+			ssc.raf.seek(ssc.offset);
+		}
+		st.segs.add(seg);
+		st.segFill = 0;
+		st.segCrc = new CRC32();
+		return seg;
+	}
+	
+	/**
+	 * 内容写完后,写入段的清单并提交元信息.只有一段的对象不需要清单,元信息的类型为1.
+	 * 出错时已预留的段成为块中的无效记录(校验和不对),不影响其他记录
+	 * @return		type@set@serverid@block@offset@length@disk,失败时以#FAIL:开头
+	 */
+	public String finishStream(StreamState st) {
+		try {
+			if (!st.checked) {
+				st.checked = true;
+				st.dup = lookupDup(st.set, st.md5);
+			}
+			if (st.dup != null)
+				return st.dup;
+			if (st.error != null)
+				return "#FAIL:" + st.error;
+			if (st.written != st.length)
+				return "#FAIL:stream of " + st.set + "@" + st.md5 + " got " + st.written + "/" + st.length + "B";
+			if (st.segs.size() == 0)
+				return doStorePhoto(st.set, st.md5, new byte[0], 0, 0);
+			
+			//提交之前让最后一个块中的段落盘(none模式下不落盘),文件由closeStream关闭
+			if (st.raf != null)
+				blockSyncer.closing(st, st.raf.getChannel());
+			StoreSetContext ssc = st.ssc;
+			String info;
+			if (st.segs.size() == 1) {
+				long[] seg = st.segs.get(0);
+				info = "1@" + st.set + "@" + ServerConf.serverId + "@" + seg[0] + "@" + seg[1] + "@" + 
+						seg[2] + "@" + ssc.disk;
+			} else {
+				//清单: 总长度(long) + 段数(int) + 若干个 块号(long) + 偏移(long) + 长度(int)
+				ByteBuffer m = ByteBuffer.allocate(12 + 20 * st.segs.size());
+				m.putLong(st.length);
+				m.putInt(st.segs.size());
+				for (long[] seg : st.segs) {
+					m.putLong(seg[0]);
+					m.putLong(seg[1]);
+					m.putInt((int)seg[2]);
+				}
+				
+				reconnectJedis();
+				info = appendRecord(ssc, st.set, st.md5, 2, BlockRecord.FLAG_MANIFEST, m.array(), 0, m.capacity());
+			}
+			blockSyncer.sync();
+			reconnectJedis();
+			return commitInfo(st.set, st.md5, info);
+		} catch (JedisConnectionException e) {
+			System.out.println("Jedis connection broken in storeObject.");
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			return "#FAIL:" + e.getMessage();
+		} catch (JedisException e) {
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			return "#FAIL:" + e.getMessage();
+		} catch (Exception e) {
+			return "#FAIL:" + e.getMessage();
+		} finally {
+			//元信息已经提交(或者失败),段不再需要保护
+			closeStream(st);
+			releaseJedis();
+		}
+	}
+	
 	/**
 	 *获得md5值所代表的图片的内容
 	 * @param md5		与storePhoto中的参数md5相对应
 	 * @return			该图片的内容,与storePhoto中的参数content对应
 	 */
 	public byte[] getPhoto(String set, String md5) throws RedirectException {
-		reconnectJedis();
+		String info = locatePhoto(set, md5);
+		
+		if (info == null)
+			return null;
+		return searchPhoto(info, null);
+	}
+	
+	/**
+	 * 与getPhoto相同,但是返回图片所在的文件区域,用于零拷贝发送
+	 */
+	public PhotoRegion getPhotoRegion(String set, String md5) throws RedirectException {
+		String info = locatePhoto(set, md5);
+		
+		if (info == null)
+			return null;
+		return openPhoto(info, info.split("@"));
+	}
+	
+	/**
+	 * 查找set@md5在本节点上的元信息
+	 * @return	本节点上的type@set@serverid@block@offset@length@disk,不存在则返回null
+	 * @throws RedirectException	只存在于其他节点上
+	 */
+	private String locatePhoto(String set, String md5) throws RedirectException {
 		String info = null;
 		
 		// Step 1: check the local lookup cache
 		info = (String) lookupCache.get(set + "." + md5);
 		if (info == null) {
+			reconnectJedis();
 			try {
 				info = jedis.hget(set, md5);
 			} catch (JedisConnectionException e) {
@@ -290,6 +1249,7 @@ public class StorePhoto {
 				jedis = RedisFactory.putBrokenInstance(jedis);
 				return null;
 			}
+			releaseJedis();
 			
 			if (info == null) {
 				System.out.println("MM: md5:" + md5 + " doesn't exist in set:" + set + ".");
@@ -306,7 +1266,7 @@ public class StorePhoto {
 			String[] is = i.split("@");
 			
 			if (Long.parseLong(is[2]) == ServerConf.serverId)
-				return searchPhoto(i, is);
+				return i;
 			else {
 				savedInfo = i;
 				savedId = Long.parseLong(is[2]);
@@ -315,13 +1275,13 @@ public class StorePhoto {
 
 		throw new RedirectException(savedId, savedInfo);
 	}
+	
 	/**
-	 * 获得图片内容
+	 * 获得图片所在的文件区域,内容不读入内存,由调用者通过transferTo发送,用完后调用close
 	 * @param info		对应storePhoto的type@set@serverid@block@offset@length@disk格式的返回值
-	 * @return			图片内容content
+	 * @return			图片所在的文件区域,出错返回null
 	 */
-	public byte[] searchPhoto(String info, String[] infos) throws RedirectException {
-		long start = System.currentTimeMillis();
+	public PhotoRegion openPhoto(String info, String[] infos) throws RedirectException {
 		if (infos == null)
 			infos = info.split("@");
 		
@@ -333,21 +1293,37 @@ public class StorePhoto {
 			// this request should be send to another server
 			throw new RedirectException(Long.parseLong(infos[2]), info);
 		}
+		//构造路径时加上磁盘 
 		String path = infos[6] + "/" + destRoot + infos[1] + "/b" + infos[3];
-		RandomAccessFile readr = null;
-		byte[] content = new byte[Integer.parseInt(infos[5])];
-	
+		
+		if (infos[0].equals("2"))
+			return openChunked(info, infos, path);
+		
+		if (contentCache != null) {
+			ByteBuffer bb = contentCache.get(info);
+			if (bb != null)
+				return new PhotoRegion(bb);
+		}
+		
 		try {
-			//用哈希缓存打开的文件随机访问流
-			if (readRafHash.containsKey(path)) {
-				readr = readRafHash.get(path);
-			} else {
-				//构造路径时加上磁盘 
-				readr = new RandomAccessFile(path, "r");
-				readRafHash.put(path, readr);
+			long block = Long.parseLong(infos[3]);
+			int length = Integer.parseInt(infos[5]);
+			BlockCache.Block b = blockCache.acquire(path, isSealed(infos[1], infos[6], block));
+			PhotoRegion pr = new PhotoRegion(b, Long.parseLong(infos[4]), length);
+			
+			//第二次未命中的对象读入缓存,之后从缓存返回
+			if (contentCache != null && contentCache.admit(info, length)) {
+				ByteBuffer bb = contentCache.allocate(length);
+				try {
+					pr.read(bb);
+				} finally {
+					pr.release();
+				}
+				bb.flip();
+				contentCache.put(info, bb);
+				pr = new PhotoRegion(bb.duplicate());
 			}
-			readr.seek(Long.parseLong(infos[4]));
-			readr.read(content);
+			return pr;
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 			return null;
@@ -358,17 +1334,173 @@ public class StorePhoto {
 			e.printStackTrace();
 			return null;
 		}
-		ServerProfile.updateRead(content.length, System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * 打开一个分段存储的大对象: 先读出它的清单,然后打开各段,各段依次发送.大对象不放入内容缓存
+	 * @param path	清单所在的块
+	 */
+	private PhotoRegion openChunked(String info, String[] infos, String path) {
+		String dir = infos[6] + "/" + destRoot + infos[1] + "/b";
+		List<PhotoRegion> parts = new ArrayList<PhotoRegion>();
+		
+		try {
+			ByteBuffer m = ByteBuffer.allocate(Integer.parseInt(infos[5]));
+			PhotoRegion mr = new PhotoRegion(blockCache.acquire(path, 
+					isSealed(infos[1], infos[6], Long.parseLong(infos[3]))), Long.parseLong(infos[4]), m.capacity());
+			try {
+				mr.read(m);
+			} finally {
+				mr.release();
+			}
+			m.flip();
+			
+			m.getLong();
+			int n = m.getInt();
+			for (int i = 0; i < n; i++) {
+				long block = m.getLong();
+				long offset = m.getLong();
+				int length = m.getInt();
+				parts.add(new PhotoRegion(blockCache.acquire(dir + block, isSealed(infos[1], infos[6], block)), 
+						offset, length));
+			}
+			return new PhotoRegion(parts.toArray(new PhotoRegion[0]));
+		} catch (Exception e) {
+			System.out.println("Open chunked object " + info + " failed: " + e.getMessage());
+			for (PhotoRegion pr : parts)
+				pr.release();
+			return null;
+		}
+	}
+	
+	public static ContentCache getContentCache() {
+		return contentCache;
+	}
+	
+	/**
+	 * 块是否已经封闭(不会再被追加).本进程正在写的块没有封闭,其它的块都认为已经封闭;
+	 * 重启后继续追加的块可能已经被映射,超出映射范围的读取会回退到文件读取
+	 */
+	private boolean isSealed(String set, String disk, long block) {
+		StoreSetContext ssc = writeContextHash.get(set + ":" + disk);
+		
+		return ssc == null || block < ssc.curBlock;
+	}
+	
+	/**
+	 * 获得图片内容
+	 * @param info		对应storePhoto的type@set@serverid@block@offset@length@disk格式的返回值
+	 * @return			图片内容content
+	 */
+	public byte[] searchPhoto(String info, String[] infos) throws RedirectException {
+		PhotoRegion pr = openPhoto(info, infos);
+		
+		if (pr == null)
+			return null;
+		byte[] content = new byte[pr.length()];
+	
+		try {
+			pr.read(content);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			pr.close();
+		}
 
 		return content;
 	}
 	
+	/**
+	 * 删除本节点上的一个对象: 从redis的元信息中去掉本节点的副本,没有其他副本时删除该项,然后清除本节点的缓存,
+	 * 并写一个墓碑记录. 之后按set@md5读不到这个副本;块中的内容成为无效的字节,由Compactor回收
+	 * @return		去掉的元信息,用#拼接,本节点没有副本时为空串,失败时返回null
+	 */
+	public String delPhoto(String set, String md5) {
+		String gone;
+		
+		reconnectJedis();
+		try {
+			gone = (String) jedis.eval(DEL_INFO, 1, set, md5, "" + ServerConf.serverId);
+			forget(set, md5);
+			if (gone.length() > 0) {
+				//在被删除的记录所在的磁盘上写一个墓碑记录,从块中重建元数据时不会恢复被删除的对象(见MetaRebuild)
+				int diskid = 0;
+				String disk = gone.split("#")[0].split("@")[6];
+				for (int i = 0; i < diskArray.length; i++) {
+					if (diskArray[i].equals(disk))
+						diskid = i;
+				}
+				byte[] content = gone.getBytes();
+				appendRecord(getWriteContext(set, diskid), set, md5, 0, BlockRecord.FLAG_TOMBSTONE, 
+						content, 0, content.length);
+				blockSyncer.sync();
+			}
+		} catch (JedisConnectionException e) {
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			return null;
+		} catch (JedisException e) {
+			jedis = RedisFactory.putBrokenInstance(jedis);
+			return null;
+		} catch (IOException e) {
+			System.out.println("Write tombstone of " + set + "@" + md5 + " failed: " + e.getMessage());
+			return null;
+		} finally {
+			releaseJedis();
+		}
+		return gone;
+	}
+	
+	/**
+	 * 墓碑记录是否还需要保留: 它所删除的记录所在的块(除了墓碑自己所在的块)还存在时需要保留
+	 * @param infos		墓碑记录的内容,被删除的元信息,用#拼接
+	 * @param self		墓碑所在的块的路径
+	 */
+	static boolean isTombstoneLive(String infos, String self) {
+		for (String info : infos.split("#")) {
+			String[] f = info.split("@");
+			if (f.length != 7)
+				continue;
+			String path = f[6] + "/" + destRoot + f[1] + "/b" + f[3];
+			if (!path.equals(self) && new File(path).exists())
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * 删除集合: 关闭该集合的写上下文,把每个磁盘上的该集合的目录改名到回收目录后立即返回,
+	 * 目录中的块由trashDeleter在后台限速删除
+	 */
 	public void delSet(String set) {
-		for(String d : diskArray)		//删除每个磁盘上的该集合
-			delFile(new File(d + "/" + destRoot + set));
-		//删除一个集合后,同时删除关于该集合的全局的上下文
+		//先删除并关闭该集合的写上下文,仍持有旧上下文的写会失败
+		for(String d : diskArray) {
+			StoreSetContext ssc = writeContextHash.remove(set + ":" + d);
+			if (ssc != null) {
+				synchronized (ssc) {
+					if (ssc.raf != null) {
+						try {
+							ssc.raf.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}
+		}
+		long seq = trashSeq.incrementAndGet();
+		for(String d : diskArray) {		//删除每个磁盘上的该集合
+			File dir = new File(d + "/" + destRoot + set);
+			if (dir.exists() && !trashDeleter.trash(d, dir, set + "." + System.currentTimeMillis() + "." + seq))
+				delFile(dir);
+		}
+		//删除一个集合后,同时删除关于该集合的全局的上下文,并关闭和解除映射已打开的块
+		if (dedupIndex != null)
+			dedupIndex.removeSet(set);
 		for(String d : diskArray)
-			writeContextHash.remove(set+":"+d);			
+			blockCache.invalidate(d + "/" + destRoot + set + "/");
+		lookupCache.invalidate(set + ".");
+		if (contentCache != null)
+			contentCache.invalidate(set);
 	}
 	
 	/**
@@ -391,19 +1523,9 @@ public class StorePhoto {
 		}
 	}
 	
-	//关闭jedis连接,关闭文件访问流
+	//归还借用的jedis连接,读文件的块由blockCache统一管理,不在这里关闭
 	public void close() {
-		try {
-			//该变量是静态的,因此这段代码会关闭所有的raf,导致其他线程在写入时异常
-
-			for (Map.Entry<String, RandomAccessFile> entry : readRafHash.entrySet()) {
-				entry.getValue().close();
-			}
-			if (jedis != null)
-				RedisFactory.putInstance(jedis);
-		} catch(IOException e){
-			e.printStackTrace();
-		}
+		releaseJedis();
 	}
 	
 }
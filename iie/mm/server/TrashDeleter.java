@@ -0,0 +1,108 @@
+package iie.mm.server;
+
+import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Deletes the directories of deleted sets in the background. DELSET only
+ * renames a set's directory into the trash directory of its disk, which is
+ * atomic and instant, and replies; this thread then unlinks the block files
+ * at a limited rate, so freeing a large set does not starve the live
+ * traffic on that disk.
+ *
+ * Trash left over by a previous run is picked up at startup.
+ */
+public class TrashDeleter implements Runnable {
+	public static final String trashRoot = "./mm_trash/";
+
+	private long rate;
+	private LinkedBlockingQueue<File> queue = new LinkedBlockingQueue<File>();
+	private long nextFree = 0;
+
+	private long dirs = 0, files = 0, bytes = 0;
+
+	/**
+	 * @param rate	max bytes of files unlinked per second, 0 for no limit
+	 */
+	public TrashDeleter(String[] disks, long rate) {
+		this.rate = rate;
+		for (String d : disks) {
+			File[] fs = new File(d + "/" + trashRoot).listFiles();
+			if (fs != null) {
+				for (File f : fs)
+					queue.add(f);
+			}
+		}
+	}
+
+	/**
+	 * Move dir into the trash of its disk and queue it for deletion.
+	 *
+	 * @return false if it could not be renamed, the caller should delete it
+	 */
+	public boolean trash(String disk, File dir, String name) {
+		File root = new File(disk + "/" + trashRoot);
+		root.mkdirs();
+		File to = new File(root, name);
+		if (!dir.renameTo(to))
+			return false;
+		queue.add(to);
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				File f = queue.take();
+				delete(f);
+				synchronized (this) {
+					dirs++;
+				}
+			} catch (InterruptedException e) {
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void delete(File f) {
+		File[] fs = f.listFiles();
+		if (fs != null) {
+			for (File c : fs)
+				delete(c);
+		} else {
+			long len = f.length();
+			throttle(len);
+			if (f.delete()) {
+				synchronized (this) {
+					files++;
+					bytes += len;
+				}
+			}
+			return;
+		}
+		f.delete();
+	}
+
+	private void throttle(long n) {
+		if (rate <= 0)
+			return;
+		long now = System.nanoTime();
+		if (nextFree < now)
+			nextFree = now;
+		nextFree += n * 1000000000L / rate;
+		long ms = (nextFree - now) / 1000000;
+		if (ms > 0) {
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	public synchronized String getStats() {
+		return " Trash: " + queue.size() + " sets waiting, " + dirs + " sets deleted, " + files + " files, " +
+				(bytes / 1024 / 1024) + "MB freed";
+	}
+}
@@ -1,12 +1,22 @@
 package iie.mm.server;
 
 public class WriteTask {
+	/**
+	 * 写完成后的回调,用于向客户端回复ASYNCSTOREACK
+	 */
+	public static interface Ack {
+		void done(WriteTask t, String result);
+	}
+	
 	private String set;
 	private String md5;
 	private byte[] content;
 	private int coff;
 	private int clen;
 	private String result;
+	private long enqueueTime;
+	private long reqId;
+	private Ack ack;
 	
 	public WriteTask(String set, String md5, byte[] content, int coff, int clen) {
 		this.set = set;
@@ -51,6 +61,24 @@ public class WriteTask {
 	public void setClen(int clen) {
 		this.clen = clen;
 	}
+	public long getEnqueueTime() {
+		return enqueueTime;
+	}
+	public void setEnqueueTime(long enqueueTime) {
+		this.enqueueTime = enqueueTime;
+	}
+	public long getReqId() {
+		return reqId;
+	}
+	public void setReqId(long reqId) {
+		this.reqId = reqId;
+	}
+	public Ack getAck() {
+		return ack;
+	}
+	public void setAck(Ack ack) {
+		this.ack = ack;
+	}
 	
 	
 }
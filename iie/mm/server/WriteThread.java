@@ -1,50 +1,41 @@
 package iie.mm.server;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.ConcurrentHashMap;
-
 public class WriteThread implements Runnable {
 
 	private ServerConf conf;
-	private BlockingQueue<WriteTask> tasks;
-	private String set;
-	private ConcurrentHashMap<String,BlockingQueue<WriteTask>> sq;
-	
-	public WriteThread(ServerConf conf, String set,ConcurrentHashMap<String,BlockingQueue<WriteTask>> sq) {
+	private AsyncWriter.Shard shard;
+
+	public WriteThread(ServerConf conf, AsyncWriter.Shard shard) {
 		this.conf = conf;
-		this.set = set;
-		this.sq = sq;
-		this.tasks = sq.get(set);
+		this.shard = shard;
 	}
 
 
 	@Override
 	public void run() {
 		StorePhoto sp = new StorePhoto(conf);
-		
+
 		try {
 			while(true) {
-//				WriteTask t = tasks.take();
-				//该线程推出条件，60秒内没有新的任务，或者在删除该集合时，手动插入一个md5为空的任务
-				WriteTask t = tasks.poll(60l,TimeUnit.SECONDS);
+				//固定数目的写线程,每个线程负责一个分片的队列,集合删除时由AsyncWriter丢弃其排队的任务
+				WriteTask t = shard.take();
+				String r;
 
-				if(t == null || t.getMd5() == null) {
-					sq.remove(set);
-					break;
+				//一个任务失败(例如redis不可用)不能结束写线程,否则这个分片的队列再也没有人处理
+				try {
+					r = sp.storePhoto(t.getSet(), t.getMd5(), t.getContent(), t.getCoff(), t.getClen());
+				} catch (Throwable e) {
+					e.printStackTrace();
+					r = "#FAIL:" + e.getMessage();
 				}
-//				synchronized (t) {
-//					t.setResult(sp.storePhoto(t.getSet(), t.getMd5(), t.getContent(), t.getCoff(), t.getClen()));
-//					t.notify();
-//				}
-				sp.storePhoto(t.getSet(), t.getMd5(), t.getContent(), t.getCoff(), t.getClen());
+				if (t.getAck() != null)
+					t.getAck().done(t, r);
 			}
-			sp.close();
-			System.out.println(Thread.currentThread()+"writethread 结束");
 		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		sp.close();
+		System.out.println(Thread.currentThread()+"writethread 结束");
 	}
 
 }